@@ -0,0 +1,146 @@
+package com.github.curioustechizen.hybridchoice.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.curioustechizen.hybridchoice.ChosenItems;
+import com.github.curioustechizen.hybridchoice.ConcurrentSelectionStore;
+import com.github.curioustechizen.hybridchoice.IntIterator;
+
+/**
+ * Stress test and benchmark of {@link ConcurrentSelectionStore}: background
+ * writers change the selection while a bind loop reads it, as a sync service
+ * and the UI thread would.
+ * <p>
+ * The writers only ever flip aligned pairs of positions at once, so in any
+ * consistent state both positions of a pair are chosen or neither is. The
+ * bind loop checks that for every row it binds, and every so often iterates
+ * a whole snapshot and checks its size, failing the run with an
+ * {@code IllegalStateException} if a read ever sees half a write.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class ConcurrentSelectionBenchmark {
+
+	/*
+	 * The rows bound per "frame"
+	 */
+	private static final int VISIBLE_ROWS = 16;
+
+	/*
+	 * How many frames to bind between full iterations of a snapshot
+	 */
+	private static final int FRAMES_PER_ITERATION = 1024;
+
+	@Param({ "1000", "100000", "1000000" })
+	public int size;
+
+	private ConcurrentSelectionStore store;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		store = new ConcurrentSelectionStore();
+		Random random = new Random(42);
+		for (int pair = 0; pair < size / 2; pair++) {
+			if (random.nextBoolean()) {
+				store.addRange(pair * 2, pair * 2 + 2);
+			}
+		}
+	}
+
+	/**
+	 * Per-thread state: the random positions a thread works on
+	 */
+	@State(Scope.Thread)
+	public static class ThreadState {
+
+		Random random;
+
+		int frames;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			random = new Random(Thread.currentThread().getId());
+		}
+	}
+
+	/**
+	 * Bind one frame of rows, as {@code getView()} would
+	 */
+	@Benchmark
+	@Group("bind")
+	@GroupThreads(1)
+	public int bindLoop(ThreadState state) {
+		int first = state.random.nextInt(Math.max(1, size - VISIBLE_ROWS)) & ~1;
+		int chosen = 0;
+		for (int position = first; position < first + VISIBLE_ROWS
+				&& position < size; position += 2) {
+			ChosenItems snapshot = store.snapshot();
+			boolean even = snapshot.contains(position);
+			if (even != snapshot.contains(position + 1)) {
+				throw new IllegalStateException("Torn write at " + position);
+			}
+			if (even) {
+				chosen += 2;
+			}
+		}
+		if (++state.frames % FRAMES_PER_ITERATION == 0) {
+			checkSnapshot(store.snapshot());
+		}
+		return chosen;
+	}
+
+	/**
+	 * Change the selection from a background thread
+	 */
+	@Benchmark
+	@Group("bind")
+	@GroupThreads(3)
+	public void writer(ThreadState state) {
+		int pair = state.random.nextInt(size / 2) * 2;
+		if (state.random.nextInt(64) == 0) {
+			int end = Math.min(size, pair + 2 * state.random.nextInt(512));
+			store.flipRange(pair, end);
+		} else {
+			store.flipRange(pair, pair + 2);
+		}
+	}
+
+	/*
+	 * Iterate a whole snapshot: its size must match, and it must hold whole
+	 * pairs only
+	 */
+	private static void checkSnapshot(ChosenItems snapshot) {
+		int count = 0;
+		for (IntIterator it = snapshot.iterator(); it.hasNext();) {
+			int position = it.next();
+			if (!snapshot.contains(position ^ 1)) {
+				throw new IllegalStateException("Torn write at " + position);
+			}
+			count++;
+		}
+		if (count != snapshot.size()) {
+			throw new IllegalStateException("Size " + snapshot.size()
+					+ " but iterated " + count);
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package com.github.curioustechizen.hybridchoice.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.curioustechizen.hybridchoice.ChosenItems;
+import com.github.curioustechizen.hybridchoice.ConcurrentSelectionStore;
+import com.github.curioustechizen.hybridchoice.IntIterator;
+import com.github.curioustechizen.hybridchoice.SelectionModel;
+
+/**
+ * Stress test of a {@link SelectionModel} backed by a
+ * {@link ConcurrentSelectionStore}: background writers change the selection
+ * and a background reader reads it, as a sync service would, while the UI
+ * thread inserts and removes items through the model and binds rows.
+ * <p>
+ * As in {@link ConcurrentSelectionBenchmark}, the writers only flip aligned
+ * pairs of positions, and the UI thread only inserts and removes aligned
+ * pairs of items, so in any consistent state both positions of a pair are
+ * chosen or neither is. Random flips, and choosing every other inserted
+ * pair, keep about half of the items chosen, so a state with fewer than an
+ * eighth of them chosen means that the chosen positions were being
+ * rebuilt. The UI thread and the reader check this for
+ * the rows they look at, and every so often for a whole snapshot, failing
+ * the run with an {@code IllegalStateException} if moving the positions was
+ * ever seen half done.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class ConcurrentSelectionModelBenchmark {
+
+	/*
+	 * The rows bound per "frame"
+	 */
+	private static final int VISIBLE_ROWS = 16;
+
+	/*
+	 * How many frames to bind between full iterations of a snapshot
+	 */
+	private static final int FRAMES_PER_ITERATION = 256;
+
+	@Param({ "1000", "100000" })
+	public int size;
+
+	private ConcurrentSelectionStore store;
+
+	private SelectionModel model;
+
+	/*
+	 * The number of items. Only changed by the UI thread.
+	 */
+	private int count;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		store = new ConcurrentSelectionStore();
+		Random random = new Random(42);
+		for (int pair = 0; pair < size / 2; pair++) {
+			if (random.nextBoolean()) {
+				store.addRange(pair * 2, pair * 2 + 2);
+			}
+		}
+		count = size;
+		model = new SelectionModel(new SelectionModel.Items() {
+
+			@Override
+			public int getCount() {
+				return count;
+			}
+
+			@Override
+			public long getItemId(int position) {
+				return position;
+			}
+		}, false);
+		model.setSelectionStore(store);
+	}
+
+	/**
+	 * Per-thread state: the random positions a thread works on
+	 */
+	@State(Scope.Thread)
+	public static class ThreadState {
+
+		Random random;
+
+		int frames;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			random = new Random(Thread.currentThread().getId());
+		}
+	}
+
+	/**
+	 * Insert or remove a pair of items through the model, choosing half of
+	 * the inserted ones, then bind one frame of rows
+	 */
+	@Benchmark
+	@Group("model")
+	@GroupThreads(1)
+	public int uiThread(ThreadState state) {
+		int at = state.random.nextInt(count / 2) * 2;
+		if (count <= size - 2 || (count < size + 64 && state.random.nextBoolean())) {
+			count += 2;
+			model.onItemsInserted(at, 2);
+			if (state.random.nextBoolean()) {
+				model.setRangeChosen(at, at + 2, true);
+			}
+		} else {
+			count -= 2;
+			model.onItemsRemoved(at, 2);
+		}
+
+		ChosenItems snapshot = store.snapshot();
+		int chosen = 0;
+		int first = state.random.nextInt(Math.max(1, count - VISIBLE_ROWS)) & ~1;
+		for (int position = first; position < first + VISIBLE_ROWS
+				&& position < count; position += 2) {
+			boolean even = snapshot.contains(position);
+			if (even != snapshot.contains(position + 1)) {
+				throw new IllegalStateException("Torn move at " + position);
+			}
+			if (even) {
+				chosen += 2;
+			}
+		}
+		if (++state.frames % FRAMES_PER_ITERATION == 0) {
+			checkSnapshot(store.snapshot());
+		}
+		return chosen;
+	}
+
+	/**
+	 * Read the selection from a background thread
+	 */
+	@Benchmark
+	@Group("model")
+	@GroupThreads(1)
+	public boolean reader(ThreadState state) {
+		ChosenItems snapshot = store.snapshot();
+		int pair = state.random.nextInt(size / 2) * 2;
+		boolean chosen = snapshot.contains(pair);
+		if (chosen != snapshot.contains(pair + 1)) {
+			throw new IllegalStateException("Torn move at " + pair);
+		}
+		if (++state.frames % FRAMES_PER_ITERATION == 0) {
+			checkSnapshot(snapshot);
+		}
+		return chosen;
+	}
+
+	/**
+	 * Change the selection from a background thread
+	 */
+	@Benchmark
+	@Group("model")
+	@GroupThreads(3)
+	public void writer(ThreadState state) {
+		int pair = state.random.nextInt(size / 2) * 2;
+		store.flipRange(pair, pair + 2);
+	}
+
+	/*
+	 * Iterate a whole snapshot: its size must match, and it must hold whole
+	 * pairs only, and about half of the items
+	 */
+	private void checkSnapshot(ChosenItems snapshot) {
+		if (snapshot.size() < size / 8) {
+			throw new IllegalStateException("Only " + snapshot.size()
+					+ " chosen: positions seen while being rebuilt");
+		}
+		int chosen = 0;
+		for (IntIterator it = snapshot.iterator(); it.hasNext();) {
+			int position = it.next();
+			if (!snapshot.contains(position ^ 1)) {
+				throw new IllegalStateException("Torn move at " + position);
+			}
+			chosen++;
+		}
+		if (chosen != snapshot.size()) {
+			throw new IllegalStateException("Size " + snapshot.size()
+					+ " but iterated " + chosen);
+		}
+	}
+}
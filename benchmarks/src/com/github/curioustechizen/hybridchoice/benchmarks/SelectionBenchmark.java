@@ -0,0 +1,143 @@
+package com.github.curioustechizen.hybridchoice.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.github.curioustechizen.hybridchoice.IntIterator;
+import com.github.curioustechizen.hybridchoice.SelectionModel;
+
+/**
+ * The hot paths of {@link SelectionModel}, for lists from 10 to 10M items and
+ * selections from sparse to full. Run with {@code -prof gc} to see the
+ * allocation rate next to the throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SelectionBenchmark {
+
+	/*
+	 * Random positions to probe, cycled through
+	 */
+	private static final int PROBES = 4096;
+
+	@Param({ "10", "1000", "100000", "10000000" })
+	public int size;
+
+	/**
+	 * The fraction of items chosen
+	 */
+	@Param({ "0.001", "0.1", "0.5", "1" })
+	public double density;
+
+	private SelectionModel model;
+
+	private final int[] probes = new int[PROBES];
+	private int probe;
+
+	private int rangeFrom, rangeTo;
+	private boolean rangeChosen;
+
+	private byte[] savedState;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		final int count = size;
+		model = new SelectionModel(new SelectionModel.Items() {
+
+			@Override
+			public int getCount() {
+				return count;
+			}
+
+			@Override
+			public long getItemId(int position) {
+				return position;
+			}
+		}, false);
+		Random random = new Random(42);
+		if (density >= 1) {
+			model.selectAll();
+		} else {
+			long chosen = Math.round(count * density);
+			for (long i = 0; i < chosen; i++) {
+				model.setItemChosen(random.nextInt(count), true);
+			}
+		}
+		for (int i = 0; i < PROBES; i++) {
+			probes[i] = random.nextInt(count);
+		}
+		rangeFrom = count / 4;
+		rangeTo = rangeFrom + Math.max(1, count / 100);
+		savedState = model.saveState();
+	}
+
+	private int nextProbe() {
+		probe = (probe + 1) & (PROBES - 1);
+		return probes[probe];
+	}
+
+	/**
+	 * Toggle an item and back, so that the density stays the same
+	 */
+	@Benchmark
+	public void toggle() {
+		int position = nextProbe();
+		model.toggleItem(position);
+		model.toggleItem(position);
+	}
+
+	@Benchmark
+	public boolean contains() {
+		return model.isItemChosen(nextProbe());
+	}
+
+	/**
+	 * Alternately choose and unchoose 1% of the items
+	 */
+	@Benchmark
+	public void rangeSelect() {
+		rangeChosen = !rangeChosen;
+		model.setRangeChosen(rangeFrom, rangeTo, rangeChosen);
+	}
+
+	@Benchmark
+	public int count() {
+		return model.getChosenItemsCount();
+	}
+
+	@Benchmark
+	public void iterate(Blackhole blackhole) {
+		IntIterator iterator = model.getChosenItems().iterator();
+		while (iterator.hasNext()) {
+			blackhole.consume(iterator.next());
+		}
+	}
+
+	@Benchmark
+	public byte[] save() {
+		return model.saveState();
+	}
+
+	@Benchmark
+	public void restore() {
+		model.restoreState(savedState);
+	}
+}
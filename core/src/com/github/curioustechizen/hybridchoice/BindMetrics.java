@@ -0,0 +1,303 @@
+package com.github.curioustechizen.hybridchoice;
+
+/**
+ * Counters and timings of a hybrid choice adapter, reported once per period.
+ * Pass one to {@link HybridChoiceAdapter#setMetrics(BindMetrics)} to enable
+ * them. Recording doesn't allocate; with no metrics set, the adapter only
+ * pays for a {@code null} check.
+ * <p>
+ * At the end of each period, the {@link Listener} is called with this object,
+ * and everything is then reset for the next period. The values are only
+ * valid during the call. Must only be used on the main thread.
+ */
+public final class BindMetrics {
+
+	/**
+	 * Receives the metrics at the end of each period
+	 */
+	public interface Listener {
+
+		/**
+		 * @param metrics
+		 *            The metrics of the period that just ended. Read them
+		 *            before returning; they are reset afterwards.
+		 */
+		void onReport(BindMetrics metrics);
+	}
+
+	/**
+	 * A histogram of non-negative values in power-of-two buckets, e.g.
+	 * nanoseconds. Bucket {@code i} counts the values below {@code 2^i} and
+	 * not below {@code 2^(i - 1)}; bucket 0 counts zeros.
+	 */
+	public static final class Histogram {
+
+		private final long[] buckets = new long[64];
+		private long count;
+		private long sum;
+		private long max;
+
+		Histogram() {
+		}
+
+		void record(long value) {
+			if (value < 0) {
+				value = 0;
+			}
+			buckets[64 - Long.numberOfLeadingZeros(value)]++;
+			count++;
+			sum += value;
+			if (value > max) {
+				max = value;
+			}
+		}
+
+		void reset() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = 0;
+			}
+			count = 0;
+			sum = 0;
+			max = 0;
+		}
+
+		/**
+		 * @return The number of values recorded
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return The sum of the values recorded
+		 */
+		public long getSum() {
+			return sum;
+		}
+
+		/**
+		 * @return The largest value recorded, or 0
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * @return The mean of the values recorded, or 0
+		 */
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * An upper bound of a percentile, to within a factor of two
+		 *
+		 * @param percentile
+		 *            The percentile, between 0 and 100
+		 * @return The upper end of the bucket the percentile falls into, or 0
+		 *         if nothing was recorded
+		 */
+		public long getPercentile(double percentile) {
+			long rank = (long) Math.ceil(count * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= rank && seen > 0) {
+					return i == 0 ? 0 : Math.min(max, (1L << i) - 1);
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * @param index
+		 *            The bucket, from 0 to 63
+		 * @return The number of values in a bucket
+		 */
+		public long getBucketCount(int index) {
+			return buckets[index];
+		}
+	}
+
+	private final long periodNanos;
+
+	private final Listener listener;
+
+	private long periodStart;
+
+	private long getViewCalls;
+	private long recycledRows;
+	private long inflatedRows;
+	private long rowsRestyled;
+	private long notifications;
+
+	/*
+	 * getView() calls since the last notification
+	 */
+	private long rowsSinceNotify;
+
+	private final Histogram userBindNanos = new Histogram();
+	private final Histogram stylingNanos = new Histogram();
+	private final Histogram rowsPerNotify = new Histogram();
+	private final Histogram selectionNanos = new Histogram();
+
+	/**
+	 * Constructor
+	 *
+	 * @param periodMillis
+	 *            How often to report
+	 * @param listener
+	 *            Receives the reports
+	 */
+	public BindMetrics(long periodMillis, Listener listener) {
+		if (listener == null) {
+			throw new IllegalArgumentException("listener must not be null");
+		}
+		this.periodNanos = periodMillis * 1000000L;
+		this.listener = listener;
+		this.periodStart = System.nanoTime();
+	}
+
+	/**
+	 * A row was bound by {@code getView()}
+	 *
+	 * @param recycled
+	 *            Whether a recycled row was passed in
+	 * @param userNanos
+	 *            The time spent in {@code getViewHca()}
+	 * @param libraryNanos
+	 *            The time spent styling the row
+	 */
+	void onRowBound(boolean recycled, long userNanos, long libraryNanos) {
+		getViewCalls++;
+		rowsSinceNotify++;
+		if (recycled) {
+			recycledRows++;
+		} else {
+			inflatedRows++;
+		}
+		userBindNanos.record(userNanos);
+		stylingNanos.record(libraryNanos);
+		reportIfDue(System.nanoTime());
+	}
+
+	/**
+	 * Visible rows were restyled in place after their state changed
+	 */
+	void onRowsRestyled(int rows) {
+		rowsRestyled += rows;
+	}
+
+	/**
+	 * The adapter notified that its data changed
+	 */
+	void onNotify() {
+		if (notifications > 0 || rowsSinceNotify > 0) {
+			rowsPerNotify.record(rowsSinceNotify);
+		}
+		notifications++;
+		rowsSinceNotify = 0;
+	}
+
+	/**
+	 * A selection operation took some time
+	 */
+	void onSelectionOperation(long nanos) {
+		selectionNanos.record(nanos);
+		reportIfDue(System.nanoTime());
+	}
+
+	private void reportIfDue(long now) {
+		if (now - periodStart < periodNanos) {
+			return;
+		}
+		listener.onReport(this);
+		periodStart = now;
+		getViewCalls = 0;
+		recycledRows = 0;
+		inflatedRows = 0;
+		rowsRestyled = 0;
+		notifications = 0;
+		userBindNanos.reset();
+		stylingNanos.reset();
+		rowsPerNotify.reset();
+		selectionNanos.reset();
+	}
+
+	/**
+	 * @return The length of the period in nanoseconds. A period ends at the
+	 *         first recorded event after it is due, so it may be longer.
+	 */
+	public long getPeriodNanos() {
+		return System.nanoTime() - periodStart;
+	}
+
+	/**
+	 * @return The number of {@code getView()} calls
+	 */
+	public long getGetViewCalls() {
+		return getViewCalls;
+	}
+
+	/**
+	 * @return The number of rows bound from a recycled view
+	 */
+	public long getRecycledRows() {
+		return recycledRows;
+	}
+
+	/**
+	 * @return The number of rows bound without a view to recycle, i.e.
+	 *         freshly inflated
+	 */
+	public long getInflatedRows() {
+		return inflatedRows;
+	}
+
+	/**
+	 * @return The number of visible rows restyled in place when their chosen
+	 *         or opened state changed, without {@code getView()}
+	 */
+	public long getRowsRestyled() {
+		return rowsRestyled;
+	}
+
+	/**
+	 * @return The number of data set change notifications
+	 */
+	public long getNotifications() {
+		return notifications;
+	}
+
+	/**
+	 * @return The time spent in {@code getViewHca()} per row, in nanoseconds
+	 */
+	public Histogram getUserBindNanos() {
+		return userBindNanos;
+	}
+
+	/**
+	 * @return The time the library spent styling each row in
+	 *         {@code getView()}, in nanoseconds
+	 */
+	public Histogram getStylingNanos() {
+		return stylingNanos;
+	}
+
+	/**
+	 * @return The number of rows bound between one data set change
+	 *         notification and the next
+	 */
+	public Histogram getRowsPerNotify() {
+		return rowsPerNotify;
+	}
+
+	/**
+	 * @return The time taken by each selection operation, e.g.
+	 *         {@code toggleItem()} or {@code selectAll()}, in nanoseconds,
+	 *         including restyling the visible rows
+	 */
+	public Histogram getSelectionNanos() {
+		return selectionNanos;
+	}
+}
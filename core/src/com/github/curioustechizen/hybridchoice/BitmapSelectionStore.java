@@ -0,0 +1,1196 @@
+package com.github.curioustechizen.hybridchoice;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * The default {@link SelectionStore}. Positions are kept in one of four
+ * layouts, whichever suits the current selection best:
+ * <ul>
+ * <li>A sorted {@code int[]} when few positions are chosen relative to the
+ * largest chosen position (sparse)
+ * <li>A word-packed bitmap of {@code long}s otherwise (dense)
+ * <li>Sorted, disjoint {@code [start, end)} runs after range operations, so
+ * that choosing a million consecutive positions costs a single run
+ * <li>Every position below an end except for a set of excluded ones
+ * (complement), when nearly all positions are chosen but the gaps are too
+ * scattered for runs, e.g. after "select all" and deselecting rows here and
+ * there
+ * </ul>
+ * The store switches between layouts as positions are added and removed.
+ * Nothing is boxed, and lookups never allocate. {@link #contains(int)} is
+ * O(1) for the dense layout and O(log n) for the others, and {@link #size()}
+ * is always O(1).
+ */
+public class BitmapSelectionStore implements SelectionStore {
+
+	/*
+	 * A sparse array smaller than this is never converted to a bitmap. Avoids
+	 * flip-flopping between layouts for tiny selections.
+	 */
+	private static final int MIN_DENSE_SIZE = 64;
+
+	/*
+	 * Ranges up to this long are applied one position at a time rather than
+	 * converting a sparse store to runs
+	 */
+	private static final int MIN_RUN_LENGTH = 32;
+
+	/*
+	 * A bitmap with fewer chosen positions than this is never converted to a
+	 * complement. Its gaps cost a few hundred bytes at most.
+	 */
+	private static final int MIN_COMPLEMENT_SIZE = 4096;
+
+	private static final int LAYOUT_SPARSE = 0;
+	private static final int LAYOUT_DENSE = 1;
+	private static final int LAYOUT_RUNS = 2;
+	private static final int LAYOUT_COMPLEMENT = 3;
+
+	private int layout = LAYOUT_SPARSE;
+
+	/*
+	 * Sparse layout: the first "size" entries are the chosen positions in
+	 * ascending order
+	 */
+	private int[] sparse = new int[8];
+
+	/*
+	 * Dense layout: bit (p & 63) of words[p >> 6] is set if p is chosen
+	 */
+	private long[] words;
+
+	/*
+	 * Run layout: the first "runCount" entries are disjoint, non-adjacent
+	 * [runStarts[i], runEnds[i]) ranges in ascending order
+	 */
+	private int[] runStarts, runEnds;
+	private int runCount;
+
+	/*
+	 * Complement layout: every position in [0, complementEnd) is chosen
+	 * except those in "excluded", and position complementEnd - 1 is chosen
+	 */
+	private int complementEnd;
+	private BitmapSelectionStore excluded;
+
+	/*
+	 * Whether the complement layout may be used. Not for the excluded
+	 * positions of a complement themselves.
+	 */
+	private final boolean complementAllowed;
+
+	/*
+	 * The number of chosen positions, for any layout
+	 */
+	private int size;
+
+	public BitmapSelectionStore() {
+		this(true);
+	}
+
+	private BitmapSelectionStore(boolean complementAllowed) {
+		this.complementAllowed = complementAllowed;
+	}
+
+	@Override
+	public boolean contains(int position) {
+		if (position < 0) {
+			return false;
+		}
+		switch (layout) {
+		case LAYOUT_DENSE:
+			int w = position >>> 6;
+			return w < words.length && (words[w] & (1L << position)) != 0;
+		case LAYOUT_RUNS:
+			int run = lastRunStartingAtOrBefore(position);
+			return run >= 0 && position < runEnds[run];
+		case LAYOUT_COMPLEMENT:
+			return position < complementEnd && !excluded.contains(position);
+		default:
+			return binarySearch(position) >= 0;
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public boolean add(int position) {
+		if (position < 0) {
+			throw new IllegalArgumentException("Negative position: "
+					+ position);
+		}
+		if (layout == LAYOUT_DENSE) {
+			int w = position >>> 6;
+			if (w >= words.length) {
+				growWords(w + 1);
+			}
+			long bit = 1L << position;
+			if ((words[w] & bit) != 0) {
+				return false;
+			}
+			words[w] |= bit;
+			size++;
+
+			/*
+			 * Checked now and then only, since finding the end of the bitmap
+			 * may take a while
+			 */
+			if ((size & 1023) == 0 && shouldBeComplement()) {
+				denseToComplement();
+			}
+			return true;
+		}
+		if (layout == LAYOUT_RUNS) {
+			int before = size;
+			runsAdd(position, position + 1);
+			optimizeRuns();
+			return size != before;
+		}
+		if (layout == LAYOUT_COMPLEMENT) {
+			int before = size;
+			if (position < complementEnd) {
+				excluded.remove(position);
+			} else {
+				if (position > complementEnd) {
+					excluded.addRange(complementEnd, position);
+				}
+				complementEnd = position + 1;
+			}
+			complementChanged();
+			return size != before;
+		}
+
+		int index = binarySearch(position);
+		if (index >= 0) {
+			return false;
+		}
+		int max = size == 0 ? position : Math.max(position, sparse[size - 1]);
+		if (shouldBeDense(size + 1, max)) {
+			sparseToDense(max);
+			return add(position);
+		}
+		index = -(index + 1);
+		if (size == sparse.length) {
+			int[] grown = new int[size + (size >> 1) + 1];
+			System.arraycopy(sparse, 0, grown, 0, size);
+			sparse = grown;
+		}
+		System.arraycopy(sparse, index, sparse, index + 1, size - index);
+		sparse[index] = position;
+		size++;
+		return true;
+	}
+
+	@Override
+	public boolean remove(int position) {
+		if (position < 0) {
+			return false;
+		}
+		if (layout == LAYOUT_DENSE) {
+			int w = position >>> 6;
+			long bit = 1L << position;
+			if (w >= words.length || (words[w] & bit) == 0) {
+				return false;
+			}
+			words[w] &= ~bit;
+			size--;
+			if (shouldBeSparse()) {
+				denseToSparse();
+			}
+			return true;
+		}
+		if (layout == LAYOUT_RUNS) {
+			int before = size;
+			runsRemove(position, position + 1);
+			optimizeRuns();
+			return size != before;
+		}
+		if (layout == LAYOUT_COMPLEMENT) {
+			if (position >= complementEnd || !excluded.add(position)) {
+				return false;
+			}
+			complementChanged();
+			return true;
+		}
+
+		int index = binarySearch(position);
+		if (index < 0) {
+			return false;
+		}
+		System.arraycopy(sparse, index + 1, sparse, index, size - index - 1);
+		size--;
+		return true;
+	}
+
+	@Override
+	public void addRange(int from, int to) {
+		checkRange(from, to);
+		if (from == to) {
+			return;
+		}
+		if (size == 0 || coversAll(from, to)) {
+			/*
+			 * Whatever was chosen lies inside the range, so the result is a
+			 * single run. This is what makes "select all" O(1).
+			 */
+			setSingleRun(from, to);
+			return;
+		}
+		if (layout == LAYOUT_DENSE) {
+			denseApply(from, to, RANGE_ADD);
+			if (shouldBeComplement()) {
+				denseToComplement();
+			}
+			return;
+		}
+		if (layout == LAYOUT_COMPLEMENT) {
+			if (from < complementEnd) {
+				excluded.removeRange(from, Math.min(to, complementEnd));
+			}
+			if (to > complementEnd) {
+				if (from > complementEnd) {
+					excluded.addRange(complementEnd, from);
+				}
+				complementEnd = to;
+			}
+			complementChanged();
+			return;
+		}
+		if (layout == LAYOUT_SPARSE && to - from <= MIN_RUN_LENGTH) {
+			for (int p = from; p < to; p++) {
+				add(p);
+			}
+			return;
+		}
+		if (layout == LAYOUT_SPARSE) {
+			sparseToRuns();
+		}
+		runsAdd(from, to);
+		optimizeRuns();
+	}
+
+	@Override
+	public void removeRange(int from, int to) {
+		checkRange(from, to);
+		if (from == to || size == 0) {
+			return;
+		}
+		if (coversAll(from, to)) {
+			clear();
+			return;
+		}
+		if (layout == LAYOUT_DENSE) {
+			denseApply(from, to, RANGE_REMOVE);
+			if (shouldBeSparse()) {
+				denseToSparse();
+			}
+			return;
+		}
+		if (layout == LAYOUT_COMPLEMENT) {
+			if (from >= complementEnd) {
+				/*
+				 * Nothing is chosen from complementEnd on
+				 */
+				return;
+			}
+			if (to >= complementEnd) {
+				excluded.removeRange(from, complementEnd);
+				complementEnd = from;
+			} else {
+				excluded.addRange(from, to);
+			}
+			complementChanged();
+			return;
+		}
+		if (layout == LAYOUT_SPARSE) {
+			int start = binarySearch(from);
+			int end = binarySearch(to);
+			start = start < 0 ? -(start + 1) : start;
+			end = end < 0 ? -(end + 1) : end;
+			System.arraycopy(sparse, end, sparse, start, size - end);
+			size -= end - start;
+			return;
+		}
+		runsRemove(from, to);
+		optimizeRuns();
+	}
+
+	@Override
+	public void flipRange(int from, int to) {
+		checkRange(from, to);
+		if (from == to) {
+			return;
+		}
+		if (size == 0) {
+			setSingleRun(from, to);
+			return;
+		}
+		if (layout == LAYOUT_DENSE) {
+			denseApply(from, to, RANGE_FLIP);
+			if (shouldBeSparse()) {
+				denseToSparse();
+			} else if (shouldBeComplement()) {
+				denseToComplement();
+			}
+			return;
+		}
+		if (layout == LAYOUT_COMPLEMENT) {
+			int end = Math.min(to, complementEnd);
+			if (from < end) {
+				excluded.flipRange(from, end);
+			}
+			if (to > complementEnd) {
+				if (from > complementEnd) {
+					excluded.addRange(complementEnd, from);
+				}
+				complementEnd = to;
+			}
+			complementChanged();
+			return;
+		}
+		if (layout == LAYOUT_SPARSE && to - from <= MIN_RUN_LENGTH) {
+			for (int p = from; p < to; p++) {
+				if (!remove(p)) {
+					add(p);
+				}
+			}
+			return;
+		}
+		if (layout == LAYOUT_SPARSE) {
+			sparseToRuns();
+		}
+		runsFlip(from, to);
+		optimizeRuns();
+	}
+
+	@Override
+	public void clear() {
+		layout = LAYOUT_SPARSE;
+		words = null;
+		runStarts = runEnds = null;
+		runCount = 0;
+		excluded = null;
+		complementEnd = 0;
+		if (sparse == null || sparse.length > 64) {
+			sparse = new int[8];
+		}
+		size = 0;
+	}
+
+	/**
+	 * Items have been inserted in [at, at + count). They are not chosen, and
+	 * chosen positions from {@code at} on move down by {@code count}. The
+	 * entries of the current layout are shifted in place, so this takes O(n)
+	 * time for the n entries after {@code at}.
+	 */
+	void insertRange(int at, int count) {
+		checkRange(at, at + count);
+		if (count > 0) {
+			shiftFrom(at, count);
+		}
+	}
+
+	/**
+	 * The items in [from, to) have been removed. They are no longer chosen,
+	 * and chosen positions after them move up. Takes O(n) time for the n
+	 * entries of the current layout after {@code from}.
+	 */
+	void deleteRange(int from, int to) {
+		checkRange(from, to);
+		if (from < to) {
+			removeRange(from, to);
+			shiftFrom(to, from - to);
+		}
+	}
+
+	@Override
+	public int nextPosition(int fromPosition) {
+		if (fromPosition < 0) {
+			fromPosition = 0;
+		}
+		if (layout == LAYOUT_DENSE) {
+			int w = fromPosition >>> 6;
+			if (w >= words.length) {
+				return -1;
+			}
+			long word = words[w] & (-1L << fromPosition);
+			while (true) {
+				if (word != 0) {
+					return (w << 6) + Long.numberOfTrailingZeros(word);
+				}
+				if (++w == words.length) {
+					return -1;
+				}
+				word = words[w];
+			}
+		}
+		if (layout == LAYOUT_RUNS) {
+			int run = firstRunEndingAfter(fromPosition);
+			return run < runCount ? Math.max(fromPosition, runStarts[run])
+					: -1;
+		}
+		if (layout == LAYOUT_COMPLEMENT) {
+			int next = fromPosition < complementEnd ? excluded
+					.nextAbsent(fromPosition) : -1;
+			return next < complementEnd ? next : -1;
+		}
+		int index = binarySearch(fromPosition);
+		if (index < 0) {
+			index = -(index + 1);
+		}
+		return index < size ? sparse[index] : -1;
+	}
+
+	@Override
+	public IntIterator iterator() {
+		return new IntIterator() {
+
+			private int next = nextPosition(0);
+
+			@Override
+			public boolean hasNext() {
+				return next >= 0;
+			}
+
+			@Override
+			public int next() {
+				if (next < 0) {
+					throw new NoSuchElementException();
+				}
+				int current = next;
+				next = current == Integer.MAX_VALUE ? -1
+						: nextPosition(current + 1);
+				return current;
+			}
+		};
+	}
+
+	@Override
+	public int[] toArray() {
+		int[] result = new int[size];
+		if (layout == LAYOUT_SPARSE) {
+			System.arraycopy(sparse, 0, result, 0, size);
+		} else if (layout == LAYOUT_RUNS) {
+			int i = 0;
+			for (int r = 0; r < runCount; r++) {
+				for (int p = runStarts[r]; p < runEnds[r]; p++) {
+					result[i++] = p;
+				}
+			}
+		} else {
+			int i = 0;
+			for (int p = nextPosition(0); p >= 0; p = nextPosition(p + 1)) {
+				result[i++] = p;
+			}
+		}
+		return result;
+	}
+
+	private static void checkRange(int from, int to) {
+		if (from < 0 || to < from) {
+			throw new IllegalArgumentException("Invalid range [" + from + ", "
+					+ to + ")");
+		}
+	}
+
+	/*
+	 * Whether every chosen position lies inside [from, to)
+	 */
+	private boolean coversAll(int from, int to) {
+		return from <= nextPosition(0) && to > lastPosition();
+	}
+
+	private int lastPosition() {
+		switch (layout) {
+		case LAYOUT_DENSE:
+			for (int w = words.length - 1; w >= 0; w--) {
+				if (words[w] != 0) {
+					return (w << 6) + 63 - Long.numberOfLeadingZeros(words[w]);
+				}
+			}
+			return -1;
+		case LAYOUT_RUNS:
+			return runCount == 0 ? -1 : runEnds[runCount - 1] - 1;
+		case LAYOUT_COMPLEMENT:
+			return complementEnd - 1;
+		default:
+			return size == 0 ? -1 : sparse[size - 1];
+		}
+	}
+
+	/*
+	 * The first position at or after a position that is not in the set. Not
+	 * for the complement layout.
+	 */
+	private int nextAbsent(int fromPosition) {
+		switch (layout) {
+		case LAYOUT_DENSE:
+			int w = fromPosition >>> 6;
+			if (w >= words.length) {
+				return fromPosition;
+			}
+			long word = ~words[w] & (-1L << fromPosition);
+			while (word == 0) {
+				if (++w == words.length) {
+					return w << 6;
+				}
+				word = ~words[w];
+			}
+			return (w << 6) + Long.numberOfTrailingZeros(word);
+		case LAYOUT_RUNS:
+			int run = lastRunStartingAtOrBefore(fromPosition);
+			return run >= 0 && fromPosition < runEnds[run] ? runEnds[run]
+					: fromPosition;
+		default:
+			int index = binarySearch(fromPosition);
+			if (index < 0) {
+				return fromPosition;
+			}
+			int position = fromPosition;
+			while (index < size && sparse[index] == position) {
+				index++;
+				position++;
+			}
+			return position;
+		}
+	}
+
+	/*
+	 * Roughly how many bits the current layout takes. Not for the complement
+	 * layout.
+	 */
+	private long estimatedBits() {
+		switch (layout) {
+		case LAYOUT_DENSE:
+			return (long) words.length * 64;
+		case LAYOUT_RUNS:
+			return (long) runCount * 64;
+		default:
+			return (long) size * 32;
+		}
+	}
+
+	/*
+	 * An int[] entry costs 32 bits, a bitmap costs one bit per position up to
+	 * the largest one. Switch once the array would be the bigger of the two.
+	 */
+	private static boolean shouldBeDense(int newSize, int maxPosition) {
+		return newSize >= MIN_DENSE_SIZE
+				&& (long) newSize * 32 > (long) maxPosition + 1;
+	}
+
+	/*
+	 * Switch back only once the array would be a quarter of the bitmap, so
+	 * that adding and removing around the threshold doesn't convert every
+	 * time.
+	 */
+	private boolean shouldBeSparse() {
+		return size < MIN_DENSE_SIZE / 2
+				|| (long) size * 32 * 4 < (long) words.length * 64;
+	}
+
+	/*
+	 * A run costs 64 bits. Leave the run layout once either a sparse array or
+	 * a bitmap would be smaller.
+	 */
+	private void optimizeRuns() {
+		if (runCount == 0) {
+			clear();
+			return;
+		}
+		long runBits = (long) runCount * 64;
+		if (runCount >= MIN_DENSE_SIZE / 2
+				&& runBits > runEnds[runCount - 1]) {
+			runsToDense();
+		} else if ((long) size * 32 < runBits) {
+			runsToSparse();
+		}
+	}
+
+	/*
+	 * A complement holds the gaps of the bitmap below its last chosen
+	 * position, at most 32 bits each. Switch once that is a quarter of the
+	 * bitmap.
+	 */
+	private boolean shouldBeComplement() {
+		if (!complementAllowed || size < MIN_COMPLEMENT_SIZE) {
+			return false;
+		}
+		long end = lastPosition() + 1L;
+		return (end - size) * 32 * 4 < end;
+	}
+
+	/*
+	 * Update the size and end of the complement after changing it, and leave
+	 * the complement layout once a bitmap would be smaller. Together with
+	 * shouldBeComplement() this leaves a factor of four between switching
+	 * one way and back.
+	 */
+	private void complementChanged() {
+		int end = complementEnd;
+		if (end > 0 && excluded.contains(end - 1)) {
+			int start = excluded.runStartBefore(end);
+			excluded.removeRange(start, end);
+			end = start;
+		}
+		complementEnd = end;
+		size = end - excluded.size();
+		if (size == 0) {
+			clear();
+		} else if (excluded.estimatedBits() > end) {
+			complementToDense();
+		}
+	}
+
+	/*
+	 * The start of the run of positions in the set that ends at "end", which
+	 * must be in the set
+	 */
+	private int runStartBefore(int end) {
+		if (layout == LAYOUT_RUNS) {
+			return runStarts[lastRunStartingBefore(end)];
+		}
+		int position = end - 1;
+		while (position > 0 && contains(position - 1)) {
+			position--;
+		}
+		return position;
+	}
+
+	private void denseToComplement() {
+		int end = lastPosition() + 1;
+		BitmapSelectionStore gaps = new BitmapSelectionStore(false);
+		for (int p = nextAbsent(0); p < end; p = nextAbsent(p + 1)) {
+			gaps.add(p);
+		}
+		excluded = gaps;
+		complementEnd = end;
+		words = null;
+		layout = LAYOUT_COMPLEMENT;
+	}
+
+	private void complementToDense() {
+		int end = complementEnd;
+		BitmapSelectionStore gaps = excluded;
+		words = new long[((end - 1) >>> 6) + 1];
+		fillWords(0, end, RANGE_ADD);
+		for (int p = gaps.nextPosition(0); p >= 0; p = gaps.nextPosition(p + 1)) {
+			words[p >>> 6] &= ~(1L << p);
+		}
+		excluded = null;
+		complementEnd = 0;
+		layout = LAYOUT_DENSE;
+		if (shouldBeSparse()) {
+			denseToSparse();
+		}
+	}
+
+	private void setSingleRun(int from, int to) {
+		sparse = null;
+		words = null;
+		excluded = null;
+		complementEnd = 0;
+		runStarts = new int[4];
+		runEnds = new int[4];
+		runStarts[0] = from;
+		runEnds[0] = to;
+		runCount = 1;
+		size = to - from;
+		layout = LAYOUT_RUNS;
+	}
+
+	private void sparseToDense(int maxPosition) {
+		long[] bits = new long[(maxPosition >>> 6) + 1];
+		for (int i = 0; i < size; i++) {
+			int p = sparse[i];
+			bits[p >>> 6] |= 1L << p;
+		}
+		words = bits;
+		sparse = null;
+		layout = LAYOUT_DENSE;
+	}
+
+	private void denseToSparse() {
+		int[] positions = new int[Math.max(8, size + (size >> 1))];
+		int i = 0;
+		for (int w = 0; w < words.length; w++) {
+			long word = words[w];
+			while (word != 0) {
+				positions[i++] = (w << 6) + Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+			}
+		}
+		sparse = positions;
+		words = null;
+		layout = LAYOUT_SPARSE;
+	}
+
+	private void sparseToRuns() {
+		int[] starts = new int[Math.max(4, size)];
+		int[] ends = new int[starts.length];
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			int p = sparse[i];
+			if (count > 0 && ends[count - 1] == p) {
+				ends[count - 1]++;
+			} else {
+				starts[count] = p;
+				ends[count++] = p + 1;
+			}
+		}
+		runStarts = starts;
+		runEnds = ends;
+		runCount = count;
+		sparse = null;
+		layout = LAYOUT_RUNS;
+	}
+
+	private void runsToSparse() {
+		int[] positions = new int[Math.max(8, size + (size >> 1))];
+		int i = 0;
+		for (int r = 0; r < runCount; r++) {
+			for (int p = runStarts[r]; p < runEnds[r]; p++) {
+				positions[i++] = p;
+			}
+		}
+		sparse = positions;
+		runStarts = runEnds = null;
+		runCount = 0;
+		layout = LAYOUT_SPARSE;
+	}
+
+	private void runsToDense() {
+		long[] bits = new long[((runEnds[runCount - 1] - 1) >>> 6) + 1];
+		words = bits;
+		for (int r = 0; r < runCount; r++) {
+			fillWords(runStarts[r], runEnds[r], RANGE_ADD);
+		}
+		runStarts = runEnds = null;
+		runCount = 0;
+		layout = LAYOUT_DENSE;
+	}
+
+	private void growWords(int minLength) {
+		long[] grown = new long[Math.max(minLength, words.length
+				+ (words.length >> 1))];
+		System.arraycopy(words, 0, grown, 0, words.length);
+		words = grown;
+	}
+
+	/*
+	 * Move the chosen positions from "from" on by "by". The positions they
+	 * leave behind are not chosen; when moving up, those they move onto must
+	 * not be chosen either.
+	 */
+	private void shiftFrom(int from, int by) {
+		if (size == 0) {
+			return;
+		}
+		switch (layout) {
+		case LAYOUT_DENSE:
+			denseShift(from, by);
+			break;
+		case LAYOUT_RUNS:
+			runsShift(from, by);
+			break;
+		case LAYOUT_COMPLEMENT:
+			complementShift(from, by);
+			break;
+		default:
+			int index = binarySearch(from);
+			for (int i = index < 0 ? -(index + 1) : index; i < size; i++) {
+				sparse[i] += by;
+			}
+		}
+	}
+
+	private void denseShift(int from, int by) {
+		long[] source = words;
+		int end = source.length << 6;
+		if (from >= end) {
+			return;
+		}
+		int target = from + by;
+		long[] shifted = new long[((end + Math.max(0, by) - 1) >>> 6) + 1];
+		System.arraycopy(source, 0, shifted, 0, Math.min(source.length,
+				shifted.length));
+		words = shifted;
+		fillWords(Math.min(from, target), shifted.length << 6, RANGE_REMOVE);
+		long firstMask = -1L << target;
+		for (int w = target >>> 6; w < shifted.length; w++) {
+			shifted[w] |= bitsAt(source, (w << 6) - by) & firstMask;
+			firstMask = -1L;
+		}
+	}
+
+	/*
+	 * The 64 bits of a bitmap starting at a position, which may be negative.
+	 * Bits outside of the bitmap are 0.
+	 */
+	private static long bitsAt(long[] bits, int position) {
+		if (position < 0) {
+			return position > -64 ? bits[0] << -position : 0;
+		}
+		int w = position >>> 6;
+		if (w >= bits.length) {
+			return 0;
+		}
+		int offset = position & 63;
+		long result = bits[w] >>> offset;
+		if (offset != 0 && w + 1 < bits.length) {
+			result |= bits[w + 1] << -offset;
+		}
+		return result;
+	}
+
+	private void runsShift(int from, int by) {
+		int first = firstRunEndingAfter(from);
+		if (first == runCount) {
+			return;
+		}
+		if (runStarts[first] < from) {
+			/*
+			 * Only when moving down: split the run at the inserted items
+			 */
+			replaceRuns(first, 1, runStarts[first], from, from + by,
+					runEnds[first] + by, 2);
+			first += 2;
+		}
+		for (int r = first; r < runCount; r++) {
+			runStarts[r] += by;
+			runEnds[r] += by;
+		}
+		if (first > 0 && first < runCount
+				&& runEnds[first - 1] == runStarts[first]) {
+			replaceRuns(first - 1, 2, runStarts[first - 1], runEnds[first],
+					0, 0, 1);
+		}
+	}
+
+	private void complementShift(int from, int by) {
+		if (from + Math.min(0, by) >= complementEnd) {
+			/*
+			 * Nothing is chosen from complementEnd on
+			 */
+			return;
+		}
+		if (by > 0) {
+			excluded.shiftFrom(from, by);
+			excluded.addRange(from, from + by);
+		} else {
+			excluded.removeRange(from + by, from);
+			excluded.shiftFrom(from, by);
+		}
+		complementEnd += by;
+		complementChanged();
+	}
+
+	/*
+	 * Range operations on the dense layout
+	 */
+	private static final int RANGE_ADD = 0;
+	private static final int RANGE_REMOVE = 1;
+	private static final int RANGE_FLIP = 2;
+
+	private void denseApply(int from, int to, int operation) {
+		if (operation != RANGE_REMOVE && ((to - 1) >>> 6) >= words.length) {
+			growWords(((to - 1) >>> 6) + 1);
+		}
+		if (operation == RANGE_REMOVE) {
+			to = Math.min(to, words.length << 6);
+			if (from >= to) {
+				return;
+			}
+		}
+		size -= Math.max(0, countWords(from, to));
+		fillWords(from, to, operation);
+		size += countWords(from, to);
+	}
+
+	/*
+	 * The number of set bits in [from, to) of the bitmap
+	 */
+	private int countWords(int from, int to) {
+		int firstWord = from >>> 6;
+		int lastWord = (to - 1) >>> 6;
+		long firstMask = -1L << from;
+		long lastMask = -1L >>> -to;
+		if (firstWord == lastWord) {
+			return Long.bitCount(words[firstWord] & firstMask & lastMask);
+		}
+		int count = Long.bitCount(words[firstWord] & firstMask);
+		for (int w = firstWord + 1; w < lastWord; w++) {
+			count += Long.bitCount(words[w]);
+		}
+		return count + Long.bitCount(words[lastWord] & lastMask);
+	}
+
+	private void fillWords(int from, int to, int operation) {
+		int firstWord = from >>> 6;
+		int lastWord = (to - 1) >>> 6;
+		long firstMask = -1L << from;
+		long lastMask = -1L >>> -to;
+		if (firstWord == lastWord) {
+			applyMask(firstWord, firstMask & lastMask, operation);
+			return;
+		}
+		applyMask(firstWord, firstMask, operation);
+		for (int w = firstWord + 1; w < lastWord; w++) {
+			applyMask(w, -1L, operation);
+		}
+		applyMask(lastWord, lastMask, operation);
+	}
+
+	private void applyMask(int w, long mask, int operation) {
+		switch (operation) {
+		case RANGE_ADD:
+			words[w] |= mask;
+			break;
+		case RANGE_REMOVE:
+			words[w] &= ~mask;
+			break;
+		default:
+			words[w] ^= mask;
+		}
+	}
+
+	/*
+	 * Add [from, to) to the runs. Runs that overlap or touch the range are
+	 * merged into it.
+	 */
+	private void runsAdd(int from, int to) {
+		int first = firstRunEndingAtOrAfter(from);
+		int last = lastRunStartingAtOrBefore(to);
+		if (first > last) {
+			replaceRuns(first, 0, from, to, 0, 0, 1);
+			size += to - from;
+			return;
+		}
+		int start = Math.min(from, runStarts[first]);
+		int end = Math.max(to, runEnds[last]);
+		int covered = 0;
+		for (int r = first; r <= last; r++) {
+			covered += runEnds[r] - runStarts[r];
+		}
+		replaceRuns(first, last - first + 1, start, end, 0, 0, 1);
+		size += (end - start) - covered;
+	}
+
+	/*
+	 * Remove [from, to) from the runs, splitting the runs at either end if
+	 * they stick out of the range
+	 */
+	private void runsRemove(int from, int to) {
+		int first = firstRunEndingAfter(from);
+		int last = lastRunStartingBefore(to);
+		if (first > last) {
+			return;
+		}
+		int removed = 0;
+		for (int r = first; r <= last; r++) {
+			removed += Math.min(to, runEnds[r]) - Math.max(from, runStarts[r]);
+		}
+		int leftStart = runStarts[first];
+		int rightEnd = runEnds[last];
+		if (leftStart < from && rightEnd > to) {
+			replaceRuns(first, last - first + 1, leftStart, from, to, rightEnd,
+					2);
+		} else if (leftStart < from) {
+			replaceRuns(first, last - first + 1, leftStart, from, 0, 0, 1);
+		} else if (rightEnd > to) {
+			replaceRuns(first, last - first + 1, to, rightEnd, 0, 0, 1);
+		} else {
+			replaceRuns(first, last - first + 1, 0, 0, 0, 0, 0);
+		}
+		size -= removed;
+	}
+
+	/*
+	 * Flip [from, to): the gaps between the runs inside the range become the
+	 * new runs
+	 */
+	private void runsFlip(int from, int to) {
+		int first = firstRunEndingAfter(from);
+		int last = lastRunStartingBefore(to);
+		int overlapping = Math.max(0, last - first + 1);
+		int[] starts = new int[overlapping + 3];
+		int[] ends = new int[overlapping + 3];
+		int count = 0;
+		int covered = 0;
+		int cursor = from;
+		if (overlapping > 0 && runStarts[first] < from) {
+			starts[count] = runStarts[first];
+			ends[count++] = from;
+		}
+		for (int r = first; r <= last; r++) {
+			int start = Math.max(from, runStarts[r]);
+			int end = Math.min(to, runEnds[r]);
+			covered += end - start;
+			if (cursor < start) {
+				starts[count] = cursor;
+				ends[count++] = start;
+			}
+			cursor = end;
+		}
+		if (cursor < to) {
+			starts[count] = cursor;
+			ends[count++] = to;
+		}
+		if (overlapping > 0 && runEnds[last] > to) {
+			starts[count] = to;
+			ends[count++] = runEnds[last];
+		}
+
+		/*
+		 * Merge with the untouched neighbours where they now meet
+		 */
+		int replaceFrom = first;
+		int replaceCount = overlapping;
+		if (count > 0 && replaceFrom > 0
+				&& runEnds[replaceFrom - 1] == starts[0]) {
+			starts[0] = runStarts[replaceFrom - 1];
+			replaceFrom--;
+			replaceCount++;
+		}
+		int after = replaceFrom + replaceCount;
+		if (count > 0 && after < runCount && runStarts[after] == ends[count - 1]) {
+			ends[count - 1] = runEnds[after];
+			replaceCount++;
+		}
+		spliceRuns(replaceFrom, replaceCount, starts, ends, count);
+		size += (to - from) - 2 * covered;
+	}
+
+	/*
+	 * Replace "removeCount" runs starting at "index" with up to two new runs
+	 */
+	private void replaceRuns(int index, int removeCount, int start1, int end1,
+			int start2, int end2, int newCount) {
+		int delta = newCount - removeCount;
+		if (delta > 0 && runCount + delta > runStarts.length) {
+			int capacity = Math.max(runCount + delta, runStarts.length
+					+ (runStarts.length >> 1));
+			runStarts = Arrays.copyOf(runStarts, capacity);
+			runEnds = Arrays.copyOf(runEnds, capacity);
+		}
+		int tail = runCount - index - removeCount;
+		if (delta != 0 && tail > 0) {
+			System.arraycopy(runStarts, index + removeCount, runStarts, index
+					+ newCount, tail);
+			System.arraycopy(runEnds, index + removeCount, runEnds, index
+					+ newCount, tail);
+		}
+		if (newCount > 0) {
+			runStarts[index] = start1;
+			runEnds[index] = end1;
+		}
+		if (newCount > 1) {
+			runStarts[index + 1] = start2;
+			runEnds[index + 1] = end2;
+		}
+		runCount += delta;
+	}
+
+	/*
+	 * Replace "removeCount" runs starting at "index" with any number of runs
+	 */
+	private void spliceRuns(int index, int removeCount, int[] starts,
+			int[] ends, int newCount) {
+		int delta = newCount - removeCount;
+		if (runCount + delta > runStarts.length) {
+			int capacity = Math.max(runCount + delta, runStarts.length
+					+ (runStarts.length >> 1));
+			runStarts = Arrays.copyOf(runStarts, capacity);
+			runEnds = Arrays.copyOf(runEnds, capacity);
+		}
+		int tail = runCount - index - removeCount;
+		if (tail > 0) {
+			System.arraycopy(runStarts, index + removeCount, runStarts, index
+					+ newCount, tail);
+			System.arraycopy(runEnds, index + removeCount, runEnds, index
+					+ newCount, tail);
+		}
+		System.arraycopy(starts, 0, runStarts, index, newCount);
+		System.arraycopy(ends, 0, runEnds, index, newCount);
+		runCount += delta;
+	}
+
+	/*
+	 * Index of the first run with runEnds >= position, or runCount
+	 */
+	private int firstRunEndingAtOrAfter(int position) {
+		int low = 0;
+		int high = runCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (runEnds[mid] < position) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/*
+	 * Index of the first run with runEnds > position, or runCount
+	 */
+	private int firstRunEndingAfter(int position) {
+		return position == Integer.MAX_VALUE ? runCount
+				: firstRunEndingAtOrAfter(position + 1);
+	}
+
+	/*
+	 * Index of the last run with runStarts <= position, or -1
+	 */
+	private int lastRunStartingAtOrBefore(int position) {
+		int low = 0;
+		int high = runCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (runStarts[mid] <= position) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low - 1;
+	}
+
+	/*
+	 * Index of the last run with runStarts < position, or -1
+	 */
+	private int lastRunStartingBefore(int position) {
+		return position == 0 ? -1 : lastRunStartingAtOrBefore(position - 1);
+	}
+
+	/*
+	 * Same contract as Arrays.binarySearch, over the first "size" entries of
+	 * the sparse array
+	 */
+	private int binarySearch(int position) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int value = sparse[mid];
+			if (value < position) {
+				low = mid + 1;
+			} else if (value > position) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+}
@@ -0,0 +1,95 @@
+package com.github.curioustechizen.hybridchoice;
+
+/**
+ * An action on all chosen items, such as export, share, move or delete, run
+ * by {@link HybridChoiceAdapter#runBulkAction(BulkAction)} on a worker thread
+ * so that large selections don't block the UI.
+ *
+ * @param <T>
+ *            The type of the items
+ */
+public interface BulkAction<T> {
+
+	/**
+	 * Process one item. Called on a worker thread, in ascending order of
+	 * position, so it must not touch the adapter or any views.
+	 *
+	 * @param position
+	 *            The position of the item in the unfiltered list when the
+	 *            action was started
+	 * @param item
+	 *            The item
+	 * @return {@code true} if the item is to be removed from the adapter when
+	 *         the action finishes, e.g. because it was deleted or moved.
+	 *         Ignored for a {@link PagedList}, which is read-only.
+	 * @throws RuntimeException
+	 *             To stop the action. The items processed before are still
+	 *             removed if asked to, and
+	 *             {@link #onFailed(int, int, RuntimeException)} is called
+	 *             instead of {@link #onFinished(int, int, boolean)}.
+	 */
+	boolean process(int position, T item);
+
+	/**
+	 * Report progress, e.g. in the Contextual Action Bar. Called on the main
+	 * thread, a few times per second at most.
+	 *
+	 * @param done
+	 *            The number of items processed so far
+	 * @param total
+	 *            The number of items to process
+	 */
+	void onProgress(int done, int total);
+
+	/**
+	 * The action is over. Called on the main thread, after the items to
+	 * remove have been removed, inside a batch so that the changes made here
+	 * are reported along with the removal.
+	 *
+	 * @param done
+	 *            The number of items processed
+	 * @param total
+	 *            The number of items there were to process
+	 * @param cancelled
+	 *            Whether the action was cancelled before processing all
+	 *            items. The items processed until then are still removed.
+	 */
+	void onFinished(int done, int total, boolean cancelled);
+
+	/**
+	 * Processing an item threw an exception, which ended the action. Called
+	 * like {@link #onFinished(int, int, boolean)}: on the main thread, after
+	 * the items processed before have been removed if asked to, inside a
+	 * batch.
+	 *
+	 * @param done
+	 *            The number of items processed, not counting the one that
+	 *            failed
+	 * @param total
+	 *            The number of items there were to process
+	 * @param error
+	 *            What {@link #process(int, Object)} threw
+	 */
+	void onFailed(int done, int total, RuntimeException error);
+
+	/**
+	 * A running bulk action
+	 */
+	interface Task {
+
+		/**
+		 * Stop processing items. Items already processed are still removed if
+		 * asked to, and {@link BulkAction#onFinished(int, int, boolean)} is
+		 * still called. Must be called on the main thread.
+		 */
+		void cancel();
+
+		/**
+		 * @return {@code true} once
+		 *         {@link BulkAction#onFinished(int, int, boolean)} or
+		 *         {@link BulkAction#onFailed(int, int, RuntimeException)} has
+		 *         been called
+		 */
+		boolean isFinished();
+	}
+}
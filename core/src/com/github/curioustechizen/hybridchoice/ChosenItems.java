@@ -0,0 +1,62 @@
+package com.github.curioustechizen.hybridchoice;
+
+/**
+ * A read-only set of chosen positions. None of the methods box the positions,
+ * and {@link #contains(int)} does not allocate.
+ */
+public interface ChosenItems {
+
+	/**
+	 * Whether a position is in this set
+	 *
+	 * @param position
+	 *            The position to look up
+	 * @return {@code true} if the position is chosen, {@code false} otherwise
+	 */
+	boolean contains(int position);
+
+	/**
+	 * Get the number of chosen positions
+	 *
+	 * @return The number of positions in this set
+	 */
+	int size();
+
+	/**
+	 * Whether this set is empty
+	 *
+	 * @return {@code true} if there are no chosen positions
+	 */
+	boolean isEmpty();
+
+	/**
+	 * Get the smallest chosen position that is greater than or equal to
+	 * {@code fromPosition}. This allows iterating over the set without
+	 * allocating anything:
+	 *
+	 * <pre>
+	 * for (int p = items.nextPosition(0); p &gt;= 0; p = items.nextPosition(p + 1)) {
+	 * 	// ...
+	 * }
+	 * </pre>
+	 *
+	 * @param fromPosition
+	 *            The position to start looking from (inclusive)
+	 * @return The next chosen position, or {@code -1} if there is none
+	 */
+	int nextPosition(int fromPosition);
+
+	/**
+	 * Get an iterator over the chosen positions, in ascending order
+	 *
+	 * @return A primitive iterator over the chosen positions
+	 */
+	IntIterator iterator();
+
+	/**
+	 * Copy the chosen positions into a new array
+	 *
+	 * @return The chosen positions in ascending order
+	 */
+	int[] toArray();
+}
@@ -0,0 +1,543 @@
+package com.github.curioustechizen.hybridchoice;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A thread-safe {@link SelectionStore}, for selections that are changed from
+ * background threads, e.g. a sync service de-choosing items deleted on the
+ * server, while the UI thread binds rows.
+ * <p>
+ * The chosen positions are kept in an immutable bitmap split into pages of
+ * 4096 positions. Writers serialise on a lock, copy the pages they change and
+ * the table of pages, and publish the result with a single volatile write;
+ * untouched pages are shared with the previous version, and pages that are
+ * entirely chosen share one constant page. Readers never block: every read
+ * works on the version current when it starts, so {@link #size()}, an
+ * iteration or a {@link #snapshot()} always describe one consistent state.
+ * <p>
+ * A write costs O(n / 4096) to copy the table, plus O(1) per page touched,
+ * so this is meant for selections that are read far more often than they
+ * are written. Pass it to
+ * {@link HybridChoiceAdapter#setSelectionStore(SelectionStore)} and tell the
+ * adapter about writes from other threads with
+ * {@link HybridChoiceAdapter#notifySelectionStoreChanged()} on the main
+ * thread. When items are inserted or removed, the adapter moves the chosen
+ * positions with {@link #insertRange(int, int)} and
+ * {@link #deleteRange(int, int)}, which readers see happen all at once.
+ */
+public class ConcurrentSelectionStore implements SelectionStore {
+
+	/*
+	 * 64 words of 64 bits: 4096 positions per page
+	 */
+	private static final int PAGE_SHIFT = 12;
+	private static final int PAGE_WORDS = 1 << (PAGE_SHIFT - 6);
+	private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+	/*
+	 * Shared by every page whose positions are all chosen. Never written to.
+	 */
+	private static final long[] FULL_PAGE = new long[PAGE_WORDS];
+	static {
+		Arrays.fill(FULL_PAGE, -1L);
+	}
+
+	private static final int RANGE_ADD = 0;
+	private static final int RANGE_REMOVE = 1;
+	private static final int RANGE_FLIP = 2;
+
+	private final Object writeLock = new Object();
+
+	/*
+	 * The current version. Replaced, never modified.
+	 */
+	private volatile Snapshot current = Snapshot.EMPTY;
+
+	/**
+	 * Get the chosen positions as they are now
+	 *
+	 * @return An immutable view of the current chosen positions, which does
+	 *         not reflect later changes. Taking it costs nothing.
+	 */
+	public ChosenItems snapshot() {
+		return current;
+	}
+
+	@Override
+	public boolean contains(int position) {
+		return current.contains(position);
+	}
+
+	@Override
+	public int size() {
+		return current.size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return current.size == 0;
+	}
+
+	@Override
+	public int nextPosition(int fromPosition) {
+		return current.nextPosition(fromPosition);
+	}
+
+	@Override
+	public IntIterator iterator() {
+		return current.iterator();
+	}
+
+	@Override
+	public int[] toArray() {
+		return current.toArray();
+	}
+
+	@Override
+	public boolean add(int position) {
+		if (position < 0) {
+			throw new IllegalArgumentException("Negative position: "
+					+ position);
+		}
+		synchronized (writeLock) {
+			if (current.contains(position)) {
+				return false;
+			}
+			apply(position, position + 1, RANGE_ADD);
+			return true;
+		}
+	}
+
+	@Override
+	public boolean remove(int position) {
+		synchronized (writeLock) {
+			if (!current.contains(position)) {
+				return false;
+			}
+			apply(position, position + 1, RANGE_REMOVE);
+			return true;
+		}
+	}
+
+	@Override
+	public void addRange(int from, int to) {
+		checkRange(from, to);
+		synchronized (writeLock) {
+			apply(from, to, RANGE_ADD);
+		}
+	}
+
+	@Override
+	public void removeRange(int from, int to) {
+		checkRange(from, to);
+		synchronized (writeLock) {
+			apply(from, to, RANGE_REMOVE);
+		}
+	}
+
+	@Override
+	public void flipRange(int from, int to) {
+		checkRange(from, to);
+		synchronized (writeLock) {
+			apply(from, to, RANGE_FLIP);
+		}
+	}
+
+	@Override
+	public void clear() {
+		synchronized (writeLock) {
+			current = Snapshot.EMPTY;
+		}
+	}
+
+	/**
+	 * Items have been inserted in [at, at + count). They are not chosen, and
+	 * chosen positions from {@code at} on move down by {@code count}, in one
+	 * write. Takes O(n / 64) time for the n positions after {@code at}.
+	 */
+	public void insertRange(int at, int count) {
+		checkRange(at, at + count);
+		synchronized (writeLock) {
+			move(at, at, count);
+		}
+	}
+
+	/**
+	 * The items in [from, to) have been removed. They are no longer chosen,
+	 * and chosen positions after them move up, in one write. Takes O(n / 64)
+	 * time for the n positions after {@code from}.
+	 */
+	public void deleteRange(int from, int to) {
+		checkRange(from, to);
+		synchronized (writeLock) {
+			move(from, to, from - to);
+		}
+	}
+
+	/**
+	 * Replace the chosen positions in [from, to) with others, in one write
+	 *
+	 * @param positions
+	 *            The positions to choose, in any order, all in [from, to)
+	 * @param count
+	 *            How many of them there are
+	 */
+	void replaceRange(int from, int to, int[] positions, int count) {
+		checkRange(from, to);
+		synchronized (writeLock) {
+			Snapshot old = current;
+			int length = old.pages.length;
+			for (int i = 0; i < count; i++) {
+				length = Math.max(length, (positions[i] >>> PAGE_SHIFT) + 1);
+			}
+			long[][] pages = Arrays.copyOf(old.pages, length);
+			boolean[] owned = new boolean[length];
+			long size = old.size;
+
+			/*
+			 * Clear the range; the pages that are left partly chosen are
+			 * fresh copies that can be written to
+			 */
+			if (from < to && (from >>> PAGE_SHIFT) < old.pages.length) {
+				int firstPage = from >>> PAGE_SHIFT;
+				int lastPage = Math.min((to - 1) >>> PAGE_SHIFT,
+						old.pages.length - 1);
+				for (int page = firstPage; page <= lastPage; page++) {
+					long[] words = pages[page];
+					int base = page << PAGE_SHIFT;
+					int start = Math.max(from, base) - base;
+					int end = (int) Math.min((long) to - base, PAGE_SIZE);
+					size -= countPage(words);
+					words = start == 0 && end == PAGE_SIZE ? null : partialPage(
+							words, start, end, RANGE_REMOVE);
+					size += countPage(words);
+					pages[page] = words;
+					owned[page] = words != null && words != FULL_PAGE;
+				}
+			}
+
+			for (int i = 0; i < count; i++) {
+				int position = positions[i];
+				int page = position >>> PAGE_SHIFT;
+				long[] words = pages[page];
+				if (words == FULL_PAGE) {
+					continue;
+				}
+				if (!owned[page]) {
+					words = words != null ? words.clone() : new long[PAGE_WORDS];
+					pages[page] = words;
+					owned[page] = true;
+				}
+				int word = (position >>> 6) & (PAGE_WORDS - 1);
+				long bit = 1L << position;
+				if ((words[word] & bit) == 0) {
+					words[word] |= bit;
+					size++;
+				}
+			}
+			for (int page = 0; page < length; page++) {
+				if (owned[page] && countPage(pages[page]) == PAGE_SIZE) {
+					pages[page] = FULL_PAGE;
+				}
+			}
+			current = new Snapshot(pages, (int) size);
+		}
+	}
+
+	private static void checkRange(int from, int to) {
+		if (from < 0 || to < from) {
+			throw new IllegalArgumentException("Invalid range [" + from + ", "
+					+ to + ")");
+		}
+	}
+
+	/*
+	 * Publish a new version with an operation applied to [from, to). Called
+	 * with the write lock held.
+	 */
+	private void apply(int from, int to, int operation) {
+		Snapshot old = current;
+		if (from == to || (operation == RANGE_REMOVE && old.size == 0)) {
+			return;
+		}
+		int firstPage = from >>> PAGE_SHIFT;
+		int lastPage = (to - 1) >>> PAGE_SHIFT;
+		int length = old.pages.length;
+		if (operation == RANGE_REMOVE) {
+			if (firstPage >= length) {
+				return;
+			}
+			lastPage = Math.min(lastPage, length - 1);
+		} else if (lastPage >= length) {
+			length = lastPage + 1;
+		}
+		long[][] pages = Arrays.copyOf(old.pages, length);
+		long size = old.size;
+		for (int page = firstPage; page <= lastPage; page++) {
+			long[] words = pages[page];
+			int base = page << PAGE_SHIFT;
+			int start = Math.max(from, base) - base;
+			int end = (int) Math.min((long) to - base, PAGE_SIZE);
+			size -= countPage(words);
+			words = start == 0 && end == PAGE_SIZE ? wholePage(words,
+					operation) : partialPage(words, start, end, operation);
+			size += countPage(words);
+			pages[page] = words;
+		}
+		current = new Snapshot(pages, (int) size);
+	}
+
+	/*
+	 * Publish a version in which the positions before from stay, those in
+	 * [from, end) are gone, and those from end on move by delta, leaving
+	 * [from, end + delta) empty. Pages before from are shared with the old
+	 * version. Called with the write lock held.
+	 */
+	private void move(int from, int end, int delta) {
+		Snapshot old = current;
+		long oldLimit = (long) old.pages.length << PAGE_SHIFT;
+		if (old.size == 0 || from >= oldLimit || (from == end && delta == 0)) {
+			return;
+		}
+		long limit = Math.min(oldLimit + Math.max(delta, 0),
+				(long) Integer.MAX_VALUE + 1);
+		int length = (int) ((limit + PAGE_SIZE - 1) >>> PAGE_SHIFT);
+		int firstPage = from >>> PAGE_SHIFT;
+		long movedFrom = (long) end + delta;
+		long[][] pages = Arrays.copyOf(old.pages, length);
+		long size = old.size;
+		for (int page = firstPage; page < old.pages.length; page++) {
+			size -= countPage(old.pages[page]);
+		}
+		for (int page = firstPage; page < length; page++) {
+			long[] words = new long[PAGE_WORDS];
+			long base = (long) page << PAGE_SHIFT;
+			for (int w = 0; w < PAGE_WORDS; w++) {
+				long position = base + (w << 6);
+				long bits = 0;
+				if (position < from) {
+					long keep = from - position >= 64 ? -1L
+							: (1L << (from - position)) - 1;
+					bits |= old.bits(position) & keep;
+				}
+				if (position + 64 > movedFrom) {
+					long moved = position >= movedFrom ? -1L
+							: -1L << (movedFrom - position);
+					bits |= old.bits(position - delta) & moved;
+				}
+				words[w] = bits;
+			}
+			int count = countPage(words);
+			pages[page] = count == 0 ? null : count == PAGE_SIZE ? FULL_PAGE
+					: words;
+			size += count;
+		}
+		while (length > 0 && pages[length - 1] == null) {
+			length--;
+		}
+		if (length < pages.length) {
+			pages = Arrays.copyOf(pages, length);
+		}
+		current = new Snapshot(pages, (int) size);
+	}
+
+	/*
+	 * The result of an operation on all positions of a page
+	 */
+	private static long[] wholePage(long[] words, int operation) {
+		switch (operation) {
+		case RANGE_ADD:
+			return FULL_PAGE;
+		case RANGE_REMOVE:
+			return null;
+		default:
+			if (words == null) {
+				return FULL_PAGE;
+			}
+			if (words == FULL_PAGE) {
+				return null;
+			}
+			long[] flipped = new long[PAGE_WORDS];
+			for (int w = 0; w < PAGE_WORDS; w++) {
+				flipped[w] = ~words[w];
+			}
+			return flipped;
+		}
+	}
+
+	/*
+	 * A copy of a page with an operation applied to [start, end) of it, or
+	 * the empty or full page if that is what it comes down to
+	 */
+	private static long[] partialPage(long[] words, int start, int end,
+			int operation) {
+		long[] page = words != null ? words.clone() : new long[PAGE_WORDS];
+		int firstWord = start >>> 6;
+		int lastWord = (end - 1) >>> 6;
+		for (int w = firstWord; w <= lastWord; w++) {
+			long mask = -1L;
+			if (w == firstWord) {
+				mask &= -1L << start;
+			}
+			if (w == lastWord) {
+				mask &= -1L >>> -end;
+			}
+			switch (operation) {
+			case RANGE_ADD:
+				page[w] |= mask;
+				break;
+			case RANGE_REMOVE:
+				page[w] &= ~mask;
+				break;
+			default:
+				page[w] ^= mask;
+			}
+		}
+		int count = countPage(page);
+		return count == 0 ? null : count == PAGE_SIZE ? FULL_PAGE : page;
+	}
+
+	private static int countPage(long[] words) {
+		if (words == null) {
+			return 0;
+		}
+		if (words == FULL_PAGE) {
+			return PAGE_SIZE;
+		}
+		int count = 0;
+		for (int w = 0; w < PAGE_WORDS; w++) {
+			count += Long.bitCount(words[w]);
+		}
+		return count;
+	}
+
+	/**
+	 * One immutable version of the chosen positions. A {@code null} page has
+	 * no chosen positions.
+	 */
+	private static final class Snapshot implements ChosenItems {
+
+		static final Snapshot EMPTY = new Snapshot(new long[0][], 0);
+
+		final long[][] pages;
+
+		final int size;
+
+		Snapshot(long[][] pages, int size) {
+			this.pages = pages;
+			this.size = size;
+		}
+
+		@Override
+		public boolean contains(int position) {
+			if (position < 0) {
+				return false;
+			}
+			int page = position >>> PAGE_SHIFT;
+			if (page >= pages.length) {
+				return false;
+			}
+			long[] words = pages[page];
+			return words != null
+					&& (words[(position >>> 6) & (PAGE_WORDS - 1)] & (1L << position)) != 0;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		/*
+		 * The 64 positions from a position on, as a word whose lowest bit is
+		 * that position. Positions outside the pages are not chosen.
+		 */
+		long bits(long position) {
+			if (position <= -64) {
+				return 0;
+			}
+			long word = position >> 6;
+			int offset = (int) (position & 63);
+			long low = word(word);
+			if (offset == 0) {
+				return low;
+			}
+			return (low >>> offset) | (word(word + 1) << (64 - offset));
+		}
+
+		private long word(long word) {
+			if (word < 0) {
+				return 0;
+			}
+			long page = word >>> (PAGE_SHIFT - 6);
+			if (page >= pages.length) {
+				return 0;
+			}
+			long[] words = pages[(int) page];
+			return words != null ? words[(int) word & (PAGE_WORDS - 1)] : 0;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return size == 0;
+		}
+
+		@Override
+		public int nextPosition(int fromPosition) {
+			if (fromPosition < 0) {
+				fromPosition = 0;
+			}
+			int page = fromPosition >>> PAGE_SHIFT;
+			int word = (fromPosition >>> 6) & (PAGE_WORDS - 1);
+			long mask = -1L << fromPosition;
+			for (; page < pages.length; page++, word = 0, mask = -1L) {
+				long[] words = pages[page];
+				if (words == null) {
+					continue;
+				}
+				for (; word < PAGE_WORDS; word++, mask = -1L) {
+					long bits = words[word] & mask;
+					if (bits != 0) {
+						return (page << PAGE_SHIFT) + (word << 6)
+								+ Long.numberOfTrailingZeros(bits);
+					}
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		public IntIterator iterator() {
+			return new IntIterator() {
+
+				private int next = nextPosition(0);
+
+				@Override
+				public boolean hasNext() {
+					return next >= 0;
+				}
+
+				@Override
+				public int next() {
+					if (next < 0) {
+						throw new NoSuchElementException();
+					}
+					int position = next;
+					next = position == Integer.MAX_VALUE ? -1
+							: nextPosition(position + 1);
+					return position;
+				}
+			};
+		}
+
+		@Override
+		public int[] toArray() {
+			int[] result = new int[size];
+			int i = 0;
+			for (int p = nextPosition(0); p >= 0; p = nextPosition(p + 1)) {
+				result[i++] = p;
+			}
+			return result;
+		}
+	}
+}
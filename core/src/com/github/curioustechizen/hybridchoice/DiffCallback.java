@@ -0,0 +1,35 @@
+package com.github.curioustechizen.hybridchoice;
+
+/**
+ * Compares the items of two lists when a new list is submitted to a hybrid
+ * choice adapter. Called on a worker thread.
+ *
+ * @param <T>
+ */
+public interface DiffCallback<T> {
+
+	/**
+	 * Whether two items represent the same entity. Chosen and opened state
+	 * follow an item to its new position.
+	 *
+	 * @param oldItem
+	 *            An item of the old list
+	 * @param newItem
+	 *            An item of the new list
+	 * @return {@code true} if they are the same item
+	 */
+	boolean areItemsTheSame(T oldItem, T newItem);
+
+	/**
+	 * Whether the data shown for the same item has changed. Only called for
+	 * items for which {@link #areItemsTheSame(Object, Object)} returned
+	 * {@code true}.
+	 *
+	 * @param oldItem
+	 *            An item of the old list
+	 * @param newItem
+	 *            The same item in the new list
+	 * @return {@code true} if the row of the item does not need to be rebound
+	 */
+	boolean areContentsTheSame(T oldItem, T newItem);
+}
@@ -0,0 +1,20 @@
+package com.github.curioustechizen.hybridchoice;
+
+/**
+ * Hashing helpers shared by the primitive collections in this package
+ */
+final class HashUtil {
+
+	private HashUtil() {
+	}
+
+	/**
+	 * Spread the bits of a {@code long} key so that sequential ids do not
+	 * cluster in an open-addressing table
+	 */
+	static int mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 32;
+		return (int) (h ^ (h >>> 16));
+	}
+}
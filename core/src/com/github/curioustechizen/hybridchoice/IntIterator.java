@@ -0,0 +1,24 @@
+package com.github.curioustechizen.hybridchoice;
+
+/**
+ * An iterator over primitive {@code int} values. Unlike
+ * {@code Iterator<Integer>}, this does not box the values it returns.
+ */
+public interface IntIterator {
+
+	/**
+	 * Whether there are more values to be returned
+	 *
+	 * @return {@code true} if a call to {@link #next()} will return a value
+	 */
+	boolean hasNext();
+
+	/**
+	 * Get the next value
+	 *
+	 * @return The next value
+	 * @throws java.util.NoSuchElementException
+	 *             If there are no more values
+	 */
+	int next();
+}
@@ -0,0 +1,23 @@
+package com.github.curioustechizen.hybridchoice;
+
+/**
+ * Maps an item to a stable {@code long} id. Passing one of these to a
+ * {@link HybridChoiceAdapter} makes the adapter track chosen and opened items
+ * by id rather than by position, so that they survive insertions, removals
+ * and refreshes of the underlying list.
+ * 
+ * @param <T>
+ *            The type of items in the adapter
+ */
+public interface ItemIdMapper<T> {
+
+	/**
+	 * Get the id of an item. Two items that represent the same entity must
+	 * have the same id, and the id of an item must not change over time.
+	 * 
+	 * @param item
+	 *            The item
+	 * @return The stable id of the item
+	 */
+	long getItemId(T item);
+}
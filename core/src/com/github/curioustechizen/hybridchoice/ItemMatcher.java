@@ -0,0 +1,26 @@
+package com.github.curioustechizen.hybridchoice;
+
+/**
+ * Decides which items match a query when a {@link HybridChoiceAdapter} is
+ * filtered with {@link HybridChoiceAdapter#filter(CharSequence)}. Called on a
+ * worker thread.
+ * <p>
+ * Matching must narrow as a query grows: an item that matches a query must
+ * also match every prefix of it. That way, when the user types another
+ * character, only the items that matched before are tested again.
+ *
+ * @param <T>
+ */
+public interface ItemMatcher<T> {
+
+	/**
+	 * Whether an item matches a query
+	 *
+	 * @param item
+	 *            The item
+	 * @param query
+	 *            The query, never empty
+	 * @return {@code true} if the item is to be shown
+	 */
+	boolean matches(T item, String query);
+}
@@ -0,0 +1,481 @@
+package com.github.curioustechizen.hybridchoice;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The difference between an old and a new list, computed with Myers' linear
+ * space algorithm. Items that are not on the longest common subsequence but
+ * appear in both lists are matched up as moves, so that every old item that
+ * survives knows its new position. With the {@linkplain #defaultCallback
+ * default callback} moves are found through a hash map in O(n); with a custom
+ * callback, items are compared pairwise up to {@link #MAX_MOVE_CHECKS} times,
+ * and items left over are reported as removed and inserted.
+ */
+final class ListDiff {
+
+	/**
+	 * How many pairs of items a custom callback compares at most to find
+	 * moves
+	 */
+	static final int MAX_MOVE_CHECKS = 1 << 17;
+
+	/**
+	 * Receives the changes that turn the old list into the new one, in an
+	 * order in which each position refers to the list as it is at that point
+	 */
+	interface Updates {
+
+		void onRemoved(int position, int count);
+
+		void onInserted(int position, int count);
+
+		void onChanged(int position, int count);
+	}
+
+	private final int oldSize, newSize;
+
+	/*
+	 * The matched runs of the common subsequence as (oldStart, newStart,
+	 * length) triples, in ascending order
+	 */
+	private final int[] diagonals;
+	private final int diagonalCount;
+
+	/*
+	 * The new position of every old item, or -1 if it was removed
+	 */
+	private final int[] oldToNew;
+
+	/*
+	 * New positions of matched items whose contents changed
+	 */
+	private final BitSet changed;
+
+	private ListDiff(int oldSize, int newSize, int[] diagonals,
+			int diagonalCount, int[] oldToNew, BitSet changed) {
+		this.oldSize = oldSize;
+		this.newSize = newSize;
+		this.diagonals = diagonals;
+		this.diagonalCount = diagonalCount;
+		this.oldToNew = oldToNew;
+		this.changed = changed;
+	}
+
+	/**
+	 * The new position of every old item, or {@code -1} for removed items
+	 */
+	int[] getOldToNew() {
+		return oldToNew;
+	}
+
+	int getNewSize() {
+		return newSize;
+	}
+
+	/**
+	 * Compute the difference between two lists. This may take a while for
+	 * large lists with many changes, so it should not run on the main thread.
+	 */
+	static <T> ListDiff compute(List<T> oldList, List<T> newList,
+			DiffCallback<T> callback) {
+		int oldSize = oldList.size();
+		int newSize = newList.size();
+		Finder<T> finder = new Finder<T>(oldList, newList, callback);
+		finder.run();
+
+		/*
+		 * The middle snakes are found out of order
+		 */
+		int count = finder.diagonalCount;
+		long[] order = new long[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = ((long) finder.diagonals[i * 3] << 32) | i;
+		}
+		Arrays.sort(order);
+		int[] diagonals = new int[count * 3];
+		for (int i = 0; i < count; i++) {
+			int from = (int) order[i] * 3;
+			System.arraycopy(finder.diagonals, from, diagonals, i * 3, 3);
+		}
+
+		int[] oldToNew = new int[oldSize];
+		int[] newToOld = new int[newSize];
+		Arrays.fill(oldToNew, -1);
+		Arrays.fill(newToOld, -1);
+		BitSet changed = new BitSet();
+		for (int i = 0; i < count; i++) {
+			int x = diagonals[i * 3], y = diagonals[i * 3 + 1];
+			int length = diagonals[i * 3 + 2];
+			for (int j = 0; j < length; j++) {
+				oldToNew[x + j] = y + j;
+				newToOld[y + j] = x + j;
+				if (!callback.areContentsTheSame(oldList.get(x + j),
+						newList.get(y + j))) {
+					changed.set(y + j);
+				}
+			}
+		}
+
+		/*
+		 * Match the remaining items up as moves
+		 */
+		if (callback instanceof DefaultCallback) {
+			matchMovesByKey(oldList, newList,
+					(DefaultCallback<T>) callback, oldToNew, newToOld);
+		} else {
+			matchMovesPairwise(oldList, newList, callback, oldToNew,
+					newToOld);
+		}
+		return new ListDiff(oldSize, newSize, diagonals, count, oldToNew,
+				changed);
+	}
+
+	/*
+	 * Match each unmatched old item with the first unmatched new item that
+	 * has the same key, by id or by equals(). The unmatched new items with the
+	 * same key are chained in ascending order, so each old item takes the
+	 * head of its chain.
+	 */
+	private static <T> void matchMovesByKey(List<T> oldList,
+			List<T> newList, DefaultCallback<T> callback, int[] oldToNew,
+			int[] newToOld) {
+		ItemIdMapper<T> idMapper = callback.idMapper;
+		int newSize = newToOld.length;
+		int[] nextSame = new int[newSize];
+		LongIntHashMap byId = idMapper != null ? new LongIntHashMap() : null;
+		Map<T, Integer> byItem = idMapper == null ? new HashMap<T, Integer>()
+				: null;
+		for (int y = newSize - 1; y >= 0; y--) {
+			if (newToOld[y] != -1) {
+				continue;
+			}
+			T item = newList.get(y);
+			if (byId != null) {
+				long id = idMapper.getItemId(item);
+				nextSame[y] = byId.get(id, -1);
+				byId.put(id, y);
+			} else {
+				Integer head = byItem.put(item, y);
+				nextSame[y] = head != null ? head.intValue() : -1;
+			}
+		}
+		for (int x = 0; x < oldToNew.length; x++) {
+			if (oldToNew[x] != -1) {
+				continue;
+			}
+			T item = oldList.get(x);
+			int y;
+			if (byId != null) {
+				long id = idMapper.getItemId(item);
+				y = byId.get(id, -1);
+				if (y >= 0) {
+					byId.put(id, nextSame[y]);
+				}
+			} else {
+				Integer head = byItem.get(item);
+				y = head != null ? head.intValue() : -1;
+				if (y >= 0) {
+					byItem.put(item, nextSame[y]);
+				}
+			}
+			if (y >= 0) {
+				oldToNew[x] = y;
+				newToOld[y] = x;
+			}
+		}
+	}
+
+	/*
+	 * Match each unmatched old item with the first unmatched new item the
+	 * callback says is the same, until MAX_MOVE_CHECKS comparisons have been
+	 * made
+	 */
+	private static <T> void matchMovesPairwise(List<T> oldList,
+			List<T> newList, DiffCallback<T> callback, int[] oldToNew,
+			int[] newToOld) {
+		int newSize = newToOld.length;
+		int checks = 0;
+		int firstFree = 0;
+		for (int x = 0; x < oldToNew.length; x++) {
+			if (oldToNew[x] != -1) {
+				continue;
+			}
+			T oldItem = oldList.get(x);
+			while (firstFree < newSize && newToOld[firstFree] != -1) {
+				firstFree++;
+			}
+			for (int y = firstFree; y < newSize; y++) {
+				if (newToOld[y] != -1) {
+					continue;
+				}
+				if (++checks > MAX_MOVE_CHECKS) {
+					return;
+				}
+				if (callback.areItemsTheSame(oldItem, newList.get(y))) {
+					oldToNew[x] = y;
+					newToOld[y] = x;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Report the changes, back to front so that the positions of everything
+	 * in front of a change are still the old ones. Moved items are reported
+	 * as a removal and an insertion.
+	 */
+	void dispatch(Updates updates) {
+		int endX = oldSize, endY = newSize;
+		for (int i = diagonalCount; i >= 0; i--) {
+			int x, y, length;
+			if (i == diagonalCount) {
+				x = oldSize;
+				y = newSize;
+				length = 0;
+			} else {
+				x = diagonals[i * 3];
+				y = diagonals[i * 3 + 1];
+				length = diagonals[i * 3 + 2];
+			}
+			dispatchGap(updates, x + length, endX, y + length, endY);
+			int j = length - 1;
+			while (j >= 0) {
+				if (!changed.get(y + j)) {
+					j--;
+					continue;
+				}
+				int last = j;
+				while (j >= 0 && changed.get(y + j)) {
+					j--;
+				}
+				updates.onChanged(x + j + 1, last - j);
+			}
+			endX = x;
+			endY = y;
+		}
+		dispatchGap(updates, 0, endX, 0, endY);
+	}
+
+	private static void dispatchGap(Updates updates, int fromX, int toX,
+			int fromY, int toY) {
+		if (toX > fromX) {
+			updates.onRemoved(fromX, toX - fromX);
+		}
+		if (toY > fromY) {
+			updates.onInserted(fromX, toY - fromY);
+		}
+	}
+
+	/**
+	 * The default comparison: by stable id if there is an id mapper, and by
+	 * {@code equals()} otherwise. Contents are compared with {@code equals()}.
+	 */
+	static <T> DiffCallback<T> defaultCallback(ItemIdMapper<T> idMapper) {
+		return new DefaultCallback<T>(idMapper);
+	}
+
+	/**
+	 * The callback of {@link #defaultCallback(ItemIdMapper)}, which moves are
+	 * matched by key for rather than pairwise
+	 */
+	private static final class DefaultCallback<T> implements DiffCallback<T> {
+
+		final ItemIdMapper<T> idMapper;
+
+		DefaultCallback(ItemIdMapper<T> idMapper) {
+			this.idMapper = idMapper;
+		}
+
+		@Override
+		public boolean areItemsTheSame(T oldItem, T newItem) {
+			if (idMapper != null) {
+				return idMapper.getItemId(oldItem) == idMapper
+						.getItemId(newItem);
+			}
+			return oldItem == null ? newItem == null : oldItem.equals(newItem);
+		}
+
+		@Override
+		public boolean areContentsTheSame(T oldItem, T newItem) {
+			return oldItem == null ? newItem == null : oldItem.equals(newItem);
+		}
+	}
+
+	/**
+	 * Finds the common subsequence by repeatedly splitting the edit graph at
+	 * a middle snake. Uses O(n + m) space.
+	 */
+	private static final class Finder<T> {
+
+		private final List<T> oldList, newList;
+		private final DiffCallback<T> callback;
+
+		private final int[] forward, backward;
+
+		int[] diagonals = new int[48];
+		int diagonalCount;
+
+		/*
+		 * Set by findMiddleSnake(), relative to the start of the range: the
+		 * snake, and the points before and after it where the edit path
+		 * leaves the sub-ranges that are left to search. The edit between a
+		 * split point and the snake is what makes the sub-ranges smaller.
+		 */
+		private int snakeStartX, snakeStartY, snakeEndX, snakeEndY;
+		private int prefixEndX, prefixEndY, suffixStartX, suffixStartY;
+
+		Finder(List<T> oldList, List<T> newList, DiffCallback<T> callback) {
+			this.oldList = oldList;
+			this.newList = newList;
+			this.callback = callback;
+			int size = oldList.size() + newList.size() + 3;
+			this.forward = new int[size];
+			this.backward = new int[size];
+		}
+
+		void run() {
+			int[] ranges = new int[32];
+			int top = 0;
+			ranges[top++] = 0;
+			ranges[top++] = oldList.size();
+			ranges[top++] = 0;
+			ranges[top++] = newList.size();
+			while (top > 0) {
+				int newEnd = ranges[--top], newStart = ranges[--top];
+				int oldEnd = ranges[--top], oldStart = ranges[--top];
+				if (!findMiddleSnake(oldStart, oldEnd, newStart, newEnd)) {
+					continue;
+				}
+				int sx = oldStart + snakeStartX, sy = newStart + snakeStartY;
+				int ex = oldStart + snakeEndX, ey = newStart + snakeEndY;
+				if (ex > sx) {
+					addDiagonal(sx, sy, ex - sx);
+				}
+				if (top + 8 > ranges.length) {
+					ranges = Arrays.copyOf(ranges, ranges.length * 2);
+				}
+				int px = oldStart + prefixEndX, py = newStart + prefixEndY;
+				int qx = oldStart + suffixStartX, qy = newStart + suffixStartY;
+				if (px > oldStart && py > newStart) {
+					ranges[top++] = oldStart;
+					ranges[top++] = px;
+					ranges[top++] = newStart;
+					ranges[top++] = py;
+				}
+				if (oldEnd > qx && newEnd > qy) {
+					ranges[top++] = qx;
+					ranges[top++] = oldEnd;
+					ranges[top++] = qy;
+					ranges[top++] = newEnd;
+				}
+			}
+		}
+
+		private void addDiagonal(int x, int y, int length) {
+			if (diagonalCount * 3 + 3 > diagonals.length) {
+				diagonals = Arrays.copyOf(diagonals, diagonals.length * 2);
+			}
+			int i = diagonalCount++ * 3;
+			diagonals[i] = x;
+			diagonals[i + 1] = y;
+			diagonals[i + 2] = length;
+		}
+
+		private boolean same(int x, int y) {
+			return callback.areItemsTheSame(oldList.get(x), newList.get(y));
+		}
+
+		/*
+		 * Walk the shortest edit path from both ends of the range until they
+		 * overlap. The forward arrays hold the furthest x reached on each
+		 * diagonal k = x - y; the backward ones the smallest x.
+		 */
+		private boolean findMiddleSnake(int oldStart, int oldEnd,
+				int newStart, int newEnd) {
+			int n = oldEnd - oldStart, m = newEnd - newStart;
+			if (n < 1 || m < 1) {
+				return false;
+			}
+			int delta = n - m;
+			boolean odd = (delta & 1) != 0;
+			int max = (n + m + 1) / 2;
+			int fOff = max + 1;
+			int bOff = max + 1 - delta;
+			forward[fOff + 1] = 0;
+			backward[bOff + delta - 1] = n;
+			for (int d = 0; d <= max; d++) {
+				for (int k = -d; k <= d; k += 2) {
+					int x, prevX, prevY;
+					if (k == -d || (k != d && forward[fOff + k + 1] > forward[fOff + k - 1])) {
+						x = forward[fOff + k + 1];
+						prevX = x;
+						prevY = x - k - 1;
+					} else {
+						x = forward[fOff + k - 1] + 1;
+						prevX = x - 1;
+						prevY = prevX - k + 1;
+					}
+					int y = x - k;
+					int startX = x, startY = y;
+					while (x < n && y < m && same(oldStart + x, newStart + y)) {
+						x++;
+						y++;
+					}
+					forward[fOff + k] = x;
+					if (odd && k >= delta - d + 1 && k <= delta + d - 1
+							&& x >= backward[bOff + k]) {
+						snakeStartX = startX;
+						snakeStartY = startY;
+						snakeEndX = x;
+						snakeEndY = y;
+						prefixEndX = prevX;
+						prefixEndY = prevY;
+						suffixStartX = x;
+						suffixStartY = y;
+						return true;
+					}
+				}
+				for (int k = delta - d; k <= delta + d; k += 2) {
+					int x, prevX, prevY;
+					if (k == delta + d || (k != delta - d && backward[bOff + k - 1] < backward[bOff + k + 1] - 1)) {
+						x = backward[bOff + k - 1];
+						prevX = x;
+						prevY = x - k + 1;
+					} else {
+						x = backward[bOff + k + 1] - 1;
+						prevX = x + 1;
+						prevY = prevX - k - 1;
+					}
+					int y = x - k;
+					int endX = x, endY = y;
+					if (d == 0) {
+						prevX = endX;
+						prevY = endY;
+					}
+					while (x > 0 && y > 0 && same(oldStart + x - 1, newStart + y - 1)) {
+						x--;
+						y--;
+					}
+					backward[bOff + k] = x;
+					if (!odd && k >= -d && k <= d && x <= forward[fOff + k]) {
+						snakeStartX = x;
+						snakeStartY = y;
+						snakeEndX = endX;
+						snakeEndY = endY;
+						prefixEndX = x;
+						prefixEndY = y;
+						suffixStartX = prevX;
+						suffixStartY = prevY;
+						return true;
+					}
+				}
+			}
+			throw new IllegalStateException("No middle snake found");
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package com.github.curioustechizen.hybridchoice;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash set of primitive {@code long}s. Lookups do not box
+ * or allocate.
+ */
+final class LongHashSet {
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	/*
+	 * 0 marks a free slot, so the key 0 itself is tracked separately
+	 */
+	private long[] keys;
+	private boolean containsZero;
+	private int mask;
+	private int size;
+	private int resizeAt;
+
+	LongHashSet() {
+		allocate(16);
+	}
+
+	boolean contains(long key) {
+		if (key == 0) {
+			return containsZero;
+		}
+		int slot = HashUtil.mix(key) & mask;
+		long existing;
+		while ((existing = keys[slot]) != 0) {
+			if (existing == key) {
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	boolean add(long key) {
+		if (key == 0) {
+			if (containsZero) {
+				return false;
+			}
+			containsZero = true;
+			size++;
+			return true;
+		}
+		int slot = HashUtil.mix(key) & mask;
+		long existing;
+		while ((existing = keys[slot]) != 0) {
+			if (existing == key) {
+				return false;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		if (++size > resizeAt) {
+			rehash(keys.length << 1);
+		}
+		return true;
+	}
+
+	boolean remove(long key) {
+		if (key == 0) {
+			if (!containsZero) {
+				return false;
+			}
+			containsZero = false;
+			size--;
+			return true;
+		}
+		int slot = HashUtil.mix(key) & mask;
+		long existing;
+		while ((existing = keys[slot]) != 0) {
+			if (existing == key) {
+				size--;
+				shiftKeys(slot);
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		if (keys.length > 64) {
+			allocate(16);
+		} else {
+			Arrays.fill(keys, 0);
+		}
+		containsZero = false;
+		size = 0;
+	}
+
+	/**
+	 * Copy the keys into a new array, in no particular order
+	 */
+	long[] toArray() {
+		long[] result = new long[size];
+		int i = 0;
+		if (containsZero) {
+			result[i++] = 0;
+		}
+		for (long key : keys) {
+			if (key != 0) {
+				result[i++] = key;
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * Backward-shift deletion: move later entries of the probe chain into the
+	 * freed slot so that lookups never need tombstones.
+	 */
+	private void shiftKeys(int slot) {
+		while (true) {
+			int last = slot;
+			slot = (slot + 1) & mask;
+			long key;
+			while (true) {
+				if ((key = keys[slot]) == 0) {
+					keys[last] = 0;
+					return;
+				}
+				int home = HashUtil.mix(key) & mask;
+				if (last <= slot ? last >= home || home > slot : last >= home
+						&& home > slot) {
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+			keys[last] = key;
+		}
+	}
+
+	private void rehash(int capacity) {
+		long[] old = keys;
+		allocate(capacity);
+		for (long key : old) {
+			if (key != 0) {
+				int slot = HashUtil.mix(key) & mask;
+				while (keys[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = key;
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		mask = capacity - 1;
+		resizeAt = (int) (capacity * LOAD_FACTOR);
+	}
+}
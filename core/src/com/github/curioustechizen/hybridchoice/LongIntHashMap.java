@@ -0,0 +1,198 @@
+package com.github.curioustechizen.hybridchoice;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from primitive {@code long} keys to
+ * {@code int} values. Lookups do not box or allocate.
+ */
+final class LongIntHashMap {
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	/*
+	 * 0 marks a free slot, so the value for the key 0 is kept separately
+	 */
+	private long[] keys;
+	private int[] values;
+	private boolean containsZero;
+	private int zeroValue;
+	private int mask;
+	private int size;
+	private int resizeAt;
+
+	LongIntHashMap() {
+		this(16);
+	}
+
+	LongIntHashMap(int expectedSize) {
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < expectedSize) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	/**
+	 * Get the value for a key
+	 * 
+	 * @return The value, or {@code missingValue} if the key is not in the map
+	 */
+	int get(long key, int missingValue) {
+		if (key == 0) {
+			return containsZero ? zeroValue : missingValue;
+		}
+		int slot = HashUtil.mix(key) & mask;
+		long existing;
+		while ((existing = keys[slot]) != 0) {
+			if (existing == key) {
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return missingValue;
+	}
+
+	boolean containsKey(long key) {
+		if (key == 0) {
+			return containsZero;
+		}
+		int slot = HashUtil.mix(key) & mask;
+		long existing;
+		while ((existing = keys[slot]) != 0) {
+			if (existing == key) {
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	void put(long key, int value) {
+		if (key == 0) {
+			if (!containsZero) {
+				containsZero = true;
+				size++;
+			}
+			zeroValue = value;
+			return;
+		}
+		int slot = HashUtil.mix(key) & mask;
+		long existing;
+		while ((existing = keys[slot]) != 0) {
+			if (existing == key) {
+				values[slot] = value;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size > resizeAt) {
+			rehash(keys.length << 1);
+		}
+	}
+
+	boolean remove(long key) {
+		if (key == 0) {
+			if (!containsZero) {
+				return false;
+			}
+			containsZero = false;
+			size--;
+			return true;
+		}
+		int slot = HashUtil.mix(key) & mask;
+		long existing;
+		while ((existing = keys[slot]) != 0) {
+			if (existing == key) {
+				size--;
+				shiftKeys(slot);
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Copy the keys into a new array, in no particular order
+	 */
+	long[] keys() {
+		long[] result = new long[size];
+		int i = 0;
+		if (containsZero) {
+			result[i++] = 0;
+		}
+		for (long key : keys) {
+			if (key != 0) {
+				result[i++] = key;
+			}
+		}
+		return result;
+	}
+
+	void clear() {
+		if (keys.length > 64) {
+			allocate(16);
+		} else {
+			Arrays.fill(keys, 0);
+		}
+		containsZero = false;
+		size = 0;
+	}
+
+	/*
+	 * Backward-shift deletion, as in LongHashSet, moving the values along
+	 * with the keys
+	 */
+	private void shiftKeys(int slot) {
+		while (true) {
+			int last = slot;
+			slot = (slot + 1) & mask;
+			long key;
+			while (true) {
+				if ((key = keys[slot]) == 0) {
+					keys[last] = 0;
+					return;
+				}
+				int home = HashUtil.mix(key) & mask;
+				if (last <= slot ? last >= home || home > slot : last >= home
+						&& home > slot) {
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+			keys[last] = key;
+			values[last] = values[slot];
+		}
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			long key = oldKeys[i];
+			if (key != 0) {
+				int slot = HashUtil.mix(key) & mask;
+				while (keys[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = key;
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+		resizeAt = (int) (capacity * LOAD_FACTOR);
+	}
+}
@@ -0,0 +1,348 @@
+package com.github.curioustechizen.hybridchoice;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.NoSuchElementException;
+
+/**
+ * A {@link SelectionStore} that keeps the chosen positions in a bitmap in a
+ * memory-mapped file, for selections that are too large to save in a
+ * {@code Bundle} and must survive the death of the process. Changes are
+ * written to the file in place; nothing has to be saved.
+ * <p>
+ * Creating the store does not touch the file. It is mapped when first used,
+ * and a selection left in it by an earlier process is used as is, without
+ * being read into the heap. To restore a selection, create a store for the
+ * same file and pass it to
+ * {@link HybridChoiceAdapter#setSelectionStore(SelectionStore)}. A good place
+ * for the file is the cache directory of the app.
+ * <p>
+ * The file grows as needed to hold the largest chosen position.
+ * {@link #nextPosition(int)}, iteration and {@link #clear()} take time
+ * proportional to the size of the file rather than the number of chosen
+ * positions.
+ */
+public class MappedSelectionStore implements SelectionStore {
+
+	/*
+	 * File layout: magic, version, number of bitmap words, number of chosen
+	 * positions, then the bitmap words
+	 */
+	private static final int MAGIC = 0x48435331; // "HCS1"
+	private static final int VERSION = 1;
+	private static final int OFFSET_WORDS = 8;
+	private static final int OFFSET_SIZE = 12;
+	private static final int HEADER_SIZE = 16;
+
+	private static final int MIN_WORDS = 1024;
+
+	private final File file;
+
+	/*
+	 * null until first used
+	 */
+	private MappedByteBuffer buffer;
+	private int words;
+	private int size;
+
+	/**
+	 * Constructor. Does not open the file.
+	 *
+	 * @param file
+	 *            The file to keep the selection in. If it holds a selection
+	 *            written by a store earlier, that selection is used.
+	 */
+	public MappedSelectionStore(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Make sure that changes are written to storage, and not just to the
+	 * page cache. Changes survive the death of the process without this.
+	 */
+	public void flush() {
+		if (buffer != null) {
+			buffer.force();
+		}
+	}
+
+	@Override
+	public boolean contains(int position) {
+		map();
+		if (position < 0 || (position >>> 6) >= words) {
+			return false;
+		}
+		return (word(position >>> 6) & (1L << position)) != 0;
+	}
+
+	@Override
+	public int size() {
+		map();
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	@Override
+	public boolean add(int position) {
+		if (position < 0) {
+			throw new IndexOutOfBoundsException("Invalid position: " + position);
+		}
+		ensureWords((position >>> 6) + 1);
+		int index = position >>> 6;
+		long word = word(index);
+		long bit = 1L << position;
+		if ((word & bit) != 0) {
+			return false;
+		}
+		setWord(index, word | bit);
+		setSize(size + 1);
+		return true;
+	}
+
+	@Override
+	public boolean remove(int position) {
+		map();
+		if (position < 0 || (position >>> 6) >= words) {
+			return false;
+		}
+		int index = position >>> 6;
+		long word = word(index);
+		long bit = 1L << position;
+		if ((word & bit) == 0) {
+			return false;
+		}
+		setWord(index, word & ~bit);
+		setSize(size - 1);
+		return true;
+	}
+
+	@Override
+	public void addRange(int from, int to) {
+		if (from >= to) {
+			return;
+		}
+		if (from < 0) {
+			throw new IndexOutOfBoundsException("Invalid position: " + from);
+		}
+		ensureWords(((to - 1) >>> 6) + 1);
+		applyRange(from, to, true, false);
+	}
+
+	@Override
+	public void removeRange(int from, int to) {
+		map();
+		to = Math.min(to, words << 6);
+		if (from < to) {
+			applyRange(Math.max(from, 0), to, false, false);
+		}
+	}
+
+	@Override
+	public void flipRange(int from, int to) {
+		if (from >= to) {
+			return;
+		}
+		if (from < 0) {
+			throw new IndexOutOfBoundsException("Invalid position: " + from);
+		}
+		ensureWords(((to - 1) >>> 6) + 1);
+		applyRange(from, to, false, true);
+	}
+
+	@Override
+	public void clear() {
+		map();
+		if (size == 0) {
+			return;
+		}
+		for (int i = 0; i < words; i++) {
+			if (word(i) != 0) {
+				setWord(i, 0);
+			}
+		}
+		setSize(0);
+	}
+
+	@Override
+	public int nextPosition(int fromPosition) {
+		map();
+		if (fromPosition < 0) {
+			fromPosition = 0;
+		}
+		int index = fromPosition >>> 6;
+		if (size == 0 || index >= words) {
+			return -1;
+		}
+		long word = word(index) & (-1L << fromPosition);
+		while (true) {
+			if (word != 0) {
+				return (index << 6) + Long.numberOfTrailingZeros(word);
+			}
+			if (++index == words) {
+				return -1;
+			}
+			word = word(index);
+		}
+	}
+
+	@Override
+	public IntIterator iterator() {
+		return new IntIterator() {
+
+			private int next = nextPosition(0);
+
+			@Override
+			public boolean hasNext() {
+				return next >= 0;
+			}
+
+			@Override
+			public int next() {
+				if (next < 0) {
+					throw new NoSuchElementException();
+				}
+				int result = next;
+				next = nextPosition(result + 1);
+				return result;
+			}
+		};
+	}
+
+	@Override
+	public int[] toArray() {
+		int[] result = new int[size()];
+		int i = 0;
+		for (int p = nextPosition(0); p >= 0; p = nextPosition(p + 1)) {
+			result[i++] = p;
+		}
+		return result;
+	}
+
+	/*
+	 * Set, clear or flip the bits in [from, to) a word at a time, keeping the
+	 * size up to date
+	 */
+	private void applyRange(int from, int to, boolean set, boolean flip) {
+		int first = from >>> 6, last = (to - 1) >>> 6;
+		int delta = 0;
+		for (int i = first; i <= last; i++) {
+			long mask = -1L;
+			if (i == first) {
+				mask &= -1L << from;
+			}
+			if (i == last) {
+				mask &= -1L >>> -to;
+			}
+			long word = word(i);
+			long updated = flip ? word ^ mask : set ? word | mask : word & ~mask;
+			if (updated != word) {
+				delta += Long.bitCount(updated) - Long.bitCount(word);
+				setWord(i, updated);
+			}
+		}
+		if (delta != 0) {
+			setSize(size + delta);
+		}
+	}
+
+	private long word(int index) {
+		return buffer.getLong(HEADER_SIZE + (index << 3));
+	}
+
+	private void setWord(int index, long word) {
+		buffer.putLong(HEADER_SIZE + (index << 3), word);
+	}
+
+	private void setSize(int size) {
+		this.size = size;
+		buffer.putInt(OFFSET_SIZE, size);
+	}
+
+	/*
+	 * Map the file on first use, starting over if it doesn't hold a valid
+	 * selection
+	 */
+	private void map() {
+		if (buffer != null) {
+			return;
+		}
+		try {
+			int existing = 0;
+			if (file.length() >= HEADER_SIZE) {
+				buffer = mapFile(file.length());
+				if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION) {
+					existing = buffer.getInt(OFFSET_WORDS);
+					if (existing <= 0
+							|| HEADER_SIZE + ((long) existing << 3) > file.length()) {
+						existing = 0;
+					}
+				}
+			}
+			if (existing == 0) {
+				/*
+				 * Start from an empty file so that growing it later yields
+				 * clear words
+				 */
+				buffer = null;
+				if (file.exists() && !file.delete()) {
+					throw new IOException("Cannot reset " + file);
+				}
+				buffer = mapFile(HEADER_SIZE + ((long) MIN_WORDS << 3));
+				buffer.putInt(0, MAGIC);
+				buffer.putInt(4, VERSION);
+				buffer.putInt(OFFSET_WORDS, MIN_WORDS);
+				buffer.putInt(OFFSET_SIZE, 0);
+				existing = MIN_WORDS;
+			}
+			words = existing;
+			size = buffer.getInt(OFFSET_SIZE);
+		} catch (IOException e) {
+			buffer = null;
+			throw new IllegalStateException("Cannot map " + file, e);
+		}
+	}
+
+	/*
+	 * Grow the file, doubling it, so that it holds at least a number of words
+	 */
+	private void ensureWords(int needed) {
+		map();
+		if (needed <= words) {
+			return;
+		}
+		int grown = words;
+		while (grown < needed) {
+			grown = grown > Integer.MAX_VALUE / 2 ? needed : grown << 1;
+		}
+		try {
+			buffer = mapFile(HEADER_SIZE + ((long) grown << 3));
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot grow " + file, e);
+		}
+		/*
+		 * The file is extended with zeros, so the new words start out clear
+		 */
+		buffer.putInt(OFFSET_WORDS, grown);
+		words = grown;
+	}
+
+	private MappedByteBuffer mapFile(long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() < length) {
+				raf.setLength(length);
+			}
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					length);
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package com.github.curioustechizen.hybridchoice;
+
+import java.util.List;
+
+/**
+ * A source of items that are loaded a page at a time, for a
+ * {@link PagedList}
+ *
+ * @param <T>
+ */
+public interface PagedDataSource<T> {
+
+	/**
+	 * @return The total number of items. Called once, when the
+	 *         {@link PagedList} is created.
+	 */
+	int getCount();
+
+	/**
+	 * Load a range of items. Called on a worker thread.
+	 *
+	 * @param start
+	 *            The position of the first item to load
+	 * @param count
+	 *            The number of items to load. The range never extends past
+	 *            the end of the items.
+	 * @return The items, exactly {@code count} of them
+	 */
+	List<T> loadRange(int start, int count);
+
+	/**
+	 * Get the stable id of an item without loading it. Only called if the
+	 * list is shown by an adapter that tracks items by stable id, possibly on
+	 * the main thread, so it should be cheap.
+	 *
+	 * @param position
+	 *            The position of the item
+	 * @return The stable id of the item
+	 */
+	long getItemId(int position);
+}
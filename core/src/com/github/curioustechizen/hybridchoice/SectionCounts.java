@@ -0,0 +1,169 @@
+package com.github.curioustechizen.hybridchoice;
+
+import java.util.Arrays;
+
+/**
+ * The number of chosen items in each section of a grouped list. Sections are
+ * declared by their first positions; a section ends where the next one starts,
+ * and the last one at the end of the items. The counts are kept up to date
+ * incrementally by {@link SelectionModel} and recounted lazily after changes
+ * it cannot follow, e.g. items being inserted.
+ */
+class SectionCounts {
+
+	/*
+	 * The first position of each section, ascending, starting with 0
+	 */
+	private final int[] starts;
+
+	/*
+	 * The number of chosen items in each section. Only meaningful if valid.
+	 */
+	private final int[] counts;
+
+	private boolean valid;
+
+	/**
+	 * @param starts
+	 *            The first position of each section, strictly ascending and
+	 *            starting with 0. Copied.
+	 * @throws IllegalArgumentException
+	 *             If the positions are not strictly ascending from 0
+	 */
+	SectionCounts(int[] starts) {
+		if (starts.length == 0 || starts[0] != 0) {
+			throw new IllegalArgumentException(
+					"The first section must start at position 0");
+		}
+		for (int i = 1; i < starts.length; i++) {
+			if (starts[i] <= starts[i - 1]) {
+				throw new IllegalArgumentException(
+						"Section starts must be strictly ascending");
+			}
+		}
+		this.starts = starts.clone();
+		this.counts = new int[starts.length];
+	}
+
+	int getSectionCount() {
+		return starts.length;
+	}
+
+	/**
+	 * The section a position belongs to. Takes O(log s) time for s sections.
+	 */
+	int sectionOf(int position) {
+		int index = Arrays.binarySearch(starts, position);
+		return index >= 0 ? index : -index - 2;
+	}
+
+	int getStart(int section) {
+		return starts[section];
+	}
+
+	/**
+	 * The end of a section (exclusive), given the number of items
+	 */
+	int getEnd(int section, int itemCount) {
+		int end = section + 1 < starts.length ? starts[section + 1] : itemCount;
+		return Math.max(starts[section], Math.min(end, itemCount));
+	}
+
+	/**
+	 * The number of chosen items in a section, recounting all sections first
+	 * if the counts were invalidated
+	 */
+	int getChosenCount(int section, ChosenItems chosen) {
+		if (!valid) {
+			recount(chosen);
+		}
+		return counts[section];
+	}
+
+	/**
+	 * The chosen items have changed in a way the counts cannot follow
+	 */
+	void invalidate() {
+		valid = false;
+	}
+
+	/**
+	 * One item has been chosen or is no longer chosen
+	 */
+	void onItemChanged(int position, boolean chosen) {
+		if (valid && position >= 0) {
+			counts[sectionOf(position)] += chosen ? 1 : -1;
+		}
+	}
+
+	/**
+	 * Every item in [from, to) is about to be set as chosen or not chosen.
+	 * Call before changing the store. Sections entirely in the range are
+	 * updated in O(1); the at most two sections the range only overlaps are
+	 * adjusted by counting the chosen items they share with the range.
+	 */
+	void onRangeChanging(int from, int to, boolean chosen, ChosenItems store,
+			int itemCount) {
+		if (!valid || from >= to) {
+			return;
+		}
+		int last = sectionOf(to - 1);
+		for (int section = sectionOf(from); section <= last; section++) {
+			int start = starts[section];
+			int end = getEnd(section, itemCount);
+			if (start >= from && end <= to) {
+				counts[section] = chosen ? end - start : 0;
+			} else {
+				int lo = Math.max(start, from);
+				int hi = Math.min(end, to);
+				int before = countRange(store, lo, hi);
+				counts[section] += chosen ? (hi - lo) - before : -before;
+			}
+		}
+	}
+
+	/**
+	 * Every item has been inverted
+	 */
+	void onInverted(int itemCount) {
+		if (!valid) {
+			return;
+		}
+		for (int section = 0; section < starts.length; section++) {
+			counts[section] = getEnd(section, itemCount) - starts[section]
+					- counts[section];
+		}
+	}
+
+	/**
+	 * No item is chosen any more
+	 */
+	void onCleared() {
+		Arrays.fill(counts, 0);
+		valid = true;
+	}
+
+	/*
+	 * Count every chosen item into its section. Takes O(k log s) time for k
+	 * chosen items.
+	 */
+	private void recount(ChosenItems chosen) {
+		Arrays.fill(counts, 0);
+		for (IntIterator it = chosen.iterator(); it.hasNext();) {
+			counts[sectionOf(it.next())]++;
+		}
+		valid = true;
+	}
+
+	/*
+	 * The number of chosen positions in [from, to)
+	 */
+	private static int countRange(ChosenItems chosen, int from, int to) {
+		int count = 0;
+		for (int p = chosen.nextPosition(from); p >= 0 && p < to; p = chosen
+				.nextPosition(p + 1)) {
+			count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,426 @@
+package com.github.curioustechizen.hybridchoice;
+
+/**
+ * Encodes chosen positions or ids, and the opened item, into a compact
+ * {@code byte[]}. The values are written in whichever of three layouts is
+ * smallest for them:
+ * <ul>
+ * <li>Deltas: the gaps between consecutive values as varints. Best for few,
+ * scattered values.
+ * <li>Runs: the gaps between runs of consecutive values, and their lengths,
+ * as varints. Best for ranges, e.g. after select all.
+ * <li>Bitmap: one bit for each value between the smallest and the largest.
+ * Best for dense, irregular selections.
+ * </ul>
+ * The format starts with a version byte, followed by a flags byte, the
+ * opened item if there is one, and the values.
+ */
+final class SelectionCodec {
+
+	static final int VERSION = 1;
+
+	private static final int LAYOUT_DELTAS = 0;
+	private static final int LAYOUT_RUNS = 1;
+	private static final int LAYOUT_BITMAP = 2;
+	private static final int LAYOUT_MASK = 3;
+	private static final int FLAG_IDS = 1 << 2;
+	private static final int FLAG_OPENED = 1 << 3;
+
+	/*
+	 * Don't bother with bitmaps spanning more values than this
+	 */
+	private static final long MAX_BITMAP_SPAN = 1L << 30;
+
+	/**
+	 * Ascending values to encode. Read twice: once to size the layouts, and
+	 * once to write the chosen one.
+	 */
+	interface Values {
+
+		void reset();
+
+		boolean hasNext();
+
+		long next();
+	}
+
+	/**
+	 * Receives decoded values
+	 */
+	interface Sink {
+
+		void onOpened(long value);
+
+		/**
+		 * Values in [from, to) are chosen
+		 */
+		void onRange(long from, long to);
+	}
+
+	private SelectionCodec() {
+	}
+
+	/**
+	 * Encode values and the opened item
+	 *
+	 * @param values
+	 *            The values, in ascending order without duplicates
+	 * @param ids
+	 *            Whether the values are ids rather than positions
+	 * @param hasOpened
+	 *            Whether there is an opened item
+	 * @param opened
+	 *            The opened item, if there is one
+	 */
+	static byte[] encode(Values values, boolean ids, boolean hasOpened,
+			long opened) {
+		/*
+		 * Size every layout in one pass
+		 */
+		int count = 0, runCount = 0;
+		long deltaBytes = 0, runBytes = 0;
+		long first = 0, previous = 0, runStart = 0, previousRunEnd = 0;
+		values.reset();
+		while (values.hasNext()) {
+			long value = values.next();
+			if (count == 0) {
+				first = value;
+				runStart = value;
+				deltaBytes += varintSize(zigzag(value));
+			} else {
+				deltaBytes += varintSize(value - previous - 1);
+				if (value != previous + 1) {
+					runBytes += runSize(runCount, runStart, previous + 1,
+							previousRunEnd);
+					previousRunEnd = previous + 1;
+					runCount++;
+					runStart = value;
+				}
+			}
+			previous = value;
+			count++;
+		}
+
+		long bitmapSpan = 0;
+		int layout = LAYOUT_DELTAS;
+		long payload = deltaBytes;
+		if (count > 0) {
+			runBytes += runSize(runCount, runStart, previous + 1,
+					previousRunEnd);
+			runCount++;
+			runBytes += varintSize(runCount);
+			if (runBytes < payload) {
+				layout = LAYOUT_RUNS;
+				payload = runBytes;
+			}
+			bitmapSpan = previous - first + 1;
+			if (bitmapSpan > 0 && bitmapSpan <= MAX_BITMAP_SPAN) {
+				long bitmapBytes = varintSize(zigzag(first))
+						+ varintSize(bitmapSpan) + (bitmapSpan + 7) / 8;
+				if (bitmapBytes < payload) {
+					layout = LAYOUT_BITMAP;
+					payload = bitmapBytes;
+				}
+			}
+		}
+
+		int flags = layout | (ids ? FLAG_IDS : 0)
+				| (hasOpened ? FLAG_OPENED : 0);
+		long size = 2 + (hasOpened ? varintSize(zigzag(opened)) : 0)
+				+ varintSize(count) + payload;
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Selection too large to encode");
+		}
+		Writer out = new Writer((int) size);
+		out.write(VERSION);
+		out.write(flags);
+		if (hasOpened) {
+			out.writeVarint(zigzag(opened));
+		}
+		out.writeVarint(count);
+		if (count == 0) {
+			return out.bytes;
+		}
+
+		values.reset();
+		switch (layout) {
+		case LAYOUT_DELTAS:
+			writeDeltas(values, out);
+			break;
+		case LAYOUT_RUNS:
+			out.writeVarint(runCount);
+			writeRuns(values, out);
+			break;
+		default:
+			writeBitmap(values, first, bitmapSpan, out);
+			break;
+		}
+		return out.bytes;
+	}
+
+	/**
+	 * Decode a selection
+	 *
+	 * @param data
+	 *            The encoded selection
+	 * @param ids
+	 *            Whether ids rather than positions are expected
+	 * @param sink
+	 *            Receives the opened item and the chosen values
+	 * @throws IllegalArgumentException
+	 *             If the data is not a selection of the expected kind in a
+	 *             known version of the format
+	 */
+	static void decode(byte[] data, boolean ids, Sink sink) {
+		try {
+			Reader in = new Reader(data);
+			int version = in.read();
+			if (version != VERSION) {
+				throw new IllegalArgumentException(
+						"Unknown selection format version " + version);
+			}
+			int flags = in.read();
+			if (((flags & FLAG_IDS) != 0) != ids) {
+				throw new IllegalArgumentException(ids ? "Expected ids"
+						: "Expected positions");
+			}
+			if ((flags & FLAG_OPENED) != 0) {
+				sink.onOpened(unzigzag(in.readVarint()));
+			}
+			long count = in.readVarint();
+			if (count == 0) {
+				return;
+			}
+			switch (flags & LAYOUT_MASK) {
+			case LAYOUT_DELTAS:
+				readDeltas(in, count, sink);
+				break;
+			case LAYOUT_RUNS:
+				readRuns(in, sink);
+				break;
+			case LAYOUT_BITMAP:
+				readBitmap(in, sink);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown layout");
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Truncated selection data");
+		}
+	}
+
+	private static void writeDeltas(Values values, Writer out) {
+		long previous = values.next();
+		out.writeVarint(zigzag(previous));
+		while (values.hasNext()) {
+			long value = values.next();
+			out.writeVarint(value - previous - 1);
+			previous = value;
+		}
+	}
+
+	private static void readDeltas(Reader in, long count, Sink sink) {
+		long runStart = unzigzag(in.readVarint());
+		long previous = runStart;
+		for (long i = 1; i < count; i++) {
+			long value = previous + in.readVarint() + 1;
+			if (value != previous + 1) {
+				sink.onRange(runStart, previous + 1);
+				runStart = value;
+			}
+			previous = value;
+		}
+		sink.onRange(runStart, previous + 1);
+	}
+
+	private static void writeRuns(Values values, Writer out) {
+		long runStart = values.next();
+		long previous = runStart;
+		boolean firstRun = true;
+		long lastEnd = 0;
+		while (true) {
+			boolean more = values.hasNext();
+			long value = more ? values.next() : 0;
+			if (!more || value != previous + 1) {
+				out.writeVarint(firstRun ? zigzag(runStart) : runStart
+						- lastEnd - 1);
+				out.writeVarint(previous - runStart);
+				firstRun = false;
+				lastEnd = previous + 1;
+				runStart = value;
+			}
+			if (!more) {
+				return;
+			}
+			previous = value;
+		}
+	}
+
+	private static void readRuns(Reader in, Sink sink) {
+		long runCount = in.readVarint();
+		long end = 0;
+		for (long i = 0; i < runCount; i++) {
+			long gap = in.readVarint();
+			long start = i == 0 ? unzigzag(gap) : end + gap + 1;
+			end = start + in.readVarint() + 1;
+			sink.onRange(start, end);
+		}
+	}
+
+	private static void writeBitmap(Values values, long first, long span,
+			Writer out) {
+		out.writeVarint(zigzag(first));
+		out.writeVarint(span);
+		int base = out.position;
+		while (values.hasNext()) {
+			long bit = values.next() - first;
+			out.bytes[base + (int) (bit >>> 3)] |= 1 << (bit & 7);
+		}
+		out.position += (int) ((span + 7) / 8);
+	}
+
+	private static void readBitmap(Reader in, Sink sink) {
+		long first = unzigzag(in.readVarint());
+		long span = in.readVarint();
+		if (span > MAX_BITMAP_SPAN || in.position + (span + 7) / 8 > in.bytes.length) {
+			throw new IllegalArgumentException("Invalid bitmap");
+		}
+		long runStart = -1;
+		for (long bit = 0; bit < span; bit++) {
+			boolean set = (in.bytes[in.position + (int) (bit >>> 3)] & (1 << (bit & 7))) != 0;
+			if (set && runStart < 0) {
+				runStart = bit;
+			} else if (!set && runStart >= 0) {
+				sink.onRange(first + runStart, first + bit);
+				runStart = -1;
+			}
+		}
+		if (runStart >= 0) {
+			sink.onRange(first + runStart, first + span);
+		}
+	}
+
+	/*
+	 * Size of one run: the gap from the end of the previous run (or the
+	 * start itself for the first run) and the length
+	 */
+	private static long runSize(int index, long start, long end, long previousEnd) {
+		long gap = index == 0 ? zigzag(start) : start - previousEnd - 1;
+		return varintSize(gap) + varintSize(end - start - 1);
+	}
+
+	static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static int varintSize(long value) {
+		int size = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	private static final class Writer {
+
+		final byte[] bytes;
+		int position;
+
+		Writer(int size) {
+			bytes = new byte[size];
+		}
+
+		void write(int b) {
+			bytes[position++] = (byte) b;
+		}
+
+		void writeVarint(long value) {
+			while ((value & ~0x7FL) != 0) {
+				bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			bytes[position++] = (byte) value;
+		}
+	}
+
+	private static final class Reader {
+
+		final byte[] bytes;
+		int position;
+
+		Reader(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		int read() {
+			return bytes[position++] & 0xFF;
+		}
+
+		long readVarint() {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = bytes[position++];
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IllegalArgumentException("Malformed varint");
+		}
+	}
+
+	/**
+	 * Values taken from a sorted array
+	 */
+	static Values of(final long[] sorted) {
+		return new Values() {
+
+			private int index;
+
+			@Override
+			public void reset() {
+				index = 0;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return index < sorted.length;
+			}
+
+			@Override
+			public long next() {
+				return sorted[index++];
+			}
+		};
+	}
+
+	/**
+	 * Values taken from chosen positions
+	 */
+	static Values of(final ChosenItems chosen) {
+		return new Values() {
+
+			private IntIterator iterator;
+
+			@Override
+			public void reset() {
+				iterator = chosen.iterator();
+			}
+
+			@Override
+			public boolean hasNext() {
+				return iterator.hasNext();
+			}
+
+			@Override
+			public long next() {
+				return iterator.next();
+			}
+		};
+	}
+}
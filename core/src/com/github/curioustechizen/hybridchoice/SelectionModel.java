@@ -0,0 +1,1242 @@
+package com.github.curioustechizen.hybridchoice;
+
+import java.util.Arrays;
+
+/**
+ * The chosen and opened state behind a hybrid choice adapter. Both
+ * {@link HybridChoiceAdapter} and {@code HybridChoiceRecyclerAdapter} delegate
+ * to one of these, so the two behave the same way. It has no dependency on
+ * Android.
+ *
+ * Items are tracked by position, or by stable id if the model is created in
+ * stable id mode.
+ */
+public class SelectionModel {
+
+	/**
+	 * The items a {@link SelectionModel} keeps the state of
+	 */
+	public interface Items {
+
+		/**
+		 * @return The number of items
+		 */
+		int getCount();
+
+		/**
+		 * Only called in stable id mode
+		 *
+		 * @return The stable id of the item at a position
+		 */
+		long getItemId(int position);
+	}
+
+	/**
+	 * Notified by the model after the chosen or opened state of items has
+	 * changed, so that the adapter can restyle them
+	 */
+	interface Callback {
+
+		/**
+		 * The chosen state of some items in [from, to) may have changed
+		 */
+		void onChosenChanged(int from, int to);
+
+		/**
+		 * The opened item has moved. Either position may be {@code -1}.
+		 */
+		void onOpenedChanged(int previous, int current);
+	}
+
+	private final Items items;
+
+	private final boolean stableIds;
+
+	/**
+	 * The set of currently chosen items
+	 */
+	private SelectionStore chosenItems;
+
+	/**
+	 * In position mode, the store that {@link #chosenItems} refers to. It
+	 * wraps the actual store so that inserted and removed items move the
+	 * chosen positions lazily. {@code null} if the store is a
+	 * {@link #concurrentStore}.
+	 */
+	private ShiftingSelectionStore shiftingStore;
+
+	/**
+	 * The store set with {@link #setSelectionStore(SelectionStore)} if it is
+	 * a {@link ConcurrentSelectionStore}. It is used as it is rather than
+	 * wrapped, since lazily moved positions would be rewritten behind the
+	 * back of its readers; positions are moved with its atomic operations
+	 * instead.
+	 */
+	private ConcurrentSelectionStore concurrentStore;
+
+	/**
+	 * Read-only view of {@link #chosenItems} handed out by
+	 * {@link #getChosenItems()}
+	 */
+	private final ChosenItems chosenItemsView = new ChosenItemsView();
+
+	/**
+	 * The currently opened item
+	 */
+	private int openedItem = -1;
+
+	/**
+	 * In stable id mode, the store that {@link #chosenItems} refers to
+	 */
+	private StableIdSelectionStore stableIdStore;
+
+	/**
+	 * In stable id mode, the id of the currently opened item. Only meaningful
+	 * if {@link #hasOpenedId} is set.
+	 */
+	private long openedId;
+	private boolean hasOpenedId;
+
+	/**
+	 * In stable id mode, the position of the opened item, or {@code -1} if no
+	 * item has its id. Moved along where the adapter can tell what changed,
+	 * and only meaningful if {@link #openedLocated} is set; after any other
+	 * change to the data, the items are scanned for the id when next needed.
+	 */
+	private int openedPosition = -1;
+	private boolean openedLocated = true;
+
+	/**
+	 * The chosen count of each section, or {@code null} if no sections were
+	 * declared
+	 */
+	private SectionCounts sections;
+
+	private Callback callback;
+
+	private static final SelectionObserver[] NO_OBSERVERS = new SelectionObserver[0];
+
+	/**
+	 * Replaced rather than modified, so that observers can be added or
+	 * removed while being notified
+	 */
+	private SelectionObserver[] observers = NO_OBSERVERS;
+
+	/*
+	 * Batching: how deeply nested, the range of positions changed so far and
+	 * how many changes there were, the only change if there was just one,
+	 * and the opened item before the batch. batchPosition is -1 unless the
+	 * only change was to a single item.
+	 */
+	private int batchDepth;
+	private int batchFrom, batchTo;
+	private int batchChanges;
+	private int batchPosition;
+	private boolean batchChosen;
+	private boolean batchOpenedChanged;
+	private int batchOpenedPrevious;
+
+	/**
+	 * Constructor
+	 *
+	 * @param items
+	 *            The items whose state this model keeps
+	 * @param stableIds
+	 *            Whether to track items by their
+	 *            {@linkplain Items#getItemId(int) stable ids} rather than by
+	 *            position
+	 */
+	public SelectionModel(Items items, boolean stableIds) {
+		this.items = items;
+		this.stableIds = stableIds;
+		if (stableIds) {
+			this.stableIdStore = new StableIdSelectionStore(new ModelItemIds());
+			this.chosenItems = stableIdStore;
+		} else {
+			this.shiftingStore = new ShiftingSelectionStore(
+					new BitmapSelectionStore());
+			this.chosenItems = shiftingStore;
+		}
+	}
+
+	void setCallback(Callback callback) {
+		this.callback = callback;
+	}
+
+	/**
+	 * Register an observer of changes to the chosen and opened items
+	 *
+	 * @param observer
+	 *            The observer to add
+	 */
+	public void addObserver(SelectionObserver observer) {
+		if (observer == null) {
+			throw new IllegalArgumentException("observer must not be null");
+		}
+		SelectionObserver[] added = Arrays.copyOf(observers, observers.length + 1);
+		added[observers.length] = observer;
+		observers = added;
+	}
+
+	/**
+	 * Unregister an observer added with
+	 * {@link #addObserver(SelectionObserver)}
+	 *
+	 * @param observer
+	 *            The observer to remove
+	 */
+	public void removeObserver(SelectionObserver observer) {
+		for (int i = 0; i < observers.length; i++) {
+			if (observers[i] == observer) {
+				SelectionObserver[] removed = new SelectionObserver[observers.length - 1];
+				System.arraycopy(observers, 0, removed, 0, i);
+				System.arraycopy(observers, i + 1, removed, i, removed.length - i);
+				observers = removed.length == 0 ? NO_OBSERVERS : removed;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Start a batch of changes. Until the matching {@link #endBatch()}, rows
+	 * are not restyled and observers are not notified; when it is called, all
+	 * the changes are reported at once. Batches may be nested, in which case
+	 * only the outermost one counts.
+	 */
+	public void beginBatch() {
+		if (batchDepth++ == 0) {
+			batchFrom = Integer.MAX_VALUE;
+			batchTo = Integer.MIN_VALUE;
+			batchChanges = 0;
+			batchOpenedChanged = false;
+		}
+	}
+
+	/**
+	 * End a batch of changes started with {@link #beginBatch()}, reporting
+	 * them if this is the outermost batch
+	 *
+	 * @throws IllegalStateException
+	 *             If no batch was started
+	 */
+	public void endBatch() {
+		if (batchDepth == 0) {
+			throw new IllegalStateException("endBatch() without beginBatch()");
+		}
+		if (--batchDepth > 0) {
+			return;
+		}
+		if (batchChanges == 1 && batchPosition >= 0) {
+			itemChosenChanged(batchPosition, batchChosen);
+		} else if (batchChanges > 0) {
+			chosenRangeChanged(batchFrom, Math.min(batchTo, items.getCount()),
+					true);
+		}
+		if (batchOpenedChanged) {
+			openedChanged(batchOpenedPrevious, getOpenedItem(), true);
+		}
+	}
+
+	/**
+	 * Whether items are tracked by stable id
+	 *
+	 * @return {@code true} if the model was created in stable id mode
+	 */
+	public boolean hasStableIds() {
+		return stableIds;
+	}
+
+	/**
+	 * Replace the store that keeps track of chosen items. The default is a
+	 * {@link BitmapSelectionStore}. Items chosen in the previous store are
+	 * discarded; the model reflects whatever the new store contains.
+	 * <p>
+	 * Positions moved by {@link #onItemsInserted(int, int)} and
+	 * {@link #onItemsRemoved(int, int)} are written to the store lazily, the
+	 * next time the chosen items are changed or iterated, except in a
+	 * {@link ConcurrentSelectionStore}, where they are moved at once in a
+	 * single write.
+	 *
+	 * @param store
+	 *            The store to use from now on
+	 * @throws IllegalStateException
+	 *             If the model tracks items by stable id
+	 */
+	public void setSelectionStore(SelectionStore store) {
+		if (store == null) {
+			throw new IllegalArgumentException("store must not be null");
+		}
+		if (stableIds) {
+			throw new IllegalStateException(
+					"The selection store cannot be replaced in stable id mode");
+		}
+		if (store instanceof ConcurrentSelectionStore) {
+			this.concurrentStore = (ConcurrentSelectionStore) store;
+			this.shiftingStore = null;
+			this.chosenItems = store;
+		} else {
+			this.concurrentStore = null;
+			this.shiftingStore = new ShiftingSelectionStore(store);
+			this.chosenItems = shiftingStore;
+		}
+		invalidateSections();
+		chosenRangeChanged(0, items.getCount(), true);
+	}
+
+	/**
+	 * Tell the model that the store set with
+	 * {@link #setSelectionStore(SelectionStore)} has been changed directly,
+	 * e.g. from a background thread through a
+	 * {@link ConcurrentSelectionStore}. Every item is restyled and observers
+	 * are notified. Must be called on the main thread.
+	 * <p>
+	 * Items inserted or removed through the model move the positions in a
+	 * {@link ConcurrentSelectionStore} in single writes, so other threads may
+	 * keep writing meanwhile, though a write made just before a move ends up
+	 * at the moved position. Items removed or put back in bulk, e.g. through
+	 * {@link HybridChoiceAdapter#removeChosenItems()}, replace the moved
+	 * positions in one write as well, but writes made while the new positions
+	 * are being worked out are lost.
+	 */
+	public void onStoreChanged() {
+		invalidateSections();
+		chosenRangeChanged(0, items.getCount(), true);
+	}
+
+	/**
+	 * Changes the chosen state of an item
+	 *
+	 * @param position
+	 *            The position of the item
+	 * @param chosen
+	 *            Whether the item is to be set as chosen
+	 */
+	public void setItemChosen(int position, boolean chosen) {
+		if (!chosen && isItemChosen(position)) {
+			chosenItems.remove(position);
+			sectionItemChanged(position, false);
+			itemChosenChanged(position, false);
+		} else if (chosen && !isItemChosen(position)) {
+			chosenItems.add(position);
+			sectionItemChanged(position, true);
+			itemChosenChanged(position, true);
+		}
+	}
+
+	/**
+	 * Changes the chosen state of a range of items in one go
+	 *
+	 * @param from
+	 *            The position of the first item in the range (inclusive)
+	 * @param to
+	 *            The end of the range (exclusive)
+	 * @param chosen
+	 *            Whether the items are to be set as chosen
+	 */
+	public void setRangeChosen(int from, int to, boolean chosen) {
+		int count = items.getCount();
+		if (from < 0 || to > count || from > to) {
+			throw new IndexOutOfBoundsException("Invalid range [" + from
+					+ ", " + to + ") for " + count + " items");
+		}
+		if (sections != null) {
+			sections.onRangeChanging(from, to, chosen, chosenItems, count);
+		}
+		if (chosen) {
+			chosenItems.addRange(from, to);
+		} else {
+			chosenItems.removeRange(from, to);
+		}
+		chosenRangeChanged(from, to, true);
+	}
+
+	/**
+	 * Set all items as chosen
+	 */
+	public void selectAll() {
+		setRangeChosen(0, items.getCount(), true);
+	}
+
+	/**
+	 * Invert the chosen state of every item
+	 */
+	public void invertSelection() {
+		int count = items.getCount();
+		chosenItems.flipRange(0, count);
+		if (sections != null) {
+			sections.onInverted(count);
+		}
+		chosenRangeChanged(0, count, true);
+	}
+
+	/**
+	 * Toggle the chosen state of an item
+	 *
+	 * @param position
+	 *            The position of the item
+	 */
+	public void toggleItem(int position) {
+		boolean chosen = !isItemChosen(position);
+		if (chosen) {
+			chosenItems.add(position);
+		} else {
+			chosenItems.remove(position);
+		}
+		sectionItemChanged(position, chosen);
+		itemChosenChanged(position, chosen);
+	}
+
+	/**
+	 * Clear all choices
+	 */
+	public void clearChoices() {
+		int first = chosenItems.nextPosition(0);
+		chosenItems.clear();
+		if (sections != null) {
+			sections.onCleared();
+		}
+		if (first >= 0) {
+			chosenRangeChanged(first, items.getCount(), true);
+		}
+	}
+
+	/**
+	 * Whether an item is chosen
+	 *
+	 * @param position
+	 *            The position of the item
+	 * @return {@code true} if the item at that position is chosen
+	 */
+	public boolean isItemChosen(int position) {
+		return chosenItems.contains(position);
+	}
+
+	/**
+	 * Get the currently chosen items
+	 *
+	 * @return A read-only view of the positions of the currently chosen items,
+	 *         which reflects later changes
+	 */
+	public ChosenItems getChosenItems() {
+		return chosenItemsView;
+	}
+
+	/**
+	 * Get the number of chosen items
+	 *
+	 * @return The number of chosen items
+	 */
+	public int getChosenItemsCount() {
+		return chosenItems.size();
+	}
+
+	/**
+	 * Set the currently opened item
+	 *
+	 * @param position
+	 *            The position of the opened item, or {@code -1} for none
+	 */
+	public void setOpenedItem(int position) {
+		int previous = isObserved() ? getOpenedItem() : -1;
+		if (stableIds) {
+			hasOpenedId = position >= 0 && position < items.getCount();
+			if (hasOpenedId) {
+				openedId = items.getItemId(position);
+				openedPosition = position;
+				openedLocated = true;
+			}
+		} else {
+			this.openedItem = position;
+		}
+		openedChanged(previous, position, true);
+	}
+
+	/**
+	 * Get the currently opened item
+	 *
+	 * @return The position of the opened item, or {@code -1} for none
+	 */
+	public int getOpenedItem() {
+		if (stableIds) {
+			return openedPosition();
+		}
+		return this.openedItem;
+	}
+
+	/**
+	 * Whether an item is opened
+	 *
+	 * @param position
+	 *            The position of the item
+	 * @return {@code true} if the item is opened
+	 */
+	public boolean isItemOpened(int position) {
+		if (stableIds) {
+			return hasOpenedId && position >= 0 && position < items.getCount()
+					&& items.getItemId(position) == openedId;
+		}
+		return this.openedItem == position;
+	}
+
+	/**
+	 * Encode the chosen and opened items into a compact {@code byte[]}, e.g.
+	 * for saved instance state. In stable id mode, ids are saved rather than
+	 * positions.
+	 *
+	 * @return The encoded state
+	 */
+	public byte[] saveState() {
+		if (stableIds) {
+			long[] ids = stableIdStore.toIdArray();
+			Arrays.sort(ids);
+			return SelectionCodec.encode(SelectionCodec.of(ids), true,
+					hasOpenedId, openedId);
+		}
+		return SelectionCodec.encode(SelectionCodec.of(chosenItems), false,
+				openedItem >= 0, openedItem);
+	}
+
+	/**
+	 * Replace the chosen and opened items with those saved by
+	 * {@link #saveState()}. Saved positions past the end of the items are
+	 * dropped. The state is decoded in full first, so if it is invalid, the
+	 * model is left as it was.
+	 *
+	 * @param state
+	 *            The encoded state
+	 * @throws IllegalArgumentException
+	 *             If the state was not saved by a model of the same mode, or
+	 *             is in an unknown format
+	 */
+	public void restoreState(byte[] state) {
+		DecodedState decoded = new DecodedState();
+		SelectionCodec.decode(state, stableIds, decoded);
+
+		int count = items.getCount();
+		int previousOpened = isObserved() ? getOpenedItem() : -1;
+		chosenItems.clear();
+		openedItem = -1;
+		hasOpenedId = false;
+		invalidateSections();
+		if (decoded.hasOpened) {
+			if (stableIds) {
+				openedId = decoded.opened;
+				hasOpenedId = true;
+				openedLocated = false;
+			} else if (decoded.opened < count) {
+				openedItem = (int) decoded.opened;
+			}
+		}
+		long[] ranges = decoded.ranges;
+		for (int i = 0; i < decoded.rangeCount; i += 2) {
+			long from = ranges[i], to = ranges[i + 1];
+			if (stableIds) {
+				for (long id = from; id != to; id++) {
+					stableIdStore.addId(id);
+				}
+			} else if (from < count) {
+				chosenItems.addRange((int) from, (int) Math.min(to, count));
+			}
+		}
+		chosenRangeChanged(0, count, true);
+		openedChanged(previousOpened, getOpenedItem(), true);
+	}
+
+	/**
+	 * A decoded state, kept until decoding has succeeded
+	 */
+	private static class DecodedState implements SelectionCodec.Sink {
+
+		boolean hasOpened;
+		long opened;
+
+		/*
+		 * The chosen ranges, as pairs of from and to
+		 */
+		long[] ranges = new long[16];
+		int rangeCount;
+
+		@Override
+		public void onOpened(long value) {
+			hasOpened = true;
+			opened = value;
+		}
+
+		@Override
+		public void onRange(long from, long to) {
+			if (rangeCount == ranges.length) {
+				ranges = Arrays.copyOf(ranges, rangeCount * 2);
+			}
+			ranges[rangeCount++] = from;
+			ranges[rangeCount++] = to;
+		}
+	}
+
+	/**
+	 * Tell the model that the items in [from, to) have just been appended.
+	 * In stable id mode, only the appended items are looked at to keep the
+	 * positions of the chosen and opened ids up to date.
+	 */
+	public void onItemsAppended(int from, int to) {
+		if (!stableIds) {
+			return;
+		}
+		invalidateSections();
+		stableIdStore.insertRange(from, to - from);
+		shiftOpened(from, 0, to - from);
+	}
+
+	/**
+	 * Tell the model that items have been inserted in [at, at + count). They
+	 * are not chosen, and chosen and opened items after them move down with
+	 * them. In position mode this doesn't visit the chosen positions, so it
+	 * stays cheap however often items are inserted, e.g. at the top of a
+	 * chat. In stable id mode the positions of the chosen and opened ids are
+	 * moved the same way, and only the inserted items are looked at.
+	 */
+	public void onItemsInserted(int at, int count) {
+		if (count <= 0) {
+			return;
+		}
+		if (stableIds) {
+			if (at + count == items.getCount()) {
+				onItemsAppended(at, at + count);
+				return;
+			}
+			invalidateSections();
+			stableIdStore.insertRange(at, count);
+			shiftOpened(at, 0, count);
+			return;
+		}
+		invalidateSections();
+		if (concurrentStore != null) {
+			concurrentStore.insertRange(at, count);
+		} else {
+			shiftingStore.insertRange(at, count);
+		}
+		if (!chosenItems.isEmpty()) {
+			chosenRangeChanged(at, items.getCount(), false);
+		}
+		if (openedItem >= at) {
+			int previous = openedItem;
+			openedItem += count;
+			openedChanged(previous, openedItem, false);
+		}
+	}
+
+	/**
+	 * Tell the model that the items in [at, at + count) have been removed.
+	 * They are no longer chosen or opened, and chosen and opened items after
+	 * them move up. This doesn't visit the chosen positions after the
+	 * removed items, nor in stable id mode any items. The ids of the removed
+	 * items stay chosen and opened, in case they come back.
+	 */
+	public void onItemsRemoved(int at, int count) {
+		if (count <= 0) {
+			return;
+		}
+		if (stableIds) {
+			if (items.getCount() == 0) {
+				onItemsCleared();
+				return;
+			}
+			invalidateSections();
+			stableIdStore.deleteRange(at, at + count);
+			shiftOpened(at, count, 0);
+			return;
+		}
+		invalidateSections();
+		boolean hadChosen = !chosenItems.isEmpty();
+		if (concurrentStore != null) {
+			concurrentStore.deleteRange(at, at + count);
+		} else {
+			shiftingStore.deleteRange(at, at + count);
+		}
+		if (hadChosen) {
+			chosenRangeChanged(at, items.getCount() + count, false);
+		}
+		if (openedItem >= at) {
+			int previous = openedItem;
+			openedItem = openedItem >= at + count ? openedItem - count : -1;
+			openedChanged(previous, openedItem, false);
+		}
+	}
+
+	/**
+	 * Tell the model that all items have been removed
+	 */
+	public void onItemsCleared() {
+		if (!stableIds) {
+			return;
+		}
+		invalidateSections();
+		stableIdStore.clearPositions();
+		openedPosition = -1;
+		openedLocated = true;
+	}
+
+	/**
+	 * Tell the model that the items may have changed in any way. In stable id
+	 * mode, the items are scanned for the chosen and opened ids when their
+	 * positions are next needed.
+	 */
+	public void onDataChanged() {
+		if (!stableIds) {
+			return;
+		}
+		invalidateSections();
+		stableIdStore.invalidatePositions();
+		openedLocated = false;
+	}
+
+	/**
+	 * Tell the model that the items at some positions are about to be
+	 * removed. The removed items are no longer chosen or opened, and chosen
+	 * and opened positions after them move up. Takes O(k log r) time for k
+	 * chosen items after the first removed one and r removed items.
+	 * <p>
+	 * Call this inside a batch that ends once the items are gone, so that
+	 * observers see the new positions.
+	 *
+	 * @param removed
+	 *            The positions of the items, ascending and without duplicates
+	 */
+	void onItemsRemoving(int[] removed) {
+		if (removed.length == 0) {
+			return;
+		}
+		int oldCount = items.getCount();
+		int previousOpened = isObserved() ? getOpenedItem() : -1;
+		invalidateSections();
+		if (stableIds) {
+			for (int position : removed) {
+				chosenItems.remove(position);
+			}
+			int opened = openedPosition();
+			if (opened >= 0) {
+				openedPosition = positionAfterRemoval(removed, opened);
+				hasOpenedId = openedPosition >= 0;
+			}
+			int end = removed.length;
+			for (int i = removed.length - 1; i >= 0; i--) {
+				if (i == 0 || removed[i - 1] != removed[i] - 1) {
+					stableIdStore.deleteRange(removed[i], removed[i] + end - i);
+					end = i;
+				}
+			}
+		} else {
+			ChosenItems chosen = chosenView();
+			int first = chosen.nextPosition(removed[0]);
+			if (first >= 0) {
+				int[] moved = new int[chosen.size()];
+				int count = 0;
+				for (int p = first; p >= 0; p = chosen.nextPosition(p + 1)) {
+					int shifted = positionAfterRemoval(removed, p);
+					if (shifted >= 0) {
+						moved[count++] = shifted;
+					}
+				}
+				replaceChosen(first, oldCount, moved, count);
+			}
+			if (openedItem >= 0) {
+				openedItem = positionAfterRemoval(removed, openedItem);
+			}
+		}
+		chosenRangeChanged(removed[0], oldCount, false);
+		if (isObserved()) {
+			openedChanged(previousOpened, getOpenedItem(), false);
+		}
+	}
+
+	/*
+	 * A sorted copy of positions without duplicates
+	 */
+	static int[] sortedDistinct(int[] positions) {
+		int[] sorted = positions.clone();
+		Arrays.sort(sorted);
+		int count = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (count == 0 || sorted[i] != sorted[count - 1]) {
+				sorted[count++] = sorted[i];
+			}
+		}
+		return count == sorted.length ? sorted : Arrays.copyOf(sorted, count);
+	}
+
+	/*
+	 * The chosen positions to work out moved positions from: a snapshot of a
+	 * concurrent store, so that they don't change while being read
+	 */
+	private ChosenItems chosenView() {
+		return concurrentStore != null ? concurrentStore.snapshot()
+				: chosenItems;
+	}
+
+	/*
+	 * Replace the chosen positions in [from, to) with others, in one write if
+	 * the store is a concurrent one
+	 */
+	private void replaceChosen(int from, int to, int[] positions, int count) {
+		if (concurrentStore != null) {
+			concurrentStore.replaceRange(from, to, positions, count);
+			return;
+		}
+		if (from == 0 && to == Integer.MAX_VALUE) {
+			chosenItems.clear();
+		} else {
+			chosenItems.removeRange(from, to);
+		}
+		for (int i = 0; i < count; i++) {
+			chosenItems.add(positions[i]);
+		}
+	}
+
+	/*
+	 * Where an item ends up once the items at the removed positions are gone,
+	 * or -1 if it is one of them
+	 */
+	static int positionAfterRemoval(int[] removed, int position) {
+		int index = Arrays.binarySearch(removed, position);
+		return index >= 0 ? -1 : position + index + 1;
+	}
+
+	/**
+	 * Tell the model that removed items have just been put back, e.g. to undo
+	 * a delete. Chosen and opened positions of the other items move down past
+	 * them, and the restored items are chosen again. Takes O(k log r) time for
+	 * k chosen items after the first restored one and r restored items.
+	 * <p>
+	 * Call this inside a batch that ends once the adapter has been notified.
+	 *
+	 * @param restored
+	 *            The positions of the restored items now, ascending and
+	 *            without duplicates
+	 * @param opened
+	 *            The position of a restored item to open again, or {@code -1}
+	 *            to keep the opened item
+	 */
+	void onItemsRestored(int[] restored, int opened) {
+		if (restored.length == 0) {
+			return;
+		}
+		int count = items.getCount();
+		int previousOpened = openedItem;
+		invalidateSections();
+		if (stableIds) {
+			/*
+			 * The positions are still those from before the items came back
+			 */
+			previousOpened = hasOpenedId && openedLocated ? openedPosition : -1;
+			int start = 0;
+			for (int i = 0; i < restored.length; i++) {
+				if (i + 1 == restored.length
+						|| restored[i + 1] != restored[i] + 1) {
+					stableIdStore.insertRange(restored[start], i + 1 - start);
+					shiftOpened(restored[start], 0, i + 1 - start);
+					start = i + 1;
+				}
+			}
+			for (int position : restored) {
+				chosenItems.add(position);
+			}
+		} else {
+			/*
+			 * Nothing is chosen between the first restored position and the
+			 * first chosen one after it, so all of [restored[0], count) is
+			 * replaced by the moved and the restored positions
+			 */
+			ChosenItems chosen = chosenView();
+			int[] moved = new int[chosen.size() + restored.length];
+			int movedCount = 0;
+			for (int p = chosen.nextPosition(restored[0]); p >= 0; p = chosen
+					.nextPosition(p + 1)) {
+				moved[movedCount++] = positionAfterRestore(restored, p);
+			}
+			for (int position : restored) {
+				moved[movedCount++] = position;
+			}
+			replaceChosen(restored[0], count, moved, movedCount);
+			if (openedItem >= 0) {
+				openedItem = positionAfterRestore(restored, openedItem);
+			}
+		}
+		if (opened >= 0) {
+			if (stableIds) {
+				openedId = items.getItemId(opened);
+				hasOpenedId = true;
+				openedPosition = opened;
+				openedLocated = true;
+			} else {
+				openedItem = opened;
+			}
+		}
+		chosenRangeChanged(restored[0], count, false);
+		if (isObserved()) {
+			openedChanged(previousOpened, getOpenedItem(), false);
+		}
+	}
+
+	/*
+	 * Where an item ends up once the items at the restored positions are back.
+	 * The i-th restored item goes in front of every item at or after
+	 * restored[i] - i, which is ascending, so a binary search finds how many
+	 * go in front of this one.
+	 */
+	static int positionAfterRestore(int[] restored, int position) {
+		int low = 0;
+		int high = restored.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (restored[mid] - mid <= position) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return position + low;
+	}
+
+	/**
+	 * Tell the model that the items have been replaced by a new list, and
+	 * where each old item went. Chosen and opened positions follow their
+	 * items; items that went away are no longer chosen or opened. Observers
+	 * are notified, but rows are not restyled, since the adapter reports the
+	 * changed rows itself.
+	 *
+	 * @param oldToNew
+	 *            The new position of each old item, or {@code -1} if it was
+	 *            removed
+	 */
+	void onItemsRemapped(int[] oldToNew) {
+		int previousOpened = openedItem;
+		invalidateSections();
+		if (stableIds) {
+			previousOpened = hasOpenedId && openedLocated ? openedPosition : -1;
+			stableIdStore.remapPositions(oldToNew);
+			if (previousOpened >= 0) {
+				openedPosition = previousOpened < oldToNew.length
+						? oldToNew[previousOpened] : -1;
+			} else {
+				/*
+				 * The opened id may have come back with one of the new items
+				 */
+				openedLocated = false;
+			}
+		} else {
+			if (!chosenItems.isEmpty()) {
+				int[] chosen = chosenView().toArray();
+				int[] moved = new int[chosen.length];
+				int count = 0;
+				for (int position : chosen) {
+					int newPosition = position < oldToNew.length ? oldToNew[position]
+							: -1;
+					if (newPosition >= 0) {
+						moved[count++] = newPosition;
+					}
+				}
+				replaceChosen(0, Integer.MAX_VALUE, moved, count);
+			}
+			if (openedItem >= 0) {
+				openedItem = openedItem < oldToNew.length ? oldToNew[openedItem]
+						: -1;
+			}
+		}
+		chosenRangeChanged(0, Math.max(oldToNew.length, items.getCount()),
+				false);
+		if (isObserved()) {
+			openedChanged(previousOpened, getOpenedItem(), false);
+		}
+	}
+
+	/**
+	 * Declare the sections of a grouped list, e.g. by date or folder, so that
+	 * the number of chosen items in each can be read in O(1). The counts are
+	 * kept up to date as items are chosen; after the items change, they are
+	 * recounted the next time they are read. Declare the sections again when
+	 * their boundaries move.
+	 *
+	 * @param sectionStarts
+	 *            The first position of each section, strictly ascending and
+	 *            starting with 0, or {@code null} for no sections. Each
+	 *            section ends where the next one starts; the last one at the
+	 *            end of the items.
+	 * @throws IllegalArgumentException
+	 *             If the positions are not strictly ascending from 0
+	 */
+	public void setSections(int[] sectionStarts) {
+		this.sections = sectionStarts != null ? new SectionCounts(
+				sectionStarts) : null;
+	}
+
+	/**
+	 * Get the number of sections
+	 *
+	 * @return The number of sections declared with
+	 *         {@link #setSections(int[])}, or 0 if none were
+	 */
+	public int getSectionCount() {
+		return sections != null ? sections.getSectionCount() : 0;
+	}
+
+	/**
+	 * Get the section an item belongs to, in O(log s) time for s sections
+	 *
+	 * @param position
+	 *            The position of the item
+	 * @return The index of the section
+	 * @throws IllegalStateException
+	 *             If no sections were declared
+	 */
+	public int getSectionForPosition(int position) {
+		return requireSections().sectionOf(position);
+	}
+
+	/**
+	 * Get the first position of a section
+	 *
+	 * @param section
+	 *            The index of the section
+	 * @return The position of the first item of the section
+	 * @throws IllegalStateException
+	 *             If no sections were declared
+	 */
+	public int getSectionStart(int section) {
+		return requireSections().getStart(section);
+	}
+
+	/**
+	 * Get the end of a section
+	 *
+	 * @param section
+	 *            The index of the section
+	 * @return The position after the last item of the section
+	 * @throws IllegalStateException
+	 *             If no sections were declared
+	 */
+	public int getSectionEnd(int section) {
+		return requireSections().getEnd(section, items.getCount());
+	}
+
+	/**
+	 * Get the number of chosen items in a section. Takes O(1) time, except
+	 * for the first call after the items changed, which recounts all
+	 * sections.
+	 *
+	 * @param section
+	 *            The index of the section
+	 * @return The number of chosen items in the section
+	 * @throws IllegalStateException
+	 *             If no sections were declared
+	 */
+	public int getChosenCountInSection(int section) {
+		return requireSections().getChosenCount(section, chosenItems);
+	}
+
+	/**
+	 * Choose or clear every item of a section in one go
+	 *
+	 * @param section
+	 *            The index of the section
+	 * @param chosen
+	 *            Whether the items are to be set as chosen
+	 * @throws IllegalStateException
+	 *             If no sections were declared
+	 */
+	public void setSectionChosen(int section, boolean chosen) {
+		SectionCounts declared = requireSections();
+		setRangeChosen(declared.getStart(section),
+				declared.getEnd(section, items.getCount()), chosen);
+	}
+
+	private SectionCounts requireSections() {
+		if (sections == null) {
+			throw new IllegalStateException("No sections have been declared");
+		}
+		return sections;
+	}
+
+	private void sectionItemChanged(int position, boolean chosen) {
+		if (sections != null) {
+			sections.onItemChanged(position, chosen);
+		}
+	}
+
+	private void invalidateSections() {
+		if (sections != null) {
+			sections.invalidate();
+		}
+	}
+
+	private boolean isObserved() {
+		return callback != null || observers.length != 0;
+	}
+
+	/*
+	 * Report that one item has been chosen or is no longer chosen, or record
+	 * it if a batch is in progress
+	 */
+	private void itemChosenChanged(int position, boolean chosen) {
+		if (batchDepth > 0) {
+			batchPosition = ++batchChanges == 1 ? position : -1;
+			batchChosen = chosen;
+			extendBatch(position, position + 1);
+			return;
+		}
+		if (callback != null) {
+			callback.onChosenChanged(position, position + 1);
+		}
+		SelectionObserver[] current = observers;
+		for (int i = 0; i < current.length; i++) {
+			current[i].onItemChosenChanged(position, chosen);
+		}
+	}
+
+	/*
+	 * Report that items in [from, to) may have changed, restyling their rows
+	 * if asked to, or record it if a batch is in progress
+	 */
+	private void chosenRangeChanged(int from, int to, boolean restyle) {
+		if (from >= to) {
+			return;
+		}
+		if (batchDepth > 0) {
+			batchChanges++;
+			batchPosition = -1;
+			extendBatch(from, to);
+			return;
+		}
+		if (restyle && callback != null) {
+			callback.onChosenChanged(from, to);
+		}
+		SelectionObserver[] current = observers;
+		for (int i = 0; i < current.length; i++) {
+			current[i].onChosenRangeChanged(from, to);
+		}
+	}
+
+	private void extendBatch(int from, int to) {
+		batchFrom = Math.min(batchFrom, from);
+		batchTo = Math.max(batchTo, to);
+	}
+
+	/*
+	 * Report that the opened item has moved, restyling its rows if asked to,
+	 * or record it if a batch is in progress
+	 */
+	private void openedChanged(int previous, int current, boolean restyle) {
+		if (previous == current) {
+			return;
+		}
+		if (batchDepth > 0) {
+			if (!batchOpenedChanged) {
+				batchOpenedChanged = true;
+				batchOpenedPrevious = previous;
+			}
+			return;
+		}
+		if (restyle && callback != null) {
+			callback.onOpenedChanged(previous, current);
+		}
+		SelectionObserver[] observing = observers;
+		for (int i = 0; i < observing.length; i++) {
+			observing[i].onOpenedItemChanged(previous, current);
+		}
+	}
+
+	/*
+	 * In stable id mode, the position of the opened item, or -1
+	 */
+	private int openedPosition() {
+		if (!hasOpenedId) {
+			return -1;
+		}
+		if (!openedLocated) {
+			openedPosition = -1;
+			int count = items.getCount();
+			for (int position = 0; position < count; position++) {
+				if (items.getItemId(position) == openedId) {
+					openedPosition = position;
+					break;
+				}
+			}
+			openedLocated = true;
+		}
+		return openedPosition;
+	}
+
+	/*
+	 * In stable id mode, move the opened position past the items that
+	 * replaced those in [at, at + removed), and look for the opened id among
+	 * the new ones if no item had it
+	 */
+	private void shiftOpened(int at, int removed, int inserted) {
+		if (!hasOpenedId || !openedLocated) {
+			return;
+		}
+		if (openedPosition >= at + removed) {
+			openedPosition += inserted - removed;
+		} else if (openedPosition >= at) {
+			openedPosition = -1;
+		}
+		if (openedPosition < 0) {
+			for (int position = at; position < at + inserted; position++) {
+				if (items.getItemId(position) == openedId) {
+					openedPosition = position;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Position to id translation for the {@link StableIdSelectionStore}
+	 */
+	private class ModelItemIds implements StableIdSelectionStore.ItemIds {
+
+		@Override
+		public int getCount() {
+			return items.getCount();
+		}
+
+		@Override
+		public long getItemId(int position) {
+			return items.getItemId(position);
+		}
+	}
+
+	/**
+	 * Read-only view that always delegates to the current {@link #chosenItems}
+	 */
+	private class ChosenItemsView implements ChosenItems {
+
+		@Override
+		public boolean contains(int position) {
+			return chosenItems.contains(position);
+		}
+
+		@Override
+		public int size() {
+			return chosenItems.size();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return chosenItems.isEmpty();
+		}
+
+		@Override
+		public int nextPosition(int fromPosition) {
+			return chosenItems.nextPosition(fromPosition);
+		}
+
+		@Override
+		public IntIterator iterator() {
+			return chosenItems.iterator();
+		}
+
+		@Override
+		public int[] toArray() {
+			return chosenItems.toArray();
+		}
+	}
+}
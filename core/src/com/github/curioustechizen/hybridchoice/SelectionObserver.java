@@ -0,0 +1,47 @@
+package com.github.curioustechizen.hybridchoice;
+
+/**
+ * Notified after the chosen or opened items of a hybrid choice adapter have
+ * changed. Register one with
+ * {@link HybridChoiceAdapter#addSelectionObserver(SelectionObserver)} or
+ * {@code HybridChoiceRecyclerAdapter#addSelectionObserver(SelectionObserver)}.
+ * <p>
+ * Changes made between {@link SelectionModel#beginBatch()} and
+ * {@link SelectionModel#endBatch()} are reported once, when the batch ends: as
+ * a single {@link #onItemChosenChanged(int, boolean)} if only one item was
+ * changed, and as one {@link #onChosenRangeChanged(int, int)} covering all of
+ * them otherwise.
+ */
+public interface SelectionObserver {
+
+	/**
+	 * An item has been chosen or is no longer chosen
+	 *
+	 * @param position
+	 *            The position of the item
+	 * @param chosen
+	 *            Whether the item is now chosen
+	 */
+	void onItemChosenChanged(int position, boolean chosen);
+
+	/**
+	 * The chosen state of some items in [from, to) may have changed
+	 *
+	 * @param from
+	 *            The position of the first item that may have changed
+	 *            (inclusive)
+	 * @param to
+	 *            The end of the range (exclusive)
+	 */
+	void onChosenRangeChanged(int from, int to);
+
+	/**
+	 * The opened item has changed
+	 *
+	 * @param previous
+	 *            The position of the previously opened item, or {@code -1}
+	 * @param current
+	 *            The position of the opened item, or {@code -1}
+	 */
+	void onOpenedItemChanged(int previous, int current);
+}
@@ -0,0 +1,67 @@
+package com.github.curioustechizen.hybridchoice;
+
+/**
+ * Storage for the chosen positions of a {@link HybridChoiceAdapter}. The
+ * default implementation is {@link BitmapSelectionStore}; a different
+ * implementation can be plugged in using
+ * {@link HybridChoiceAdapter#setSelectionStore(SelectionStore)}.
+ *
+ * Implementations need not be thread-safe. They must not allocate in
+ * {@link #contains(int)} since it is called on every bind.
+ */
+public interface SelectionStore extends ChosenItems {
+
+	/**
+	 * Add a position to the set
+	 *
+	 * @param position
+	 *            The position to add. Must not be negative.
+	 * @return {@code true} if the position was not already in the set
+	 */
+	boolean add(int position);
+
+	/**
+	 * Remove a position from the set
+	 *
+	 * @param position
+	 *            The position to remove
+	 * @return {@code true} if the position was in the set
+	 */
+	boolean remove(int position);
+
+	/**
+	 * Add every position in a range to the set
+	 *
+	 * @param from
+	 *            The first position of the range (inclusive)
+	 * @param to
+	 *            The end of the range (exclusive)
+	 */
+	void addRange(int from, int to);
+
+	/**
+	 * Remove every position in a range from the set
+	 *
+	 * @param from
+	 *            The first position of the range (inclusive)
+	 * @param to
+	 *            The end of the range (exclusive)
+	 */
+	void removeRange(int from, int to);
+
+	/**
+	 * Add every position in a range that is not in the set, and remove every
+	 * position in the range that is
+	 *
+	 * @param from
+	 *            The first position of the range (inclusive)
+	 * @param to
+	 *            The end of the range (exclusive)
+	 */
+	void flipRange(int from, int to);
+
+	/**
+	 * Remove all positions from the set
+	 */
+	void clear();
+}
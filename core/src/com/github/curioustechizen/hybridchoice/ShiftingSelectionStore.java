@@ -0,0 +1,483 @@
+package com.github.curioustechizen.hybridchoice;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A {@link SelectionStore} that moves chosen positions when items are
+ * inserted or removed without touching every position after them. The
+ * positions in the underlying store are left where they are, and a map from
+ * current positions to stored positions is kept on the side, as a short
+ * sorted list of segments. Each segment either holds inserted items, which are
+ * not chosen, or is offset by a fixed amount from the stored positions.
+ * <p>
+ * {@link #contains(int)} looks up the segment by binary search. Inserting or
+ * removing items updates the segments, which are few: repeated inserts or
+ * removals at the same place, e.g. the top of a chat, merge into one segment.
+ * Other operations translate their positions through the map as well, and
+ * iteration translates the stored positions back. Only choosing inserted
+ * items, which have no stored positions, or a map that has grown too long
+ * applies the map to the underlying store, so the result is always the same
+ * as moving every position at once. A {@link BitmapSelectionStore} shifts
+ * its entries in place for that; other stores have the runs of chosen
+ * positions of each segment moved.
+ */
+class ShiftingSelectionStore implements SelectionStore {
+
+	/*
+	 * The shift of a segment of inserted items
+	 */
+	private static final int INSERTED = Integer.MIN_VALUE;
+
+	/*
+	 * Above this many segments, the map is applied
+	 */
+	private static final int MAX_SEGMENTS = 64;
+
+	private static final int ADD = 0;
+	private static final int REMOVE = 1;
+	private static final int FLIP = 2;
+
+	private final SelectionStore store;
+
+	/*
+	 * Segment i covers the current positions from starts[i] up to the start
+	 * of the next one. Its items are at stored position (current - shifts[i]),
+	 * unless the shift is INSERTED. The first segment starts at 0, and the
+	 * last one goes on forever. The next* arrays are scratch space for
+	 * rebuilding the segments.
+	 */
+	private int[] starts = new int[8];
+	private int[] shifts = new int[8];
+	private int segments = 1;
+	private int[] nextStarts = new int[8];
+	private int[] nextShifts = new int[8];
+	private int nextSegments;
+
+	/*
+	 * Scratch space for the runs of a segment being moved, as [start, end)
+	 * pairs
+	 */
+	private int[] runs = new int[16];
+
+	ShiftingSelectionStore(SelectionStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Items have been inserted. They are not chosen, and chosen positions
+	 * from {@code at} on move down by {@code count}.
+	 */
+	void insertRange(int at, int count) {
+		if (count <= 0) {
+			return;
+		}
+		nextSegments = 0;
+		boolean emitted = false;
+		for (int i = 0; i < segments; i++) {
+			int start = starts[i], shift = shifts[i];
+			int end = i + 1 < segments ? starts[i + 1] : Integer.MAX_VALUE;
+			if (start >= at) {
+				if (!emitted) {
+					emit(at, INSERTED);
+					emitted = true;
+				}
+				emit(start + count, shift == INSERTED ? INSERTED : shift + count);
+			} else if (end > at) {
+				emit(start, shift);
+				emit(at, INSERTED);
+				emitted = true;
+				emit(at + count, shift == INSERTED ? INSERTED : shift + count);
+			} else {
+				emit(start, shift);
+			}
+		}
+		swapSegments();
+	}
+
+	/**
+	 * Items in [from, to) have been removed. They are no longer chosen, and
+	 * chosen positions after them move up.
+	 */
+	void deleteRange(int from, int to) {
+		if (from >= to) {
+			return;
+		}
+		int count = to - from;
+		nextSegments = 0;
+		for (int i = 0; i < segments; i++) {
+			int start = starts[i], shift = shifts[i];
+			int end = i + 1 < segments ? starts[i + 1] : Integer.MAX_VALUE;
+			if (shift != INSERTED && start < to && end > from) {
+				store.removeRange(Math.max(start, from) - shift,
+						Math.min(end, to) - shift);
+			}
+			if (start < from) {
+				emit(start, shift);
+			}
+			if (end > to) {
+				emit(Math.max(start, to) - count, shift == INSERTED ? INSERTED
+						: shift - count);
+			}
+		}
+		swapSegments();
+	}
+
+	@Override
+	public boolean contains(int position) {
+		if (position < 0) {
+			return false;
+		}
+		if (segments == 1) {
+			return store.contains(position - shifts[0]);
+		}
+		int stored = toStored(position);
+		return stored >= 0 && store.contains(stored);
+	}
+
+	@Override
+	public int size() {
+		return store.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return store.isEmpty();
+	}
+
+	@Override
+	public int nextPosition(int fromPosition) {
+		if (fromPosition < 0) {
+			fromPosition = 0;
+		}
+		for (int i = segmentOf(fromPosition); i < segments; i++) {
+			int shift = shifts[i];
+			if (shift == INSERTED) {
+				continue;
+			}
+			int stored = store.nextPosition(Math.max(starts[i], fromPosition)
+					- shift);
+			if (stored < 0) {
+				return -1;
+			}
+			/*
+			 * Past the end of the segment, it belongs to a later one
+			 */
+			if (i + 1 == segments || stored + (long) shift < starts[i + 1]) {
+				return stored + shift;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public IntIterator iterator() {
+		if (isIdentity()) {
+			return store.iterator();
+		}
+		return new IntIterator() {
+
+			private int next = nextPosition(0);
+
+			@Override
+			public boolean hasNext() {
+				return next >= 0;
+			}
+
+			@Override
+			public int next() {
+				if (next < 0) {
+					throw new NoSuchElementException();
+				}
+				int position = next;
+				next = nextPosition(position + 1);
+				return position;
+			}
+		};
+	}
+
+	@Override
+	public int[] toArray() {
+		int[] positions = store.toArray();
+		if (isIdentity()) {
+			return positions;
+		}
+		/*
+		 * The map keeps the order of the positions, so the segments are
+		 * walked along with the sorted stored positions
+		 */
+		int segment = 0;
+		for (int i = 0; i < positions.length; i++) {
+			while (true) {
+				int shift = shifts[segment];
+				if (shift != INSERTED
+						&& (segment + 1 == segments || positions[i]
+								+ (long) shift < starts[segment + 1])) {
+					positions[i] += shift;
+					break;
+				}
+				segment++;
+			}
+		}
+		return positions;
+	}
+
+	@Override
+	public boolean add(int position) {
+		if (position < 0) {
+			return store.add(position);
+		}
+		int stored = toStored(position);
+		if (stored < 0) {
+			apply();
+			stored = position;
+		}
+		return store.add(stored);
+	}
+
+	@Override
+	public boolean remove(int position) {
+		if (position < 0) {
+			return false;
+		}
+		int stored = toStored(position);
+		return stored >= 0 && store.remove(stored);
+	}
+
+	@Override
+	public void addRange(int from, int to) {
+		applyRange(from, to, ADD);
+	}
+
+	@Override
+	public void removeRange(int from, int to) {
+		applyRange(from, to, REMOVE);
+	}
+
+	@Override
+	public void flipRange(int from, int to) {
+		applyRange(from, to, FLIP);
+	}
+
+	@Override
+	public void clear() {
+		store.clear();
+		segments = 1;
+		shifts[0] = 0;
+	}
+
+	/*
+	 * The stored position of a current position, or -1 if it is an inserted
+	 * item
+	 */
+	private int toStored(int position) {
+		int segment = segmentOf(position);
+		return shifts[segment] == INSERTED ? -1 : position - shifts[segment];
+	}
+
+	/*
+	 * The segment of a current position
+	 */
+	private int segmentOf(int position) {
+		int low = 0, high = segments - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (starts[mid] <= position) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	private boolean isIdentity() {
+		return segments == 1 && shifts[0] == 0;
+	}
+
+	/*
+	 * Apply a range operation to the stored ranges of the segments it covers.
+	 * Inserted items have no stored positions and are not chosen, so they are
+	 * skipped when removing, but anything else that covers them applies the
+	 * map first.
+	 */
+	private void applyRange(int from, int to, int operation) {
+		if (from < 0 || from >= to || isIdentity()) {
+			rangeOperation(from, to, operation);
+			return;
+		}
+		int first = segmentOf(from);
+		if (operation != REMOVE) {
+			for (int i = first; i < segments && starts[i] < to; i++) {
+				if (shifts[i] == INSERTED) {
+					apply();
+					rangeOperation(from, to, operation);
+					return;
+				}
+			}
+		}
+		for (int i = first; i < segments && starts[i] < to; i++) {
+			int shift = shifts[i];
+			if (shift != INSERTED) {
+				int end = i + 1 < segments ? Math.min(starts[i + 1], to) : to;
+				rangeOperation(Math.max(starts[i], from) - shift, end - shift,
+						operation);
+			}
+		}
+	}
+
+	private void rangeOperation(int from, int to, int operation) {
+		switch (operation) {
+		case ADD:
+			store.addRange(from, to);
+			break;
+		case REMOVE:
+			store.removeRange(from, to);
+			break;
+		default:
+			store.flipRange(from, to);
+		}
+	}
+
+	/*
+	 * Move the stored positions to their current positions, segment by
+	 * segment, and start over with an empty map
+	 */
+	private void apply() {
+		if (isIdentity()) {
+			return;
+		}
+		if (store instanceof BitmapSelectionStore) {
+			shiftSegments((BitmapSelectionStore) store);
+		} else {
+			moveSegments();
+		}
+		segments = 1;
+		shifts[0] = 0;
+	}
+
+	/*
+	 * Walk the segments front to back. The items of each segment and all
+	 * after it are still off by the shift of the segment before, so
+	 * everything from there on is shifted by the difference, in place.
+	 */
+	private void shiftSegments(BitmapSelectionStore bitmap) {
+		int applied = 0;
+		for (int i = 0; i < segments; i++) {
+			int shift = shifts[i];
+			if (shift == INSERTED || shift == applied) {
+				continue;
+			}
+			int at = starts[i] - shift + applied;
+			if (shift > applied) {
+				bitmap.insertRange(at, shift - applied);
+			} else {
+				bitmap.deleteRange(starts[i], at);
+			}
+			applied = shift;
+		}
+	}
+
+	private void moveSegments() {
+		/*
+		 * The map keeps the order of the positions, so a segment moved down
+		 * can only land on segments after it, and one moved up on segments
+		 * before it. Moving the former back to front, then the latter front
+		 * to back, never lands a segment on one that hasn't moved yet.
+		 */
+		for (int i = segments - 1; i >= 0; i--) {
+			if (shifts[i] != INSERTED && shifts[i] > 0) {
+				moveSegment(i);
+			}
+		}
+		for (int i = 0; i < segments; i++) {
+			if (shifts[i] < 0 && shifts[i] != INSERTED) {
+				moveSegment(i);
+			}
+		}
+	}
+
+	/*
+	 * Move the stored positions of a segment to their current positions, a
+	 * run of chosen positions at a time, so that the layout of the store is
+	 * kept
+	 */
+	private void moveSegment(int segment) {
+		int shift = shifts[segment];
+		int from = starts[segment] - shift;
+		int to = segment + 1 < segments ? starts[segment + 1] - shift
+				: Integer.MAX_VALUE;
+		int runCount = 0;
+		int start = store.nextPosition(from);
+		while (start >= 0 && start < to) {
+			int end = Math.min(runEnd(start), to);
+			if (runCount == runs.length) {
+				int[] grown = new int[runCount * 2];
+				System.arraycopy(runs, 0, grown, 0, runCount);
+				runs = grown;
+			}
+			runs[runCount++] = start;
+			runs[runCount++] = end;
+			start = end < to ? store.nextPosition(end) : -1;
+		}
+		if (runCount == 0) {
+			return;
+		}
+		store.removeRange(runs[0], runs[runCount - 1]);
+		for (int i = 0; i < runCount; i += 2) {
+			store.addRange(runs[i] + shift, runs[i + 1] + shift);
+		}
+	}
+
+	/*
+	 * The end of the run of chosen stored positions at a chosen one
+	 */
+	private int runEnd(int position) {
+		int end = position + 1;
+		while (store.contains(end)) {
+			end++;
+		}
+		return end;
+	}
+
+	/*
+	 * Append a segment to the next segments, merging it with the last one if
+	 * that one is empty or has the same shift
+	 */
+	private void emit(int start, int shift) {
+		if (nextSegments > 0) {
+			int last = nextSegments - 1;
+			if (nextStarts[last] == start) {
+				nextSegments--;
+				if (nextSegments > 0 && nextShifts[nextSegments - 1] == shift) {
+					return;
+				}
+			} else if (nextShifts[last] == shift) {
+				return;
+			}
+		}
+		if (nextSegments == nextStarts.length) {
+			int[] grownStarts = new int[nextSegments * 2];
+			int[] grownShifts = new int[nextSegments * 2];
+			System.arraycopy(nextStarts, 0, grownStarts, 0, nextSegments);
+			System.arraycopy(nextShifts, 0, grownShifts, 0, nextSegments);
+			nextStarts = grownStarts;
+			nextShifts = grownShifts;
+		}
+		nextStarts[nextSegments] = start;
+		nextShifts[nextSegments] = shift;
+		nextSegments++;
+	}
+
+	private void swapSegments() {
+		int[] swap = starts;
+		starts = nextStarts;
+		nextStarts = swap;
+		swap = shifts;
+		shifts = nextShifts;
+		nextShifts = swap;
+		segments = nextSegments;
+		if (segments > MAX_SEGMENTS) {
+			apply();
+		}
+	}
+}
@@ -0,0 +1,454 @@
+package com.github.curioustechizen.hybridchoice;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A {@link SelectionStore} that remembers the ids of chosen items instead of
+ * their positions. Positions are translated to ids as they are queried, so
+ * {@link #contains(int)} stays O(1) no matter how the underlying list has
+ * changed. Translating back to positions (for iteration) uses the position
+ * kept with each chosen id. Items inserted or removed by the adapter move
+ * those positions through a short log of shifts, much like the segments of
+ * {@link ShiftingSelectionStore}, without visiting the chosen ids or the
+ * other items; only after the data changed in some other way are the items
+ * scanned for the chosen ids. The sorted positions are cached until either
+ * the selection or the data changes, and the number of chosen items in the
+ * list is kept up to date as items are chosen and de-chosen.
+ */
+class StableIdSelectionStore implements SelectionStore {
+
+	/**
+	 * Translation from positions to ids, provided by the adapter
+	 */
+	interface ItemIds {
+
+		/**
+		 * @return The number of items currently in the adapter
+		 */
+		int getCount();
+
+		/**
+		 * @return The id of the item at a position
+		 */
+		long getItemId(int position);
+	}
+
+	/*
+	 * The position of a chosen id that no item has
+	 */
+	private static final int ABSENT = -1;
+
+	/*
+	 * Above this many logged shifts, they are applied to the positions
+	 */
+	private static final int MAX_SHIFTS = 64;
+
+	private final ItemIds itemIds;
+
+	/*
+	 * The chosen ids, each with the position its item had before the logged
+	 * shifts, or ABSENT. The positions are only meaningful if located is set.
+	 */
+	private final LongIntHashMap chosenIds = new LongIntHashMap();
+	private boolean located = true;
+
+	/*
+	 * The shifts since the positions in chosenIds were written, in order:
+	 * shift i replaced the shiftRemoved[i] items at shiftAt[i] with
+	 * shiftInserted[i] new ones
+	 */
+	private final int[] shiftAt = new int[MAX_SHIFTS];
+	private final int[] shiftRemoved = new int[MAX_SHIFTS];
+	private final int[] shiftInserted = new int[MAX_SHIFTS];
+	private int shiftCount;
+
+	/*
+	 * The positions of the chosen ids that are currently in the list, sorted.
+	 * null when it needs to be recomputed.
+	 */
+	private int[] positions;
+
+	/*
+	 * The number of chosen ids that are currently in the list. -1 when it
+	 * needs to be recounted.
+	 */
+	private int count;
+
+	StableIdSelectionStore(ItemIds itemIds) {
+		this.itemIds = itemIds;
+	}
+
+	/**
+	 * Forget where the chosen ids are, after the adapter data changed in a
+	 * way the store wasn't told about. The items are scanned for them when
+	 * their positions are next needed.
+	 */
+	void invalidatePositions() {
+		located = false;
+		shiftCount = 0;
+		positions = null;
+		count = -1;
+	}
+
+	/**
+	 * All items have been removed. Chosen ids stay chosen.
+	 */
+	void clearPositions() {
+		long[] ids = chosenIds.keys();
+		for (long id : ids) {
+			chosenIds.put(id, ABSENT);
+		}
+		located = true;
+		shiftCount = 0;
+		positions = null;
+		count = 0;
+	}
+
+	/**
+	 * Items have been inserted in [at, at + count). Chosen items after them
+	 * move down, and those of them whose ids are chosen are found. Takes
+	 * O(count) time.
+	 */
+	void insertRange(int at, int count) {
+		if (count <= 0) {
+			return;
+		}
+		positions = null;
+		if (!located) {
+			return;
+		}
+		logShift(at, 0, count);
+		for (int position = at; position < at + count; position++) {
+			long id = itemIds.getItemId(position);
+			if (chosenIds.containsKey(id)) {
+				setPosition(id, position);
+				this.count = -1;
+			}
+		}
+	}
+
+	/**
+	 * The items in [from, to) have been removed. Their ids stay chosen, and
+	 * chosen items after them move up. Takes O(1) time.
+	 */
+	void deleteRange(int from, int to) {
+		if (from >= to) {
+			return;
+		}
+		positions = null;
+		count = -1;
+		if (located) {
+			logShift(from, to - from, 0);
+		}
+	}
+
+	/**
+	 * The items have been replaced by a new list. Chosen items follow their
+	 * items; those that went away are no longer in the list, but their ids
+	 * stay chosen. Takes O(k) time for k chosen ids.
+	 *
+	 * @param oldToNew
+	 *            The new position of each old item, or {@code -1} if it was
+	 *            removed
+	 */
+	void remapPositions(int[] oldToNew) {
+		positions = null;
+		count = -1;
+		if (!located) {
+			return;
+		}
+		applyShifts();
+		long[] ids = chosenIds.keys();
+		for (long id : ids) {
+			int position = chosenIds.get(id, ABSENT);
+			if (position == ABSENT) {
+				/*
+				 * The id may have come back with one of the new items
+				 */
+				invalidatePositions();
+				return;
+			}
+			chosenIds.put(id, position < oldToNew.length ? oldToNew[position]
+					: ABSENT);
+		}
+	}
+
+	/**
+	 * Whether an id is chosen
+	 */
+	boolean containsId(long id) {
+		return chosenIds.containsKey(id);
+	}
+
+	/**
+	 * Choose an id, whether or not an item currently has it
+	 */
+	void addId(long id) {
+		if (!chosenIds.containsKey(id)) {
+			chosenIds.put(id, ABSENT);
+			located = false;
+			shiftCount = 0;
+			positions = null;
+			count = -1;
+		}
+	}
+
+	/**
+	 * Copy the chosen ids into a new array, in no particular order
+	 */
+	long[] toIdArray() {
+		return chosenIds.keys();
+	}
+
+	@Override
+	public boolean contains(int position) {
+		if (position < 0 || position >= itemIds.getCount()) {
+			return false;
+		}
+		return chosenIds.containsKey(itemIds.getItemId(position));
+	}
+
+	/**
+	 * Only counts chosen ids that are currently in the list
+	 */
+	@Override
+	public int size() {
+		if (count < 0) {
+			count = positions().length;
+		}
+		return count;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return chosenIds.size() == 0 || size() == 0;
+	}
+
+	@Override
+	public boolean add(int position) {
+		if (position < 0 || position >= itemIds.getCount()) {
+			throw new IndexOutOfBoundsException("Invalid position: "
+					+ position);
+		}
+		long id = itemIds.getItemId(position);
+		boolean added = !chosenIds.containsKey(id);
+		setPosition(id, position);
+		if (added) {
+			positions = null;
+			if (count >= 0) {
+				count++;
+			}
+		}
+		return added;
+	}
+
+	@Override
+	public boolean remove(int position) {
+		if (position < 0 || position >= itemIds.getCount()) {
+			return false;
+		}
+		if (chosenIds.remove(itemIds.getItemId(position))) {
+			positions = null;
+			if (count >= 0) {
+				count--;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Ids have no order, so this is O(to - from)
+	 */
+	@Override
+	public void addRange(int from, int to) {
+		for (int p = from; p < to; p++) {
+			add(p);
+		}
+	}
+
+	/**
+	 * Ids have no order, so this is O(to - from)
+	 */
+	@Override
+	public void removeRange(int from, int to) {
+		for (int p = from; p < to; p++) {
+			remove(p);
+		}
+	}
+
+	/**
+	 * Ids have no order, so this is O(to - from)
+	 */
+	@Override
+	public void flipRange(int from, int to) {
+		for (int p = from; p < to; p++) {
+			if (!remove(p)) {
+				add(p);
+			}
+		}
+	}
+
+	@Override
+	public void clear() {
+		chosenIds.clear();
+		located = true;
+		shiftCount = 0;
+		positions = null;
+		count = 0;
+	}
+
+	@Override
+	public int nextPosition(int fromPosition) {
+		int[] sorted = positions();
+		int index = Arrays.binarySearch(sorted, fromPosition);
+		if (index < 0) {
+			index = -(index + 1);
+		}
+		return index < sorted.length ? sorted[index] : -1;
+	}
+
+	@Override
+	public IntIterator iterator() {
+		final int[] sorted = positions();
+		return new IntIterator() {
+
+			private int index;
+
+			@Override
+			public boolean hasNext() {
+				return index < sorted.length;
+			}
+
+			@Override
+			public int next() {
+				if (index >= sorted.length) {
+					throw new NoSuchElementException();
+				}
+				return sorted[index++];
+			}
+		};
+	}
+
+	@Override
+	public int[] toArray() {
+		return positions().clone();
+	}
+
+	private int[] positions() {
+		if (positions == null) {
+			if (!located) {
+				locate();
+			}
+			long[] ids = chosenIds.keys();
+			int[] result = new int[ids.length];
+			int present = 0;
+			for (long id : ids) {
+				int position = toCurrent(chosenIds.get(id, ABSENT));
+				if (position >= 0) {
+					result[present++] = position;
+				}
+			}
+			if (present < result.length) {
+				result = Arrays.copyOf(result, present);
+			}
+			Arrays.sort(result);
+			positions = result;
+			count = present;
+		}
+		return positions;
+	}
+
+	/*
+	 * Scan the items for the chosen ids, stopping once all are found
+	 */
+	private void locate() {
+		long[] ids = chosenIds.keys();
+		for (long id : ids) {
+			chosenIds.put(id, ABSENT);
+		}
+		int found = 0;
+		int total = itemIds.getCount();
+		for (int position = 0; position < total && found < ids.length;
+				position++) {
+			long id = itemIds.getItemId(position);
+			if (chosenIds.get(id, 0) == ABSENT) {
+				chosenIds.put(id, position);
+				found++;
+			}
+		}
+		located = true;
+		shiftCount = 0;
+	}
+
+	/*
+	 * Keep the current position of a chosen id. An item inserted since the
+	 * positions were written had no position then, so the shifts are applied
+	 * first.
+	 */
+	private void setPosition(long id, int position) {
+		int written = toWritten(position);
+		if (written < 0) {
+			applyShifts();
+			written = position;
+		}
+		chosenIds.put(id, written);
+	}
+
+	private void logShift(int at, int removed, int inserted) {
+		if (shiftCount == MAX_SHIFTS) {
+			applyShifts();
+		}
+		shiftAt[shiftCount] = at;
+		shiftRemoved[shiftCount] = removed;
+		shiftInserted[shiftCount] = inserted;
+		shiftCount++;
+	}
+
+	/*
+	 * Where an item at a written position is now, or ABSENT if it was removed
+	 */
+	private int toCurrent(int position) {
+		for (int i = 0; i < shiftCount && position != ABSENT; i++) {
+			int at = shiftAt[i];
+			if (position >= at + shiftRemoved[i]) {
+				position += shiftInserted[i] - shiftRemoved[i];
+			} else if (position >= at) {
+				position = ABSENT;
+			}
+		}
+		return position;
+	}
+
+	/*
+	 * Where the item at a current position was when the positions were
+	 * written, or -1 if it was inserted since
+	 */
+	private int toWritten(int position) {
+		for (int i = shiftCount - 1; i >= 0 && position >= 0; i--) {
+			int at = shiftAt[i];
+			if (position >= at + shiftInserted[i]) {
+				position -= shiftInserted[i] - shiftRemoved[i];
+			} else if (position >= at) {
+				position = -1;
+			}
+		}
+		return position;
+	}
+
+	/*
+	 * Write the current positions and empty the log, in O(k) time for k
+	 * chosen ids
+	 */
+	private void applyShifts() {
+		if (shiftCount == 0) {
+			return;
+		}
+		long[] ids = chosenIds.keys();
+		for (long id : ids) {
+			chosenIds.put(id, toCurrent(chosenIds.get(id, ABSENT)));
+		}
+		shiftCount = 0;
+	}
+}
@@ -0,0 +1,115 @@
+package com.github.curioustechizen.hybridchoice;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares inserting and removing items in a {@link BitmapSelectionStore}
+ * against a plain list of chosen flags, starting from each of its layouts
+ */
+public class BitmapSelectionStoreTest {
+
+	@Test
+	public void insertAndDeleteMatchReference() {
+		for (int seed = 0; seed < 400; seed++) {
+			run(seed);
+		}
+	}
+
+	private static void run(int seed) {
+		Random random = new Random(seed);
+		BitmapSelectionStore store = new BitmapSelectionStore();
+		List<Boolean> reference = new ArrayList<Boolean>();
+		int count = seed % 4 == 0 ? 20000 : 500;
+		for (int i = 0; i < count; i++) {
+			reference.add(false);
+		}
+		switch (seed % 4) {
+		case 0:
+			/*
+			 * Complement: everything but a few scattered rows
+			 */
+			store.addRange(0, count);
+			for (int i = 0; i < count; i++) {
+				reference.set(i, random.nextInt(40) != 0);
+				if (!reference.get(i)) {
+					store.remove(i);
+				}
+			}
+			break;
+		case 1:
+			/*
+			 * Dense
+			 */
+			for (int i = 0; i < count; i++) {
+				if (random.nextBoolean()) {
+					reference.set(i, true);
+					store.add(i);
+				}
+			}
+			break;
+		case 2:
+			/*
+			 * Runs
+			 */
+			for (int run = 0; run < 10; run++) {
+				int from = random.nextInt(count);
+				int to = from + random.nextInt(count - from + 1);
+				store.addRange(from, to);
+				for (int i = from; i < to; i++) {
+					reference.set(i, true);
+				}
+			}
+			break;
+		default:
+			/*
+			 * Sparse
+			 */
+			for (int i = 0; i < count; i++) {
+				if (random.nextInt(50) == 0) {
+					reference.set(i, true);
+					store.add(i);
+				}
+			}
+		}
+		for (int step = 0; step < 30; step++) {
+			int size = reference.size();
+			if (random.nextBoolean()) {
+				int at = random.nextInt(size + 1);
+				int inserted = random.nextInt(random.nextBoolean() ? 3 : 200);
+				for (int i = 0; i < inserted; i++) {
+					reference.add(at, false);
+				}
+				store.insertRange(at, inserted);
+			} else if (size > 0) {
+				int from = random.nextInt(size);
+				int to = from + random.nextInt(Math.min(size - from, 300) + 1);
+				reference.subList(from, to).clear();
+				store.deleteRange(from, to);
+			}
+			check(store, reference);
+		}
+	}
+
+	private static void check(BitmapSelectionStore store,
+			List<Boolean> reference) {
+		int[] positions = new int[reference.size()];
+		int chosen = 0;
+		for (int i = 0; i < reference.size() + 70; i++) {
+			boolean expected = i < reference.size() && reference.get(i);
+			assertEquals(expected, store.contains(i));
+			if (expected) {
+				positions[chosen++] = i;
+			}
+		}
+		assertEquals(chosen, store.size());
+		assertArrayEquals(Arrays.copyOf(positions, chosen), store.toArray());
+	}
+}
@@ -0,0 +1,286 @@
+package com.github.curioustechizen.hybridchoice;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Compares a {@link ShiftingSelectionStore} against a plain list of chosen
+ * flags under random inserts, removals and changes to the selection, so that
+ * translating through the map, and applying it, always gives the same result
+ * as moving every position at once.
+ */
+public class ShiftingSelectionStoreTest {
+
+	@Test
+	public void matchesReferenceOverBitmapStore() {
+		for (int seed = 0; seed < 200; seed++) {
+			run(new BitmapSelectionStore(), seed);
+		}
+	}
+
+	@Test
+	public void matchesReferenceOverOtherStore() {
+		for (int seed = 0; seed < 100; seed++) {
+			run(new TreeSetStore(), seed);
+		}
+	}
+
+	private static void run(SelectionStore wrapped, int seed) {
+		Random random = new Random(seed);
+		ShiftingSelectionStore store = new ShiftingSelectionStore(wrapped);
+		List<Boolean> reference = new ArrayList<Boolean>();
+		/*
+		 * Some runs are large enough for the run and complement layouts
+		 */
+		int scale = seed % 8 == 0 ? 6000 : 200;
+		for (int step = 0; step < 400; step++) {
+			int count = reference.size();
+			switch (random.nextInt(12)) {
+			case 0:
+			case 1:
+			case 2: {
+				int at = random.nextInt(count + 1);
+				int inserted = 1 + random.nextInt(random.nextBoolean() ? 3
+						: scale / 5);
+				for (int i = 0; i < inserted; i++) {
+					reference.add(at, false);
+				}
+				store.insertRange(at, inserted);
+				break;
+			}
+			case 3:
+			case 4: {
+				if (count == 0) {
+					break;
+				}
+				int from = random.nextInt(count);
+				int to = from + 1 + random.nextInt(Math.min(count - from,
+						scale / 4));
+				reference.subList(from, to).clear();
+				store.deleteRange(from, to);
+				break;
+			}
+			case 5:
+			case 6: {
+				if (count == 0) {
+					break;
+				}
+				int position = random.nextInt(count);
+				boolean chosen = reference.get(position);
+				if (random.nextBoolean()) {
+					assertEquals(!chosen, store.add(position));
+					reference.set(position, true);
+				} else {
+					assertEquals(chosen, store.remove(position));
+					reference.set(position, false);
+				}
+				break;
+			}
+			case 7:
+			case 8: {
+				if (count == 0) {
+					break;
+				}
+				int from = random.nextInt(count);
+				int to = from + random.nextInt(count - from + 1);
+				int operation = random.nextInt(3);
+				for (int i = from; i < to; i++) {
+					reference.set(i, operation == 0 || operation == 2
+							&& !reference.get(i));
+				}
+				if (operation == 0) {
+					store.addRange(from, to);
+				} else if (operation == 1) {
+					store.removeRange(from, to);
+				} else {
+					store.flipRange(from, to);
+				}
+				break;
+			}
+			case 9: {
+				int from = random.nextInt(count + 2);
+				assertEquals(expectedNext(reference, from),
+						store.nextPosition(from));
+				break;
+			}
+			case 10: {
+				int[] expected = expectedArray(reference);
+				if (random.nextBoolean()) {
+					assertArrayEquals(expected, store.toArray());
+				} else {
+					IntIterator it = store.iterator();
+					for (int position : expected) {
+						assertEquals(position, it.next());
+					}
+					assertFalse(it.hasNext());
+				}
+				break;
+			}
+			default:
+				if (random.nextInt(10) == 0) {
+					Collections.fill(reference, false);
+					store.clear();
+				}
+			}
+			check(store, reference, random);
+		}
+	}
+
+	/*
+	 * Check every position of small lists, and of large ones every so often
+	 */
+	private static void check(ShiftingSelectionStore store,
+			List<Boolean> reference, Random random) {
+		int count = reference.size();
+		assertFalse(store.contains(-1));
+		assertFalse(store.contains(count));
+		if (count > 1000 && random.nextInt(8) != 0) {
+			for (int i = 0; i < 100; i++) {
+				int position = random.nextInt(count);
+				assertEquals(reference.get(position), store.contains(position));
+			}
+			return;
+		}
+		int chosen = 0;
+		for (int i = 0; i < count; i++) {
+			assertEquals(reference.get(i), store.contains(i));
+			if (reference.get(i)) {
+				chosen++;
+			}
+		}
+		assertEquals(chosen, store.size());
+		assertEquals(chosen == 0, store.isEmpty());
+		if (random.nextInt(8) == 0) {
+			assertArrayEquals(expectedArray(reference), store.toArray());
+		}
+	}
+
+	private static int expectedNext(List<Boolean> reference, int from) {
+		for (int i = from; i < reference.size(); i++) {
+			if (reference.get(i)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int[] expectedArray(List<Boolean> reference) {
+		int[] positions = new int[reference.size()];
+		int count = 0;
+		for (int i = 0; i < reference.size(); i++) {
+			if (reference.get(i)) {
+				positions[count++] = i;
+			}
+		}
+		return Arrays.copyOf(positions, count);
+	}
+
+	/**
+	 * A store other than {@link BitmapSelectionStore}, whose runs are found one
+	 * position at a time
+	 */
+	private static class TreeSetStore implements SelectionStore {
+
+		private final TreeSet<Integer> positions = new TreeSet<Integer>();
+
+		@Override
+		public boolean contains(int position) {
+			return positions.contains(position);
+		}
+
+		@Override
+		public int size() {
+			return positions.size();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return positions.isEmpty();
+		}
+
+		@Override
+		public int nextPosition(int fromPosition) {
+			Integer next = positions.ceiling(fromPosition);
+			return next != null ? next : -1;
+		}
+
+		@Override
+		public IntIterator iterator() {
+			final int[] sorted = toArray();
+			return new IntIterator() {
+
+				private int index;
+
+				@Override
+				public boolean hasNext() {
+					return index < sorted.length;
+				}
+
+				@Override
+				public int next() {
+					if (index >= sorted.length) {
+						throw new NoSuchElementException();
+					}
+					return sorted[index++];
+				}
+			};
+		}
+
+		@Override
+		public int[] toArray() {
+			int[] result = new int[positions.size()];
+			int i = 0;
+			for (int position : positions) {
+				result[i++] = position;
+			}
+			return result;
+		}
+
+		@Override
+		public boolean add(int position) {
+			return positions.add(position);
+		}
+
+		@Override
+		public boolean remove(int position) {
+			return positions.remove(position);
+		}
+
+		@Override
+		public void addRange(int from, int to) {
+			for (int p = from; p < to; p++) {
+				positions.add(p);
+			}
+		}
+
+		@Override
+		public void removeRange(int from, int to) {
+			positions.subSet(from, to).clear();
+		}
+
+		@Override
+		public void flipRange(int from, int to) {
+			for (int p = from; p < to; p++) {
+				if (!positions.remove(p)) {
+					positions.add(p);
+				}
+			}
+		}
+
+		@Override
+		public void clear() {
+			positions.clear();
+		}
+	}
+}
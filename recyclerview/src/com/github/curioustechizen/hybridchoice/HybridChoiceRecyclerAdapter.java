@@ -0,0 +1,896 @@
+package com.github.curioustechizen.hybridchoice;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.os.Bundle;
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+
+import com.github.curioustechizen.hybridchoice.ChoiceRowBinder.RowHolder;
+import com.github.curioustechizen.hybridchoice.HybridChoiceAdapter.RowItemChoiceCallback;
+
+/**
+ * The {@code RecyclerView} counterpart of {@link HybridChoiceAdapter}. It
+ * keeps track of the currently opened item as well as currently chosen items
+ * the same way, and styles the rows the same way.
+ * <p>
+ * Changes to the chosen and opened items are reported to the
+ * {@code RecyclerView} as partial changes with the payloads
+ * {@link #PAYLOAD_CHOSEN} and {@link #PAYLOAD_OPENED}. A row that is rebound
+ * with only these payloads is restyled without calling
+ * {@link #onBindViewHolderHca(RecyclerView.ViewHolder, int)}, and the item
+ * animator reuses its view holder instead of cross-fading a new one. Changing
+ * a range of items, e.g. with {@link #selectAll()}, is reported as a single
+ * range change.
+ *
+ * @param <T>
+ * @param <VH>
+ */
+public abstract class HybridChoiceRecyclerAdapter<T, VH extends RecyclerView.ViewHolder>
+		extends RecyclerView.Adapter<VH> {
+
+	/**
+	 * Payload of the item changes that only affect the chosen state
+	 */
+	public static final Object PAYLOAD_CHOSEN = new Object();
+
+	/**
+	 * Payload of the item changes that only affect the opened state
+	 */
+	public static final Object PAYLOAD_OPENED = new Object();
+
+	/**
+	 * The items displayed by this adapter
+	 */
+	private List<T> mObjects;
+
+	/**
+	 * Maps items to stable ids. {@code null} unless the adapter tracks items
+	 * by id.
+	 */
+	private final ItemIdMapper<T> idMapper;
+
+	/**
+	 * The items if they are loaded a page at a time, otherwise {@code null}
+	 */
+	private final PagedList<T> pagedList;
+
+	/**
+	 * The chosen and opened items
+	 */
+	private final SelectionModel selection;
+
+	/**
+	 * The callback for when the Checkbox in the row item is checked (if any)
+	 */
+	private RowItemChoiceCallback mCallback;
+
+	/**
+	 * Styles the rows
+	 */
+	private final ChoiceRowBinder rowBinder;
+
+	/**
+	 * Compares items for {@link #submitList(List)}. {@code null} to use the
+	 * default comparison.
+	 */
+	private DiffCallback<T> diffCallback;
+
+	/**
+	 * Diffs submitted lists in the background. Created on first use.
+	 */
+	private ListSubmitter<T> listSubmitter;
+
+	/*
+	 * Above this many separate runs of removed rows, removeAll() notifies a
+	 * change of the whole data set rather than animating each run out
+	 */
+	private static final int MAX_REMOVED_RUNS = 64;
+
+	/*
+	 * Set while notifying changes that the selection model has already been
+	 * told about, or that don't affect ids
+	 */
+	private boolean dataChangeReported;
+
+	/**
+	 * Constructor
+	 *
+	 * @param context
+	 *            The {@code Context}
+	 * @param objects
+	 *            The list of objects to be displayed by the adapter
+	 * @param callback
+	 *            The implementation of the callback interface for when the
+	 *            checkbox in a row is selected. Can be {@code null} if you do
+	 *            not have checkboxes in your rows.
+	 */
+	public HybridChoiceRecyclerAdapter(Context context, List<T> objects,
+			RowItemChoiceCallback callback) {
+		this(context, objects, callback, null);
+	}
+
+	/**
+	 * Constructor for an adapter that tracks chosen and opened items by their
+	 * stable ids rather than by position. The adapter then has stable ids.
+	 * <p>
+	 * The adapter listens to its own change notifications to keep the
+	 * positions of the ids up to date, so changes to the list must be
+	 * notified as usual. Appends reported with
+	 * {@link #notifyItemRangeInserted(int, int)} are handled incrementally;
+	 * other structural changes make the adapter look the positions up again
+	 * when next needed.
+	 *
+	 * @param context
+	 *            The {@code Context}
+	 * @param objects
+	 *            The list of objects to be displayed by the adapter. If it is
+	 *            a {@link PagedList}, rows are rebound as its pages load; the
+	 *            list cannot be modified through the adapter.
+	 * @param callback
+	 *            The implementation of the callback interface for when the
+	 *            checkbox in a row is selected. Can be {@code null} if you do
+	 *            not have checkboxes in your rows.
+	 * @param idMapper
+	 *            Maps each item to its stable id. If {@code null}, items are
+	 *            tracked by position. Not used for a {@link PagedList}, whose
+	 *            data source provides the ids.
+	 */
+	@SuppressWarnings("unchecked")
+	public HybridChoiceRecyclerAdapter(Context context, List<T> objects,
+			RowItemChoiceCallback callback, ItemIdMapper<T> idMapper) {
+		this.mObjects = objects;
+		this.mCallback = callback;
+		this.idMapper = idMapper;
+		this.pagedList = objects instanceof PagedList ? (PagedList<T>) objects
+				: null;
+		this.selection = new SelectionModel(new AdapterItems(),
+				idMapper != null);
+		this.selection.setCallback(new SelectionModel.Callback() {
+
+			@Override
+			public void onChosenChanged(int from, int to) {
+				to = Math.min(to, getItemCount());
+				if (from < to) {
+					notifyItemRangeChanged(from, to - from, PAYLOAD_CHOSEN);
+				}
+			}
+
+			@Override
+			public void onOpenedChanged(int previous, int current) {
+				int count = getItemCount();
+				if (previous >= 0 && previous < count) {
+					notifyItemChanged(previous, PAYLOAD_OPENED);
+				}
+				if (current >= 0 && current < count) {
+					notifyItemChanged(current, PAYLOAD_OPENED);
+				}
+			}
+		});
+		this.rowBinder = new ChoiceRowBinder(new RowBinderHost(),
+				context.getResources());
+		if (idMapper != null) {
+			setHasStableIds(true);
+			registerAdapterDataObserver(new IdPositionsObserver());
+		}
+		if (pagedList != null) {
+			pagedList.setCallback(new PagedList.Callback() {
+
+				@Override
+				public void onRangeLoaded(int start, int count) {
+					dataChangeReported = true;
+					try {
+						notifyItemRangeChanged(start, count);
+					} finally {
+						dataChangeReported = false;
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Get the model that keeps the chosen and opened items of this adapter
+	 * @return The selection model
+	 */
+	public SelectionModel getSelectionModel() {
+		return selection;
+	}
+
+	/**
+	 * Get the item at a position
+	 * @param position The position of the item
+	 * @return The item
+	 */
+	public T getItem(int position) {
+		return mObjects.get(position);
+	}
+
+	@Override
+	public int getItemCount() {
+		return mObjects.size();
+	}
+
+	@Override
+	public long getItemId(int position) {
+		if (idMapper != null) {
+			return itemIdAt(position);
+		}
+		return super.getItemId(position);
+	}
+
+	/*
+	 * The stable id of an item. Items of a paged list need not be loaded.
+	 */
+	private long itemIdAt(int position) {
+		if (pagedList != null) {
+			return pagedList.getItemId(position);
+		}
+		return idMapper.getItemId(getItem(position));
+	}
+
+	@Override
+	public final void onBindViewHolder(VH holder, int position) {
+		onBindViewHolderHca(holder, position);
+		bindChoiceState(holder, position);
+	}
+
+	@Override
+	public final void onBindViewHolder(VH holder, int position,
+			List<Object> payloads) {
+		if (payloads.isEmpty() || !onlyChoicePayloads(payloads)) {
+			onBindViewHolder(holder, position);
+		} else {
+			bindChoiceState(holder, position);
+		}
+	}
+
+	private static boolean onlyChoicePayloads(List<Object> payloads) {
+		for (int i = 0, n = payloads.size(); i < n; i++) {
+			Object payload = payloads.get(i);
+			if (payload != PAYLOAD_CHOSEN && payload != PAYLOAD_OPENED) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void bindChoiceState(VH holder, int position) {
+		View v = holder.itemView;
+		RowHolder rowHolder = rowBinder.holderFor(v);
+		rowHolder.viewHolder = holder;
+		rowBinder.bind(v, rowHolder, position);
+	}
+
+	/**
+	 * Bind the data of an item to a view holder. This MUST be overridden.
+	 * Analogous to {@link RecyclerView.Adapter#onBindViewHolder(RecyclerView.ViewHolder, int)}
+	 * <p>
+	 * The adapter owns the background of the item view and only restyles it
+	 * when the chosen or opened state of the row changes, so implementations
+	 * should not change it.
+	 * @param holder The view holder to bind
+	 * @param position The position of the item in the adapter
+	 */
+	public abstract void onBindViewHolderHca(VH holder, int position);
+
+	/**
+	 * Sets the background {@code Drawable} for the opened item
+	 * @param openedDrawable The background Drawable indicating the opened item
+	 */
+	public void setOpenedBackgroundDrawable(Drawable openedDrawable) {
+		rowBinder.setOpenedBackgroundDrawable(openedDrawable);
+	}
+
+	/**
+	 * Sets the background {@code Drawable} for chosen items
+	 * @param selectedBackground The drawable that indicates chosen items
+	 */
+	public void setChosenBackgroundDrawable(Drawable selectedBackground) {
+		rowBinder.setChosenBackgroundDrawable(selectedBackground);
+	}
+
+	/**
+	 * Sets the resource for opened item
+	 * @param openedResid A resource ID that indicates the opened item
+	 */
+	public void setOpenedBackgroundResource(int openedResid) {
+		rowBinder.setOpenedBackgroundResource(openedResid);
+	}
+
+	/**
+	 * Sets the resource chosen items
+	 * @param selectedResid A resource ID that indicates the chosen items
+	 */
+	public void setChosenBackgroundResource(int selectedResid) {
+		rowBinder.setChosenBackgroundResource(selectedResid);
+	}
+
+	/**
+	 * Sets the background color for the opened item
+	 * @param openedColor A color that indicates an opened item
+	 */
+	public void setOpenedBackgroundColor(int openedColor) {
+		rowBinder.setOpenedBackgroundColor(openedColor);
+	}
+
+	/**
+	 * Sets the background color for chosen items
+	 * @param selectedColor A color indicating chosen items
+	 */
+	public void setChosenBackgroundColor(int selectedColor) {
+		rowBinder.setChosenBackgroundColor(selectedColor);
+	}
+
+	/**
+	 * Set the row view UI to indicate that it is chosen
+	 * @see HybridChoiceAdapter#setViewAsChosen(View)
+	 * @param v
+	 */
+	public void setViewAsChosen(View v) {
+		rowBinder.showBackgroundLevel(v, ChoiceRowBinder.LEVEL_CHOSEN);
+	}
+
+	/**
+	 * Set the row view UI to indicate that it is opened
+	 * @see HybridChoiceAdapter#setViewAsOpened(View)
+	 * @param v
+	 */
+	public void setViewAsOpened(View v) {
+		rowBinder.showBackgroundLevel(v, ChoiceRowBinder.LEVEL_OPENED);
+	}
+
+	/**
+	 * Set the row view UI to indicate that it is neither chosen nor opened
+	 * @see HybridChoiceAdapter#setViewAsDefault(View)
+	 * @param v
+	 */
+	public void setViewAsDefault(View v) {
+		rowBinder.showBackgroundLevel(v, ChoiceRowBinder.LEVEL_DEFAULT);
+	}
+
+	/**
+	 * Replace the store that keeps track of chosen items
+	 * @see HybridChoiceAdapter#setSelectionStore(SelectionStore)
+	 * @param store The store to use from now on
+	 */
+	public void setSelectionStore(SelectionStore store) {
+		selection.setSelectionStore(store);
+	}
+
+	/**
+	 * Tell the adapter that its selection store has been changed directly
+	 * @see HybridChoiceAdapter#notifySelectionStoreChanged()
+	 */
+	public void notifySelectionStoreChanged() {
+		selection.onStoreChanged();
+	}
+
+	/**
+	 * Changes the chosen state of an item
+	 * @param position The position of the item
+	 * @param chosen Whether the item is to be set as chosen
+	 */
+	public void setItemChosen(int position, boolean chosen) {
+		selection.setItemChosen(position, chosen);
+	}
+
+	/**
+	 * Changes the chosen state of a range of items in one go
+	 * @see HybridChoiceAdapter#setRangeChosen(int, int, boolean)
+	 * @param from The position of the first item in the range (inclusive)
+	 * @param to The end of the range (exclusive)
+	 * @param chosen Whether the items are to be set as chosen
+	 */
+	public void setRangeChosen(int from, int to, boolean chosen) {
+		selection.setRangeChosen(from, to, chosen);
+	}
+
+	/**
+	 * Set all items as chosen
+	 */
+	public void selectAll() {
+		selection.selectAll();
+	}
+
+	/**
+	 * Invert the chosen state of every item
+	 */
+	public void invertSelection() {
+		selection.invertSelection();
+	}
+
+	/**
+	 * @see HybridChoiceAdapter#addSelectionObserver(SelectionObserver)
+	 * @param observer The observer to add
+	 */
+	public void addSelectionObserver(SelectionObserver observer) {
+		selection.addObserver(observer);
+	}
+
+	/**
+	 * Unregister an observer added with {@link #addSelectionObserver(SelectionObserver)}
+	 * @param observer The observer to remove
+	 */
+	public void removeSelectionObserver(SelectionObserver observer) {
+		selection.removeObserver(observer);
+	}
+
+	/**
+	 * @see HybridChoiceAdapter#beginBatch()
+	 */
+	public void beginBatch() {
+		selection.beginBatch();
+	}
+
+	/**
+	 * End a batch of changes started with {@link #beginBatch()}
+	 */
+	public void endBatch() {
+		selection.endBatch();
+	}
+
+	/**
+	 * Whether an item is chosen
+	 * @param position The position of the item
+	 * @return {@code true} if the item at that position is chosen, {@code false} otherwise
+	 */
+	public boolean isItemChosen(int position) {
+		return selection.isItemChosen(position);
+	}
+
+	/**
+	 * Get the currently chosen items
+	 * @return A read-only view of the positions of the currently chosen items
+	 */
+	public ChosenItems getChosenItems() {
+		return selection.getChosenItems();
+	}
+
+	/**
+	 * Set the currently opened item
+	 * @param position The position of the currently opened item
+	 */
+	public void setOpenedItem(int position) {
+		selection.setOpenedItem(position);
+	}
+
+	/**
+	 * Get the currently opened item
+	 * @return The position of the currently opened item
+	 */
+	public int getOpenedItem() {
+		return selection.getOpenedItem();
+	}
+
+	/**
+	 * Whether an item is opened
+	 * @param position The position of the item
+	 * @return {@code true} if the item is opened, {@code false} otherwise
+	 */
+	public boolean isItemOpened(int position) {
+		return selection.isItemOpened(position);
+	}
+
+	/**
+	 * Clear all choices. This sets all items to the not chosen state
+	 */
+	public void clearChoices() {
+		selection.clearChoices();
+	}
+
+	/**
+	 * Toggle the chosen state of an item
+	 * @param position The position of the item whose chosen state should be toggled
+	 */
+	public void toggleItem(int position) {
+		selection.toggleItem(position);
+	}
+
+	/**
+	 * Get the number of chosen items
+	 * @return The number of chosen items
+	 */
+	public int getChosenItemsCount() {
+		return selection.getChosenItemsCount();
+	}
+
+	/**
+	 * Declare the sections of a grouped list
+	 * @see HybridChoiceAdapter#setSections(int[])
+	 * @param sectionStarts The first position of each section, strictly ascending and starting with 0,
+	 * or {@code null} for no sections
+	 */
+	public void setSections(int[] sectionStarts) {
+		selection.setSections(sectionStarts);
+	}
+
+	/**
+	 * Get the section an item belongs to
+	 * @param position The position of the item
+	 * @return The index of the section
+	 */
+	public int getSectionForPosition(int position) {
+		return selection.getSectionForPosition(position);
+	}
+
+	/**
+	 * Get the number of chosen items in a section
+	 * @param section The index of the section
+	 * @return The number of chosen items in the section
+	 */
+	public int getChosenCountInSection(int section) {
+		return selection.getChosenCountInSection(section);
+	}
+
+	/**
+	 * Get the number of items in a section
+	 * @param section The index of the section
+	 * @return The number of items in the section
+	 */
+	public int getSectionSize(int section) {
+		return selection.getSectionEnd(section) - selection.getSectionStart(section);
+	}
+
+	/**
+	 * Choose or clear every item of a section
+	 * @param section The index of the section
+	 * @param chosen Whether the items are to be set as chosen
+	 */
+	public void setSectionChosen(int section, boolean chosen) {
+		selection.setSectionChosen(section, chosen);
+	}
+
+	/**
+	 * Tell the adapter that items have been inserted directly into the list
+	 * it shows, instead of calling {@code notifyItemRangeInserted()}
+	 * @see HybridChoiceAdapter#insertItems(int, int)
+	 * @param at The position of the first inserted item
+	 * @param count The number of inserted items
+	 * @throws UnsupportedOperationException If the adapter shows a {@link PagedList}
+	 */
+	public void insertItems(int at, int count) {
+		checkNotPaged("Items cannot be inserted into a paged list");
+		selection.onItemsInserted(at, count);
+		dataChangeReported = true;
+		try {
+			notifyItemRangeInserted(at, count);
+		} finally {
+			dataChangeReported = false;
+		}
+	}
+
+	/**
+	 * Tell the adapter that items have been removed directly from the list it
+	 * shows, instead of calling {@code notifyItemRangeRemoved()}
+	 * @see HybridChoiceAdapter#removeItems(int, int)
+	 * @param at The position the first removed item had
+	 * @param count The number of removed items
+	 * @throws UnsupportedOperationException If the adapter shows a {@link PagedList}
+	 */
+	public void removeItems(int at, int count) {
+		checkNotPaged("Items cannot be removed from a paged list");
+		selection.onItemsRemoved(at, count);
+		dataChangeReported = true;
+		try {
+			notifyItemRangeRemoved(at, count);
+		} finally {
+			dataChangeReported = false;
+		}
+	}
+
+	/**
+	 * Remove all chosen items in one go
+	 * @see HybridChoiceAdapter#removeChosenItems()
+	 * @throws UnsupportedOperationException If the adapter shows a {@link PagedList}
+	 */
+	public void removeChosenItems() {
+		checkNotPaged("Items cannot be removed from a paged list");
+		removeSorted(selection.getChosenItems().toArray());
+	}
+
+	/**
+	 * Remove the items at some positions in one go. The list of items is
+	 * compacted in place in a single pass. Runs of adjacent removed rows are
+	 * notified as range removals, unless there are many of them.
+	 * @see HybridChoiceAdapter#removeAll(int[])
+	 * @param positions The positions of the items to remove, in any order.
+	 * Duplicates are ignored.
+	 * @throws UnsupportedOperationException If the adapter shows a {@link PagedList}
+	 */
+	public void removeAll(int[] positions) {
+		checkNotPaged("Items cannot be removed from a paged list");
+		removeSorted(SelectionModel.sortedDistinct(positions));
+	}
+
+	/*
+	 * Paged lists are read-only, and most of their items are not loaded
+	 */
+	private void checkNotPaged(String message) {
+		if (pagedList != null) {
+			throw new UnsupportedOperationException(message);
+		}
+	}
+
+	/*
+	 * Remove the items at ascending, distinct positions
+	 */
+	private void removeSorted(int[] removed) {
+		if (removed.length == 0) {
+			return;
+		}
+		int count = mObjects.size();
+		if (removed[0] < 0 || removed[removed.length - 1] >= count) {
+			throw new IndexOutOfBoundsException("Invalid positions for "
+					+ count + " items");
+		}
+		selection.beginBatch();
+		try {
+			selection.onItemsRemoving(removed);
+			int write = removed[0];
+			int next = 0;
+			for (int read = removed[0]; read < count; read++) {
+				if (next < removed.length && removed[next] == read) {
+					next++;
+				} else {
+					mObjects.set(write++, mObjects.get(read));
+				}
+			}
+			mObjects.subList(write, count).clear();
+			notifyRemoved(removed);
+		} finally {
+			selection.endBatch();
+		}
+	}
+
+	/*
+	 * Notify the removal of the items at ascending, distinct positions, back
+	 * to front so that earlier positions stay valid
+	 */
+	private void notifyRemoved(int[] removed) {
+		int runs = 1;
+		for (int i = 1; i < removed.length; i++) {
+			if (removed[i] != removed[i - 1] + 1) {
+				runs++;
+			}
+		}
+		dataChangeReported = true;
+		try {
+			if (runs > MAX_REMOVED_RUNS) {
+				notifyDataSetChanged();
+				return;
+			}
+			int end = removed.length;
+			for (int i = removed.length - 1; i >= 0; i--) {
+				if (i == 0 || removed[i - 1] != removed[i] - 1) {
+					notifyItemRangeRemoved(removed[i], end - i);
+					end = i;
+				}
+			}
+		} finally {
+			dataChangeReported = false;
+		}
+	}
+
+	/**
+	 * Save the chosen and opened items
+	 * @see HybridChoiceAdapter#saveState(Bundle)
+	 * @param outState The Bundle to save to
+	 */
+	public void saveState(Bundle outState) {
+		outState.putByteArray(HybridChoiceAdapter.STATE_SELECTION,
+				selection.saveState());
+	}
+
+	/**
+	 * Restore the chosen and opened items saved by {@link #saveState(Bundle)}
+	 * @see HybridChoiceAdapter#restoreState(Bundle)
+	 * @param savedState The Bundle that was saved to. May be {@code null}.
+	 */
+	public void restoreState(Bundle savedState) {
+		byte[] state = savedState != null ? savedState
+				.getByteArray(HybridChoiceAdapter.STATE_SELECTION) : null;
+		if (state != null) {
+			selection.restoreState(state);
+		}
+	}
+
+	/**
+	 * Set how {@link #submitList(List)} compares items
+	 * @see HybridChoiceAdapter#setDiffCallback(DiffCallback)
+	 * @param callback The comparison to use, or {@code null} for the default
+	 */
+	public void setDiffCallback(DiffCallback<T> callback) {
+		this.diffCallback = callback;
+	}
+
+	/**
+	 * Replace the items of this adapter with a new list. The lists are
+	 * compared on a worker thread. The chosen and opened items then follow
+	 * their items to their new positions, and only the rows that were
+	 * removed, inserted or whose contents changed are notified. Moved items
+	 * are notified as removed and inserted.
+	 * <p>
+	 * From then on the adapter shows the submitted list itself, which must
+	 * not be modified without notifying the adapter. The new list is applied
+	 * unless another list has been submitted in the meantime. Must be called
+	 * on the main thread.
+	 * @see HybridChoiceAdapter#submitList(List)
+	 * @param newList The new items
+	 * @throws UnsupportedOperationException If the adapter shows a {@link PagedList}
+	 */
+	public void submitList(List<T> newList) {
+		checkNotPaged("A paged list cannot be replaced");
+		if (listSubmitter == null) {
+			listSubmitter = new ListSubmitter<T>(new SubmitTarget());
+		}
+		listSubmitter.submit(newList, diffCallback != null ? diffCallback
+				: ListDiff.defaultCallback(idMapper));
+	}
+
+	/**
+	 * The adapter's items as seen by the selection model
+	 */
+	private class AdapterItems implements SelectionModel.Items {
+
+		@Override
+		public int getCount() {
+			return getItemCount();
+		}
+
+		@Override
+		public long getItemId(int position) {
+			return itemIdAt(position);
+		}
+	}
+
+	/**
+	 * Receives the lists diffed for {@link #submitList(List)}
+	 */
+	private class SubmitTarget implements ListSubmitter.Target<T>,
+			ListDiff.Updates {
+
+		@Override
+		public List<T> snapshotItems() {
+			return new ArrayList<T>(mObjects);
+		}
+
+		@Override
+		public void applyDiff(List<T> newList, ListDiff diff) {
+			mObjects = newList;
+			selection.onItemsRemapped(diff.getOldToNew());
+			dataChangeReported = true;
+			try {
+				diff.dispatch(this);
+			} finally {
+				dataChangeReported = false;
+			}
+		}
+
+		@Override
+		public void onRemoved(int position, int count) {
+			notifyItemRangeRemoved(position, count);
+		}
+
+		@Override
+		public void onInserted(int position, int count) {
+			notifyItemRangeInserted(position, count);
+		}
+
+		@Override
+		public void onChanged(int position, int count) {
+			notifyItemRangeChanged(position, count);
+		}
+	}
+
+	/**
+	 * Keeps the positions of the chosen and opened ids in the selection model
+	 * in sync with the changes this adapter is notified of
+	 */
+	private class IdPositionsObserver extends RecyclerView.AdapterDataObserver {
+
+		@Override
+		public void onChanged() {
+			if (!dataChangeReported) {
+				selection.onDataChanged();
+			}
+		}
+
+		@Override
+		public void onItemRangeChanged(int positionStart, int itemCount) {
+			selection.onDataChanged();
+		}
+
+		@Override
+		public void onItemRangeChanged(int positionStart, int itemCount,
+				Object payload) {
+			if (!dataChangeReported && payload != PAYLOAD_CHOSEN
+					&& payload != PAYLOAD_OPENED) {
+				selection.onDataChanged();
+			}
+		}
+
+		@Override
+		public void onItemRangeInserted(int positionStart, int itemCount) {
+			if (dataChangeReported) {
+				return;
+			}
+			int end = positionStart + itemCount;
+			if (end == getItemCount()) {
+				selection.onItemsAppended(positionStart, end);
+			} else {
+				selection.onDataChanged();
+			}
+		}
+
+		@Override
+		public void onItemRangeRemoved(int positionStart, int itemCount) {
+			if (dataChangeReported) {
+				return;
+			}
+			if (getItemCount() == 0) {
+				selection.onItemsCleared();
+			} else {
+				selection.onDataChanged();
+			}
+		}
+
+		@Override
+		public void onItemRangeMoved(int fromPosition, int toPosition,
+				int itemCount) {
+			selection.onDataChanged();
+		}
+	}
+
+	/**
+	 * Lets the row binder use the state and the overridable styling of this
+	 * adapter
+	 */
+	private class RowBinderHost implements ChoiceRowBinder.Host {
+
+		@Override
+		public boolean isItemChosen(int position) {
+			return HybridChoiceRecyclerAdapter.this.isItemChosen(position);
+		}
+
+		@Override
+		public boolean isItemOpened(int position) {
+			return HybridChoiceRecyclerAdapter.this.isItemOpened(position);
+		}
+
+		@Override
+		public void setViewAsChosen(View v) {
+			HybridChoiceRecyclerAdapter.this.setViewAsChosen(v);
+		}
+
+		@Override
+		public void setViewAsOpened(View v) {
+			HybridChoiceRecyclerAdapter.this.setViewAsOpened(v);
+		}
+
+		@Override
+		public void setViewAsDefault(View v) {
+			HybridChoiceRecyclerAdapter.this.setViewAsDefault(v);
+		}
+
+		@Override
+		public int getCurrentPosition(RowHolder holder) {
+			/*
+			 * RecyclerView moves rows on item range changes without
+			 * rebinding them, so the position from the last bind may be
+			 * stale
+			 */
+			int position = ((RecyclerView.ViewHolder) holder.viewHolder)
+					.getAdapterPosition();
+			return position == RecyclerView.NO_POSITION ? -1 : position;
+		}
+
+		@Override
+		public void onRowCheckboxChanged(int position, boolean checked) {
+			mCallback.onRowItemChosenChanged(position, checked);
+		}
+	}
+}
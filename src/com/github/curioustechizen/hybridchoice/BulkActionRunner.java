@@ -0,0 +1,209 @@
+package com.github.curioustechizen.hybridchoice;
+
+import java.util.concurrent.Executor;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Runs a {@link BulkAction} over a snapshot of the chosen items on a worker
+ * thread. Items are processed in chunks; after each chunk, progress is
+ * reported and the size of the next chunk is adapted to the time the items
+ * took, so that progress is reported a few times per second whether an item
+ * takes a microsecond or a second. Cancellation is checked before every item.
+ * An exception thrown by the action ends processing like a cancellation,
+ * except that it is reported to the action.
+ *
+ * @param <T>
+ */
+final class BulkActionRunner<T> implements BulkAction.Task {
+
+	/**
+	 * The adapter the action runs on
+	 */
+	interface Target {
+
+		/**
+		 * Remove the items the action asked to remove, in one go. Called on
+		 * the main thread.
+		 *
+		 * @param positions
+		 *            The positions of the items when the action started,
+		 *            ascending
+		 * @param items
+		 *            The items at those positions then
+		 */
+		void removeProcessed(int[] positions, Object[] items);
+
+		void beginBatch();
+
+		void endBatch();
+	}
+
+	private static final Executor BULK_EXECUTOR = Workers.newExecutor(
+			"bulk", 1);
+
+	/*
+	 * How long a chunk should take, i.e. how often progress is reported
+	 */
+	private static final long TARGET_CHUNK_NANOS = 100 * 1000000L;
+
+	private static final int FIRST_CHUNK_SIZE = 16;
+	private static final int MAX_CHUNK_SIZE = 65536;
+
+	private final BulkAction<T> action;
+
+	private final Target target;
+
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	/*
+	 * The snapshot: positions ascending, and the item at each
+	 */
+	private final int[] positions;
+	private final Object[] items;
+
+	/*
+	 * Indexes into the snapshot of the items to remove. Written by the
+	 * worker only; read on the main thread after the worker is done.
+	 */
+	private final int[] removeIndexes;
+	private int removeCount;
+
+	/*
+	 * What the action threw, if it did. Written by the worker only; read on
+	 * the main thread after the worker is done.
+	 */
+	private RuntimeException failure;
+
+	/*
+	 * Set on the main thread, read by the worker
+	 */
+	private volatile boolean cancelled;
+
+	/*
+	 * Only accessed on the main thread
+	 */
+	private boolean finished;
+
+	BulkActionRunner(BulkAction<T> action, Target target, int[] positions,
+			Object[] items) {
+		this.action = action;
+		this.target = target;
+		this.positions = positions;
+		this.items = items;
+		this.removeIndexes = new int[positions.length];
+	}
+
+	/**
+	 * Start processing the items. Must be called on the main thread.
+	 */
+	void start() {
+		BULK_EXECUTOR.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				final int done = processAll();
+				mainHandler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						finish(done);
+					}
+				});
+			}
+		});
+	}
+
+	@Override
+	public void cancel() {
+		cancelled = true;
+	}
+
+	@Override
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/*
+	 * Process the items in chunks until done, cancelled or failed. Returns the
+	 * number of items processed, not counting one that failed.
+	 */
+	@SuppressWarnings("unchecked")
+	private int processAll() {
+		int total = positions.length;
+		int done = 0;
+		int chunk = FIRST_CHUNK_SIZE;
+		while (done < total && !cancelled) {
+			int end = (int) Math.min(total, (long) done + chunk);
+			long start = System.nanoTime();
+			while (done < end && !cancelled) {
+				try {
+					if (action.process(positions[done], (T) items[done])) {
+						removeIndexes[removeCount++] = done;
+					}
+				} catch (RuntimeException e) {
+					failure = e;
+					return done;
+				}
+				done++;
+			}
+			long elapsed = Math.max(1, System.nanoTime() - start);
+			chunk = nextChunkSize(chunk, elapsed);
+			if (done < total) {
+				postProgress(done, total);
+			}
+		}
+		return done;
+	}
+
+	/*
+	 * Scale the chunk size so that the next chunk takes about the target
+	 * time, growing at most fourfold at a time so that a few fast items don't
+	 * lead to a huge chunk of slow ones
+	 */
+	private static int nextChunkSize(int chunk, long elapsedNanos) {
+		long scaled = chunk * TARGET_CHUNK_NANOS / elapsedNanos;
+		return (int) Math.max(1, Math.min(Math.min(scaled, (long) chunk * 4),
+				MAX_CHUNK_SIZE));
+	}
+
+	private void postProgress(final int done, final int total) {
+		mainHandler.post(new Runnable() {
+
+			@Override
+			public void run() {
+				if (!cancelled && !finished) {
+					action.onProgress(done, total);
+				}
+			}
+		});
+	}
+
+	/*
+	 * Apply the result on the main thread
+	 */
+	private void finish(int done) {
+		int[] removedPositions = new int[removeCount];
+		Object[] removedItems = new Object[removeCount];
+		for (int i = 0; i < removeCount; i++) {
+			removedPositions[i] = positions[removeIndexes[i]];
+			removedItems[i] = items[removeIndexes[i]];
+		}
+		target.beginBatch();
+		try {
+			if (removeCount > 0) {
+				target.removeProcessed(removedPositions, removedItems);
+			}
+			finished = true;
+			if (failure != null) {
+				action.onFailed(done, positions.length, failure);
+			} else {
+				action.onFinished(done, positions.length,
+						done < positions.length);
+			}
+		} finally {
+			target.endBatch();
+		}
+	}
+}
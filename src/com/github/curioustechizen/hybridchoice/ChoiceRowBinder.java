@@ -0,0 +1,388 @@
+package com.github.curioustechizen.hybridchoice;
+
+import android.annotation.TargetApi;
+import android.content.res.Resources;
+import android.graphics.Color;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.LevelListDrawable;
+import android.os.Build;
+import android.view.View;
+import android.widget.CompoundButton;
+import android.widget.CompoundButton.OnCheckedChangeListener;
+
+/**
+ * Styles row views according to their chosen and opened state. This is the
+ * part of row binding that {@link HybridChoiceAdapter} and
+ * {@code HybridChoiceRecyclerAdapter} have in common.
+ */
+class ChoiceRowBinder {
+
+	/**
+	 * The adapter a binder works for
+	 */
+	interface Host {
+
+		boolean isItemChosen(int position);
+
+		boolean isItemOpened(int position);
+
+		void setViewAsChosen(View v);
+
+		void setViewAsOpened(View v);
+
+		void setViewAsDefault(View v);
+
+		/**
+		 * The position of the item a row shows now, when its checkbox is
+		 * clicked
+		 *
+		 * @return The position, or {@code -1} if the row no longer shows an
+		 *         item
+		 */
+		int getCurrentPosition(RowHolder holder);
+
+		/**
+		 * The checkbox of the row at a position was clicked
+		 */
+		void onRowCheckboxChanged(int position, boolean checked);
+	}
+
+	/*
+	 * The default background color for and opened item
+	 */
+	private static final int COLOR_OPENED_ITEM = Color.parseColor("#ff0099cc"); // holo_blue_dark
+
+	/*
+	 * The default background color for chosen items
+	 */
+	private static final int COLOR_CHOSEN_ITEM = Color.parseColor("#ff00ddff"); // holo_blue_bright
+
+	/*
+	 * Levels of the per-row background
+	 */
+	static final int LEVEL_DEFAULT = 0;
+	static final int LEVEL_OPENED = 1;
+	static final int LEVEL_CHOSEN = 2;
+
+	private final Host host;
+
+	/*
+	 * The one listener for the checkboxes of all rows. Each checkbox carries
+	 * the holder of its row as a tag, from which the host works out the
+	 * position the row shows when the click happens.
+	 */
+	private final OnCheckedChangeListener checkboxListener = new OnCheckedChangeListener() {
+
+		@Override
+		public void onCheckedChanged(CompoundButton buttonView,
+				boolean isChecked) {
+			RowHolder holder = (RowHolder) buttonView
+					.getTag(R.id.hca_row_holder);
+			if (holder == null) {
+				return;
+			}
+			int position = host.getCurrentPosition(holder);
+			if (position < 0) {
+				return;
+			}
+			host.onRowCheckboxChanged(position, isChecked);
+
+			/*
+			 * If the change was declined, the row was not restyled, and the
+			 * holder still has the chosen state the checkbox no longer shows.
+			 * Show it again, so that later binds don't skip a wrong row.
+			 */
+			boolean chosen = host.isItemChosen(position);
+			if (chosen != isChecked && holder.chosen == chosen
+					&& holder.checkbox != null) {
+				holder.checkbox.setCheckedProgrammatically(chosen);
+			}
+		}
+	};
+
+	private final Resources resources;
+
+	/*
+	 * The Drawables to set as background for opened and chosen items
+	 */
+	private Drawable openedBackgroundDrawable, chosenBackgroundDrawable;
+
+	/*
+	 * The resource IDs to set as background for opened and chosen items
+	 */
+	private int openedBackgroundResid, chosenBackgroundResid;
+
+	/*
+	 * The colors to set as backgrounds for opened and chosen items
+	 */
+	private int openedBackgroundColor = -1, chosenBackgroundColor = -1;
+
+	/*
+	 * The backgrounds above, resolved once into constant states from which
+	 * each row gets its own drawable instances. null until first needed.
+	 */
+	private Drawable.ConstantState openedBackgroundState, chosenBackgroundState;
+
+	/*
+	 * Bumped whenever the backgrounds above change, so that rows styled with
+	 * the old ones are restyled on their next bind
+	 */
+	private int styleGeneration;
+
+	ChoiceRowBinder(Host host, Resources resources) {
+		this.host = host;
+		this.resources = resources;
+	}
+
+	void setOpenedBackgroundDrawable(Drawable openedDrawable) {
+		this.openedBackgroundDrawable = openedDrawable;
+		this.openedBackgroundState = null;
+		styleGeneration++;
+	}
+
+	void setChosenBackgroundDrawable(Drawable selectedBackground) {
+		this.chosenBackgroundDrawable = selectedBackground;
+		this.chosenBackgroundState = null;
+		styleGeneration++;
+	}
+
+	void setOpenedBackgroundResource(int openedResid) {
+		this.openedBackgroundResid = openedResid;
+		this.openedBackgroundState = null;
+		styleGeneration++;
+	}
+
+	void setChosenBackgroundResource(int selectedResid) {
+		this.chosenBackgroundResid = selectedResid;
+		this.chosenBackgroundState = null;
+		styleGeneration++;
+	}
+
+	void setOpenedBackgroundColor(int openedColor) {
+		this.openedBackgroundColor = openedColor;
+		this.openedBackgroundState = null;
+		styleGeneration++;
+	}
+
+	void setChosenBackgroundColor(int selectedColor) {
+		this.chosenBackgroundColor = selectedColor;
+		this.chosenBackgroundState = null;
+		styleGeneration++;
+	}
+
+	/**
+	 * Get the holder of a row, creating it on the first bind of the row
+	 */
+	RowHolder holderFor(View v) {
+		RowHolder holder = (RowHolder) v.getTag(R.id.hca_row_holder);
+		if (holder == null) {
+			holder = createRowHolder(v);
+		}
+		return holder;
+	}
+
+	/**
+	 * Get the holder of a row that has been bound before, or {@code null}
+	 */
+	static RowHolder existingHolder(View v) {
+		return (RowHolder) v.getTag(R.id.hca_row_holder);
+	}
+
+	/*
+	 * Look up the optional EnhancedCheckBox of a freshly inflated row and
+	 * remember it in a holder attached to the row
+	 */
+	private RowHolder createRowHolder(View v) {
+		RowHolder holder = new RowHolder();
+		holder.checkbox = (EnhancedCheckBox) v
+				.findViewById(android.R.id.checkbox);
+
+		/*
+		 * If it contains an EnhancedCheckbox, listen for checked changes
+		 */
+		if (holder.checkbox != null) {
+			holder.checkbox.setTag(R.id.hca_row_holder, holder);
+			holder.checkbox.setOnCheckedChangeListener(checkboxListener);
+		}
+		v.setTag(R.id.hca_row_holder, holder);
+		return holder;
+	}
+
+	/**
+	 * Style a row view according to the chosen and opened state of its
+	 * position. If the row already shows the right state, nothing is touched.
+	 */
+	void bind(View v, RowHolder holder, int position) {
+		holder.position = position;
+		boolean opened = host.isItemOpened(position);
+		boolean chosen = host.isItemChosen(position);
+		if (holder.styleGeneration == styleGeneration
+				&& holder.opened == opened && holder.chosen == chosen) {
+			return;
+		}
+
+		/*
+		 * Keep the checkbox in sync with the chosen state
+		 */
+		boolean fresh = holder.styleGeneration < 0;
+		if (holder.checkbox != null && (fresh || holder.chosen != chosen)) {
+			holder.checkbox.setCheckedProgrammatically(chosen);
+		}
+
+		/*
+		 * Update the UI to indicate the chosen or opened state visually.
+		 * Chosen takes precedence over opened.
+		 */
+		if (chosen) {
+			host.setViewAsChosen(v);
+		} else if (opened) {
+			host.setViewAsOpened(v);
+		} else {
+			host.setViewAsDefault(v);
+		}
+
+		holder.styleGeneration = styleGeneration;
+		holder.opened = opened;
+		holder.chosen = chosen;
+	}
+
+	/**
+	 * Show one of the levels of the row's background, installing the
+	 * background first if the row doesn't have an up-to-date one yet
+	 */
+	void showBackgroundLevel(View v, int level) {
+		RowHolder holder = existingHolder(v);
+		Drawable background = holder != null ? holder.background : null;
+		if (background == null || holder.backgroundGeneration != styleGeneration
+				|| v.getBackground() != background) {
+			if (level == LEVEL_DEFAULT && background == null) {
+				/*
+				 * Nothing to show and nothing to hide
+				 */
+				v.setBackgroundResource(0);
+				return;
+			}
+			background = createRowBackground();
+			setBackground(v, background);
+			if (holder != null) {
+				holder.background = background;
+				holder.backgroundGeneration = styleGeneration;
+			}
+		}
+		background.setLevel(level);
+	}
+
+	/*
+	 * A background of its own for one row: a level-list of fresh instances of
+	 * the chosen and opened drawables. Level 0 shows nothing.
+	 */
+	private Drawable createRowBackground() {
+		if (chosenBackgroundState == null) {
+			chosenBackgroundState = resolveBackground(chosenBackgroundDrawable,
+					chosenBackgroundResid, chosenBackgroundColor,
+					COLOR_CHOSEN_ITEM);
+		}
+		if (openedBackgroundState == null) {
+			openedBackgroundState = resolveBackground(openedBackgroundDrawable,
+					openedBackgroundResid, openedBackgroundColor,
+					COLOR_OPENED_ITEM);
+		}
+		LevelListDrawable background = new LevelListDrawable();
+		background.addLevel(LEVEL_OPENED, LEVEL_OPENED,
+				openedBackgroundState.newDrawable(resources));
+		background.addLevel(LEVEL_CHOSEN, LEVEL_CHOSEN,
+				chosenBackgroundState.newDrawable(resources));
+		return background;
+	}
+
+	/*
+	 * Resolve the configured drawable, resource or color (in that order of
+	 * preference) once, into a constant state that rows can cheaply create
+	 * their own instances from
+	 */
+	private Drawable.ConstantState resolveBackground(Drawable drawable,
+			int resid, int color, int defaultColor) {
+		if (drawable == null && resid != 0) {
+			drawable = resources.getDrawable(resid);
+		}
+		if (drawable == null) {
+			drawable = new ColorDrawable(color != -1 ? color : defaultColor);
+		}
+		Drawable.ConstantState state = drawable.getConstantState();
+		return state != null ? state : new SharedDrawableState(drawable);
+	}
+
+	@SuppressWarnings("deprecation")
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private static void setBackground(View v, Drawable background) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			v.setBackground(background);
+		} else {
+			v.setBackgroundDrawable(background);
+		}
+	}
+
+	/**
+	 * Per-row state, kept as a tag on the row view under
+	 * {@code R.id.hca_row_holder}. The checkbox is looked up once, when the
+	 * row is first bound; the structure of a recycled row is assumed not to
+	 * change.
+	 */
+	static class RowHolder {
+
+		/**
+		 * The optional checkbox of the row
+		 */
+		EnhancedCheckBox checkbox;
+
+		/**
+		 * The position the row is currently bound to
+		 */
+		int position = -1;
+
+		/**
+		 * The {@code RecyclerView.ViewHolder} of a row of
+		 * {@code HybridChoiceRecyclerAdapter}, or {@code null}
+		 */
+		Object viewHolder;
+
+		/**
+		 * The state that was last applied to the row. The generation starts
+		 * out invalid so that the first bind always styles the row.
+		 */
+		boolean chosen, opened;
+		int styleGeneration = -1;
+
+		/**
+		 * The level-list background installed on the row, and the style
+		 * generation it was built for
+		 */
+		Drawable background;
+		int backgroundGeneration;
+	}
+
+	/**
+	 * Stand-in constant state for drawables that don't provide one. Every row
+	 * then shares the same instance, which is what the adapter used to do for
+	 * all drawables.
+	 */
+	private static class SharedDrawableState extends Drawable.ConstantState {
+
+		private final Drawable drawable;
+
+		SharedDrawableState(Drawable drawable) {
+			this.drawable = drawable;
+		}
+
+		@Override
+		public Drawable newDrawable() {
+			return drawable;
+		}
+
+		@Override
+		public int getChangingConfigurations() {
+			return 0;
+		}
+	}
+}
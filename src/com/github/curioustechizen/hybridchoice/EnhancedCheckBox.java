@@ -18,6 +18,27 @@ public class EnhancedCheckBox extends CheckBox {
 
 	private CompoundButton.OnCheckedChangeListener mListener = null;
 
+	/*
+	 * Set while the checked state is being changed programmatically, so that
+	 * the change isn't reported to the listener
+	 */
+	private boolean mChangingProgrammatically;
+
+	/*
+	 * Installed as the listener of the CheckBox itself. Forwards user changes
+	 * to the current listener.
+	 */
+	private final CompoundButton.OnCheckedChangeListener mDispatcher = new CompoundButton.OnCheckedChangeListener() {
+
+		@Override
+		public void onCheckedChanged(CompoundButton buttonView,
+				boolean isChecked) {
+			if (!mChangingProgrammatically && mListener != null) {
+				mListener.onCheckedChanged(buttonView, isChecked);
+			}
+		}
+	};
+
 	public EnhancedCheckBox(Context context) {
 		super(context);
 	}
@@ -33,9 +54,8 @@ public class EnhancedCheckBox extends CheckBox {
 	@Override
 	public void setOnCheckedChangeListener(
 			CompoundButton.OnCheckedChangeListener listener) {
-		if (this.mListener == null)
-			this.mListener = listener;
-		super.setOnCheckedChangeListener(listener);
+		this.mListener = listener;
+		super.setOnCheckedChangeListener(listener != null ? mDispatcher : null);
 	}
 
 	/**
@@ -43,9 +63,12 @@ public class EnhancedCheckBox extends CheckBox {
 	 * @param checked Whether to check the checkbox
 	 */
 	public void setCheckedProgrammatically(boolean checked) {
-		super.setOnCheckedChangeListener(null);
-		super.setChecked(checked);
-		super.setOnCheckedChangeListener(mListener);
+		mChangingProgrammatically = true;
+		try {
+			super.setChecked(checked);
+		} finally {
+			mChangingProgrammatically = false;
+		}
 	}
 
 }
@@ -1,19 +1,26 @@
 package com.github.curioustechizen.hybridchoice;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
 
 import android.annotation.TargetApi;
 import android.content.Context;
-import android.graphics.Color;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Trace;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ArrayAdapter;
-import android.widget.CompoundButton;
-import android.widget.CompoundButton.OnCheckedChangeListener;
+import android.widget.ListView;
+
+import com.github.curioustechizen.hybridchoice.ChoiceRowBinder.RowHolder;
 
 /**
  * An {@code ArrayAdapter} that keeps track of the currently opened item as well
@@ -27,44 +34,111 @@ import android.widget.CompoundButton.OnCheckedChangeListener;
 public abstract class HybridChoiceAdapter<T> extends ArrayAdapter<T> {
 
 	/**
-	 * The set of currently chosen items
+	 * The key under which {@link #saveState(Bundle)} saves the chosen and
+	 * opened items
 	 */
-	private Set<Integer> chosenItems = new HashSet<Integer>();
+	static final String STATE_SELECTION = "com.github.curioustechizen.hybridchoice.SELECTION";
 
 	/**
-	 * The currently opened item
+	 * The chosen and opened items
 	 */
-	private int openedItem = -1;
+	private final SelectionModel selection;
 
 	/**
-	 * The callback for when the Checkbox in the row item is checked (if any)
+	 * Maps items to stable ids. {@code null} unless the adapter tracks items
+	 * by id.
 	 */
-	private RowItemChoiceCallback mCallback;
+	private final ItemIdMapper<T> idMapper;
 
-	/*
-	 * The default background color for and opened item
+	/**
+	 * The items if they are loaded a page at a time, otherwise {@code null}
 	 */
-	private static final int COLOR_OPENED_ITEM = Color.parseColor("#ff0099cc"); // holo_blue_dark
+	private final PagedList<T> pagedList;
 
 	/*
-	 * The default background color for chosen items
+	 * Set while a mutator of this adapter notifies about a change that it
+	 * reports to the selection model itself, so that notifyDataSetChanged()
+	 * keeps the positions of the chosen and opened ids
 	 */
-	private static final int COLOR_CHOSEN_ITEM = Color.parseColor("#ff00ddff"); // holo_blue_bright
+	private boolean dataChangeReported;
 
-	/*
-	 * The Drawables to set as background for opened and chosen items
+	/**
+	 * The items taken out by the last undoable removal, or {@code null} if
+	 * it can no longer be undone
 	 */
-	private Drawable openedBackgroundDrawable, chosenBackgroundDrawable;
+	private RemovalJournal removalJournal;
 
 	/*
-	 * The resource IDs to set as background for opened and chosen items
+	 * Discards the journal once the time to undo is up. Created on first use.
 	 */
-	private int openedBackgroundResid, chosenBackgroundResid;
+	private Handler undoHandler;
+	private final Runnable undoExpiry = new Runnable() {
 
-	/*
-	 * The colors to set as backgrounds for opened and chosen items
+		@Override
+		public void run() {
+			discardUndo();
+		}
+	};
+
+	/**
+	 * The callback for when the Checkbox in the row item is checked (if any)
+	 */
+	private RowItemChoiceCallback mCallback;
+
+	/**
+	 * The list this adapter is attached to, if any. When set, choice and open
+	 * changes restyle the affected visible rows in place.
+	 */
+	private AbsListView mListView;
+
+	/**
+	 * Styles the rows
+	 */
+	private final ChoiceRowBinder rowBinder;
+
+	/**
+	 * Compares items for {@link #submitList(List)}. {@code null} to use the
+	 * default comparison.
+	 */
+	private DiffCallback<T> diffCallback;
+
+	/**
+	 * Diffs submitted lists in the background. Created on first use.
+	 */
+	private ListSubmitter<T> listSubmitter;
+
+	/**
+	 * While filtered, the positions in the unfiltered list of the items
+	 * shown, in ascending order. {@code null} if not filtered.
+	 */
+	private int[] filtered;
+
+	/**
+	 * The current filter query, or {@code null} if not filtered
+	 */
+	private String filterQuery;
+
+	/**
+	 * Decides which items match a filter query. {@code null} to use the
+	 * default matching.
 	 */
-	private int openedBackgroundColor = -1, chosenBackgroundColor = -1;
+	private ItemMatcher<T> itemMatcher;
+
+	/**
+	 * Filters the items in the background. Created on first use.
+	 */
+	private ListFilter<T> listFilter;
+
+	/**
+	 * Records counters and timings, or {@code null} if disabled
+	 */
+	private BindMetrics metrics;
+
+	/**
+	 * Whether to add trace sections. Only ever set where tracing is
+	 * available.
+	 */
+	private boolean traceEnabled;
 
 	/**
 	 * Callback interface for notifying the interested components about when a
@@ -101,8 +175,79 @@ public abstract class HybridChoiceAdapter<T> extends ArrayAdapter<T> {
 	 */
 	public HybridChoiceAdapter(Context context, List<T> objects,
 			RowItemChoiceCallback callback) {
+		this(context, objects, callback, null);
+	}
+
+	/**
+	 * Constructor for an adapter that tracks chosen and opened items by their
+	 * stable ids rather than by position. The choices then follow their items
+	 * when the list is modified or refreshed, and {@link #hasStableIds()}
+	 * returns {@code true} so that the {@code ListView} can keep its own state
+	 * too.
+	 * 
+	 * @param context
+	 *            The {@code Context}
+	 * @param objects
+	 *            The list of objects to be displayed by the adapter. If it is
+	 *            a {@link PagedList}, rows are rebound as its pages load; the
+	 *            list cannot be modified through the adapter.
+	 * @param callback
+	 *            The implementation of the callback interface for when the
+	 *            checkbox in a row is selected. Can be {@code null} if you do
+	 *            not have checkboxes in your rows.
+	 * @param idMapper
+	 *            Maps each item to its stable id. If {@code null}, items are
+	 *            tracked by position. Not used for a {@link PagedList}, whose
+	 *            data source provides the ids.
+	 */
+	@SuppressWarnings("unchecked")
+	public HybridChoiceAdapter(Context context, List<T> objects,
+			RowItemChoiceCallback callback, ItemIdMapper<T> idMapper) {
 		super(context, android.R.id.text1, objects);
 		this.mCallback = callback;
+		this.idMapper = idMapper;
+		this.pagedList = objects instanceof PagedList ? (PagedList<T>) objects
+				: null;
+		this.selection = new SelectionModel(new AdapterItems(),
+				idMapper != null);
+		this.selection.setCallback(new SelectionModel.Callback() {
+
+			@Override
+			public void onChosenChanged(int from, int to) {
+				if (filtered != null) {
+					from = firstShownFrom(from);
+					to = firstShownFrom(to);
+				}
+				refreshVisibleRows(from, to);
+			}
+
+			@Override
+			public void onOpenedChanged(int previous, int current) {
+				previous = toShown(previous);
+				current = toShown(current);
+				refreshVisibleRows(previous, previous + 1);
+				refreshVisibleRows(current, current + 1);
+			}
+		});
+		this.rowBinder = new ChoiceRowBinder(new RowBinderHost(),
+				context.getResources());
+		if (pagedList != null) {
+			pagedList.setCallback(new PagedList.Callback() {
+
+				@Override
+				public void onRangeLoaded(int start, int count) {
+					onPageLoaded(start, start + count);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Get the model that keeps the chosen and opened items of this adapter
+	 * @return The selection model
+	 */
+	public SelectionModel getSelectionModel() {
+		return selection;
 	}
 
 	/**
@@ -110,7 +255,7 @@ public abstract class HybridChoiceAdapter<T> extends ArrayAdapter<T> {
 	 * @param openedDrawable The background Drawable indicating the opened item
 	 */
 	public void setOpenedBackgroundDrawable(Drawable openedDrawable) {
-		this.openedBackgroundDrawable = openedDrawable;
+		rowBinder.setOpenedBackgroundDrawable(openedDrawable);
 	}
 
 	/**
@@ -118,7 +263,7 @@ public abstract class HybridChoiceAdapter<T> extends ArrayAdapter<T> {
 	 * @param selectedBackground The drawable that indicates chosen items
 	 */
 	public void setChosenBackgroundDrawable(Drawable selectedBackground) {
-		this.chosenBackgroundDrawable = selectedBackground;
+		rowBinder.setChosenBackgroundDrawable(selectedBackground);
 	}
 
 	/**
@@ -126,7 +271,7 @@ public abstract class HybridChoiceAdapter<T> extends ArrayAdapter<T> {
 	 * @param openedResid A resource ID that indicates the opened item
 	 */
 	public void setOpenedBackgroundResource(int openedResid) {
-		this.openedBackgroundResid = openedResid;
+		rowBinder.setOpenedBackgroundResource(openedResid);
 	}
 
 	/**
@@ -134,7 +279,7 @@ public abstract class HybridChoiceAdapter<T> extends ArrayAdapter<T> {
 	 * @param selectedResid A resource ID that indicates the chosen items
 	 */
 	public void setChosenBackgroundResource(int selectedResid) {
-		this.chosenBackgroundResid = selectedResid;
+		rowBinder.setChosenBackgroundResource(selectedResid);
 	}
 
 	/**
@@ -142,7 +287,7 @@ public abstract class HybridChoiceAdapter<T> extends ArrayAdapter<T> {
 	 * @param openedColor A color that indicates an opened item
 	 */
 	public void setOpenedBackgroundColor(int openedColor) {
-		this.openedBackgroundColor = openedColor;
+		rowBinder.setOpenedBackgroundColor(openedColor);
 	}
 
 	/**
@@ -150,7 +295,27 @@ public abstract class HybridChoiceAdapter<T> extends ArrayAdapter<T> {
 	 * @param selectedColor A color indicating chosen items
 	 */
 	public void setChosenBackgroundColor(int selectedColor) {
-		this.chosenBackgroundColor = selectedColor;
+		rowBinder.setChosenBackgroundColor(selectedColor);
+	}
+
+	/**
+	 * Replace the store that keeps track of chosen items. The default is a
+	 * {@link BitmapSelectionStore}. Items chosen in the previous store are
+	 * discarded; the adapter reflects whatever the new store contains.
+	 * @param store The store to use from now on
+	 * @throws IllegalStateException If the adapter tracks items by stable id
+	 */
+	public void setSelectionStore(SelectionStore store) {
+		selection.setSelectionStore(store);
+	}
+
+	/**
+	 * Tell the adapter that the store set with {@link #setSelectionStore(SelectionStore)} has been changed
+	 * directly, e.g. from a background thread through a {@link ConcurrentSelectionStore}. The visible rows are
+	 * restyled and observers are notified. Must be called on the main thread.
+	 */
+	public void notifySelectionStoreChanged() {
+		selection.onStoreChanged();
 	}
 
 	/**
@@ -159,10 +324,177 @@ public abstract class HybridChoiceAdapter<T> extends ArrayAdapter<T> {
 	 * @param chosen Whether the item is to be set as chosen
 	 */
 	public void setItemChosen(int position, boolean chosen) {
-		if (!chosen && isItemChosen(position)) {
-			chosenItems.remove(position);
-		} else if (chosen && !isItemChosen(position)) {
-			chosenItems.add(position);
+		long start = metrics != null ? System.nanoTime() : 0;
+		selection.setItemChosen(toSource(position), chosen);
+		selectionOperationDone(start);
+	}
+
+	/**
+	 * Changes the chosen state of a range of items in one go. With the default
+	 * store this costs O(log n) regardless of the length of the range, so it
+	 * should be preferred to calling {@link #setItemChosen(int, boolean)} in a
+	 * loop, e.g. for shift-select.
+	 * @param from The position of the first item in the range (inclusive)
+	 * @param to The end of the range (exclusive)
+	 * @param chosen Whether the items are to be set as chosen
+	 */
+	public void setRangeChosen(int from, int to, boolean chosen) {
+		long start = metrics != null ? System.nanoTime() : 0;
+		applyRangeChosen(from, to, chosen);
+		selectionOperationDone(start);
+	}
+
+	private void applyRangeChosen(int from, int to, boolean chosen) {
+		if (filtered == null) {
+			selection.setRangeChosen(from, to, chosen);
+			return;
+		}
+		if (from < 0 || to > filtered.length || from > to) {
+			throw new IndexOutOfBoundsException("Invalid range [" + from
+					+ ", " + to + ") for " + filtered.length + " items");
+		}
+		selection.beginBatch();
+		try {
+			for (int position = from; position < to; position++) {
+				selection.setItemChosen(filtered[position], chosen);
+			}
+		} finally {
+			selection.endBatch();
+		}
+	}
+
+	/**
+	 * Set all items as chosen. While filtered, only the items shown.
+	 */
+	public void selectAll() {
+		long start = metrics != null ? System.nanoTime() : 0;
+		if (filtered == null) {
+			selection.selectAll();
+		} else {
+			applyRangeChosen(0, filtered.length, true);
+		}
+		selectionOperationDone(start);
+	}
+
+	/**
+	 * Invert the chosen state of every item: chosen items are no longer
+	 * chosen, and all others become chosen. While filtered, only the items
+	 * shown.
+	 */
+	public void invertSelection() {
+		long start = metrics != null ? System.nanoTime() : 0;
+		if (filtered == null) {
+			selection.invertSelection();
+		} else {
+			selection.beginBatch();
+			try {
+				for (int position : filtered) {
+					selection.toggleItem(position);
+				}
+			} finally {
+				selection.endBatch();
+			}
+		}
+		selectionOperationDone(start);
+	}
+
+	/**
+	 * Register an observer that is told about every change to the chosen and
+	 * opened items, e.g. to keep a count of chosen items up to date
+	 * @param observer The observer to add
+	 */
+	public void addSelectionObserver(SelectionObserver observer) {
+		selection.addObserver(observer);
+	}
+
+	/**
+	 * Unregister an observer added with {@link #addSelectionObserver(SelectionObserver)}
+	 * @param observer The observer to remove
+	 */
+	public void removeSelectionObserver(SelectionObserver observer) {
+		selection.removeObserver(observer);
+	}
+
+	/**
+	 * Start a batch of changes to the chosen and opened items. The rows are
+	 * restyled, and observers notified, once for the whole batch when
+	 * {@link #endBatch()} is called, rather than once for every change.
+	 * Batches may be nested.
+	 */
+	public void beginBatch() {
+		selection.beginBatch();
+	}
+
+	/**
+	 * End a batch of changes started with {@link #beginBatch()}
+	 */
+	public void endBatch() {
+		selection.endBatch();
+	}
+
+	/**
+	 * Attach this adapter to the list that displays it. While attached,
+	 * changes to the chosen and opened items restyle only the affected rows
+	 * that are currently visible, so there is no need to call
+	 * {@link #notifyDataSetChanged()} after them. The rows are restyled in
+	 * place; {@link #getViewHca(int, View, ViewGroup)} is not called.
+	 * @param listView The list that this adapter is set on, or {@code null} to detach
+	 */
+	public void attachTo(AbsListView listView) {
+		this.mListView = listView;
+	}
+
+	/**
+	 * Restyle the visible rows in [from, to) to match their current chosen
+	 * and opened state. Does nothing if the adapter is not attached.
+	 */
+	private void refreshVisibleRows(int from, int to) {
+		if (mListView == null || from >= to) {
+			return;
+		}
+		int childCount = mListView.getChildCount();
+		int firstPosition = mListView.getFirstVisiblePosition();
+		if (mListView instanceof ListView) {
+			firstPosition -= ((ListView) mListView).getHeaderViewsCount();
+		}
+		int start = Math.max(from, firstPosition);
+		int end = Math.min(Math.min(to, getCount()), firstPosition + childCount);
+		if (start >= end) {
+			return;
+		}
+		beginTraceSection("HybridChoice restyle rows");
+		for (int position = start; position < end; position++) {
+			View v = mListView.getChildAt(position - firstPosition);
+			RowHolder holder = ChoiceRowBinder.existingHolder(v);
+			if (holder != null) {
+				rowBinder.bind(v, holder, position);
+			}
+		}
+		endTraceSection();
+		if (metrics != null) {
+			metrics.onRowsRestyled(end - start);
+		}
+	}
+
+	/*
+	 * Rebind the rows of a page that has loaded if any of them are visible.
+	 * Loading doesn't change ids, so their positions are kept.
+	 */
+	private void onPageLoaded(int from, int to) {
+		if (mListView != null) {
+			int first = mListView.getFirstVisiblePosition();
+			if (mListView instanceof ListView) {
+				first -= ((ListView) mListView).getHeaderViewsCount();
+			}
+			if (to <= first || from >= first + mListView.getChildCount()) {
+				return;
+			}
+		}
+		dataChangeReported = true;
+		try {
+			notifyDataSetChanged();
+		} finally {
+			dataChangeReported = false;
 		}
 	}
 
@@ -170,115 +502,129 @@ public abstract class HybridChoiceAdapter<T> extends ArrayAdapter<T> {
 	public final View getView(final int position, View convertView,
 			ViewGroup parent) {
 		
+		if (metrics != null || traceEnabled) {
+			return getViewInstrumented(position, convertView, parent);
+		}
+
 		/*
 		 * Get the row view from the user supplied implementation
 		 */
 		View v = getViewHca(position, convertView, parent);
 		
 		/*
-		 * If it contains an EnhancedCheckbox, set listeners for checked changes
+		 * Rows keep their checkbox and last applied state in a holder, so
+		 * that rebinding a recycled row walks the view tree only once
 		 */
-		EnhancedCheckBox checkbox = (EnhancedCheckBox) v
-				.findViewById(android.R.id.checkbox);
-		if (checkbox != null) {
-			checkbox.setCheckedProgrammatically(false);
-			checkbox.setOnCheckedChangeListener(new OnCheckedChangeListener() {
-
-				@Override
-				public void onCheckedChanged(CompoundButton buttonView,
-						boolean isChecked) {
-					mCallback.onRowItemChosenChanged(position, isChecked);
+		rowBinder.bind(v, rowBinder.holderFor(v), position);
+		return v;
+	}
 
-				}
-			});
+	/*
+	 * getView() with timing and trace sections
+	 */
+	private View getViewInstrumented(int position, View convertView,
+			ViewGroup parent) {
+		long start = System.nanoTime();
+		beginTraceSection("HybridChoice getViewHca");
+		View v = getViewHca(position, convertView, parent);
+		endTraceSection();
+		long bound = System.nanoTime();
+		beginTraceSection("HybridChoice style row");
+		rowBinder.bind(v, rowBinder.holderFor(v), position);
+		endTraceSection();
+		if (metrics != null) {
+			metrics.onRowBound(v == convertView, bound - start,
+					System.nanoTime() - bound);
 		}
-		
-		/*
-		 * First, clear the background
-		 */
-		v.setBackgroundResource(0);
-		
-		/*
-		 * If an item is opened, update the UI to indicate this visually
-		 */
-		if (isItemOpened(position)) {
-			setViewAsOpened(v);
+		return v;
+	}
+
+	/**
+	 * Start reporting counters and timings of this adapter, e.g. to a
+	 * performance dashboard
+	 * @param metrics The metrics to record into, or {@code null} to stop
+	 * recording
+	 */
+	public void setMetrics(BindMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Mark binding and restyling rows as sections of system traces, so that
+	 * they show up in systrace. Has no effect before Android 4.3.
+	 * @param enabled Whether to add trace sections
+	 */
+	public void setTraceEnabled(boolean enabled) {
+		this.traceEnabled = enabled
+				&& Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+	}
+
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+	private void beginTraceSection(String name) {
+		if (traceEnabled) {
+			Trace.beginSection(name);
 		}
+	}
 
-		/*
-		 * If an item is chosen, update the UI to indicate this visually
-		 */
-		if (isItemChosen(position)) {
-			if (checkbox != null) {
-				checkbox.setCheckedProgrammatically(true);
-			}
-			setViewAsChosen(v);
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+	private void endTraceSection() {
+		if (traceEnabled) {
+			Trace.endSection();
 		}
+	}
 
-		return v;
+	private void selectionOperationDone(long start) {
+		if (metrics != null) {
+			metrics.onSelectionOperation(System.nanoTime() - start);
+		}
 	}
 
 	/**
-	 * Set the row view UI to indicate that it is chosen. The default implementation works as follows:
+	 * Set the row view UI to indicate that it is chosen. The background used is picked as follows:
 	 * <ol>
-	 *   <li>In API 16 and above, if a {@link #setChosenBackgroundDrawable(Drawable)} has been called, then set that drawable as background
-	 *   <li>Else, if {@link #setChosenBackgroundResource(int)} has been called, then set that resource as the background resource
-	 *   <li>Else, if {@link #setChosenBackgroundColor(int)} has been called, then set that color as the background color.
-	 *   <li>Else, set the default (holo_blue_bright) as the background color
+	 *   <li>If a {@link #setChosenBackgroundDrawable(Drawable)} has been called, then that drawable
+	 *   <li>Else, if {@link #setChosenBackgroundResource(int)} has been called, then that resource
+	 *   <li>Else, if {@link #setChosenBackgroundColor(int)} has been called, then that color
+	 *   <li>Else, the default (holo_blue_bright) color
 	 * </ol>
+	 * The default implementation does not replace the background of the row on every call. Each row gets its own
+	 * level-list background, built once from the chosen and opened backgrounds, and this only switches its level.
 	 * @param v
 	 */
-	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
 	public void setViewAsChosen(View v) {
-		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
-			if (this.chosenBackgroundDrawable != null) {
-				v.setBackground(chosenBackgroundDrawable);
-				return;
-			}
-		}
-		if (this.chosenBackgroundResid != 0) {
-			v.setBackgroundResource(this.chosenBackgroundResid);
-			return;
-		}
-		if (this.chosenBackgroundColor != -1) {
-			v.setBackgroundColor(this.chosenBackgroundColor);
-			return;
-		}
-		v.setBackgroundColor(COLOR_CHOSEN_ITEM);
+		rowBinder.showBackgroundLevel(v, ChoiceRowBinder.LEVEL_CHOSEN);
 	}
 
 	
 	/**
-	 * Set the row view UI to indicate that it is opened. The default implementation works as follows:
+	 * Set the row view UI to indicate that it is opened. The background used is picked as follows:
 	 * <ol>
-	 *   <li>In API 16 and above, if a {@link #setOpenedBackgroundDrawable(Drawable)} has been called, then set that drawable as background
-	 *   <li>Else, if {@link #setOpenedBackgroundResource(int)} has been called, then set that resource as the background resource
-	 *   <li>Else, if {@link #setOpenedBackgroundColor(int)} has been called, then set that color as the background color.
-	 *   <li>Else, set the default (holo_blue_dark) as the background color
+	 *   <li>If a {@link #setOpenedBackgroundDrawable(Drawable)} has been called, then that drawable
+	 *   <li>Else, if {@link #setOpenedBackgroundResource(int)} has been called, then that resource
+	 *   <li>Else, if {@link #setOpenedBackgroundColor(int)} has been called, then that color
+	 *   <li>Else, the default (holo_blue_dark) color
 	 * </ol>
+	 * Like {@link #setViewAsChosen(View)}, this only switches the level of the row's background.
 	 * @param v
 	 */
-	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
 	public void setViewAsOpened(View v) {
-		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
-			if (this.openedBackgroundDrawable != null) {
-				v.setBackground(openedBackgroundDrawable);
-				return;
-			}
-		}
-		if (this.openedBackgroundResid != 0) {
-			v.setBackgroundResource(this.openedBackgroundResid);
-			return;
-		}
-		if (this.openedBackgroundColor != -1) {
-			v.setBackgroundColor(this.openedBackgroundColor);
-			return;
-		}
-		v.setBackgroundColor(COLOR_OPENED_ITEM);
+		rowBinder.showBackgroundLevel(v, ChoiceRowBinder.LEVEL_OPENED);
+	}
+
+	/**
+	 * Set the row view UI to indicate that it is neither chosen nor opened. The default implementation switches the
+	 * row's background to its empty level.
+	 * @param v
+	 */
+	public void setViewAsDefault(View v) {
+		rowBinder.showBackgroundLevel(v, ChoiceRowBinder.LEVEL_DEFAULT);
 	}
 
 	/**
 	 * Get the view for a row item. This MUST be overridden to return the row view. Analogous to {@link ArrayAdapter#getView(int, View, ViewGroup)}
+	 * <p>
+	 * The adapter owns the background of the returned view and only restyles it when the chosen or opened state of
+	 * the row changes, so implementations should not change the background of a recycled {@code convertView}.
 	 * @param position The position in the list adapter for which the row vie has to be returned
 	 * @param convertView An existing view to be used for recycling
 	 * @param parent The parent - useful for inflation
@@ -293,15 +639,17 @@ public abstract class HybridChoiceAdapter<T> extends ArrayAdapter<T> {
 	 * @return {@code true} if the item at that position is chosen, {@code false} otherwise
 	 */
 	public boolean isItemChosen(int position) {
-		return chosenItems.contains(position);
+		return selection.isItemChosen(toSource(position));
 	}
 
 	/**
 	 * Get the currently chosen items
-	 * @return The currently chosen items as a set of their positions. If no items are chosen, returns an empty set. 
+	 * @return A read-only view of the positions of the currently chosen items. The view reflects later changes
+	 * to the choices. If no items are chosen, returns an empty set. While filtered, these are positions in the
+	 * unfiltered list, and include items that are not shown.
 	 */
-	public Set<Integer> getChosenItems() {
-		return chosenItems;
+	public ChosenItems getChosenItems() {
+		return selection.getChosenItems();
 	}
 
 	/**
@@ -309,15 +657,17 @@ public abstract class HybridChoiceAdapter<T> extends ArrayAdapter<T> {
 	 * @param position The position of the currently opened item
 	 */
 	public void setOpenedItem(int position) {
-		this.openedItem = position;
+		long start = metrics != null ? System.nanoTime() : 0;
+		selection.setOpenedItem(position < 0 ? -1 : toSource(position));
+		selectionOperationDone(start);
 	}
 
 	/**
 	 * Get the currently opened item
-	 * @return The position of the currently opened item
+	 * @return The position of the currently opened item, or {@code -1} if there is none or it is filtered out
 	 */
 	public int getOpenedItem() {
-		return this.openedItem;
+		return toShown(selection.getOpenedItem());
 	}
 
 	/**
@@ -326,14 +676,17 @@ public abstract class HybridChoiceAdapter<T> extends ArrayAdapter<T> {
 	 * @return {@code true} if the item is opened, {@code false} otherwise
 	 */
 	public boolean isItemOpened(int position) {
-		return this.openedItem == position;
+		int source = toSource(position);
+		return source >= 0 && selection.isItemOpened(source);
 	}
 
 	/**
 	 * Clear all choices. This sets all items to the not chosen state
 	 */
 	public void clearChoices() {
-		chosenItems.clear();
+		long start = metrics != null ? System.nanoTime() : 0;
+		selection.clearChoices();
+		selectionOperationDone(start);
 	}
 
 	/**
@@ -341,18 +694,815 @@ public abstract class HybridChoiceAdapter<T> extends ArrayAdapter<T> {
 	 * @param position The position of the item whose chosen state should be toggled
 	 */
 	public void toggleItem(int position) {
-		if (isItemChosen(position)) {
-			chosenItems.remove(position);
-		} else {
-			chosenItems.add(position);
-		}
+		long start = metrics != null ? System.nanoTime() : 0;
+		selection.toggleItem(toSource(position));
+		selectionOperationDone(start);
 	}
 
 	/**
-	 * Get the number of chosen items. Useful for displaying in the Contextual Action Bar for example.
+	 * Get the number of chosen items. Useful for displaying in the Contextual Action Bar for example. While
+	 * filtered, this includes chosen items that are not shown.
 	 * @return The number of chosen items
 	 */
 	public int getChosenItemsCount() {
-		return this.chosenItems.size();
+		return selection.getChosenItemsCount();
+	}
+
+	/**
+	 * Declare the sections of a grouped list, e.g. by date or folder, so that
+	 * the number of chosen items in each can be shown in its header without
+	 * going through the chosen items. Counts are kept up to date as items are
+	 * chosen. Declare the sections again when the items change.
+	 * <p>
+	 * Sections are made of positions in the whole list, including items
+	 * hidden by a {@linkplain #filter(CharSequence) filter}.
+	 * @param sectionStarts The first position of each section, strictly ascending and starting with 0,
+	 * or {@code null} for no sections
+	 */
+	public void setSections(int[] sectionStarts) {
+		selection.setSections(sectionStarts);
+	}
+
+	/**
+	 * Get the section an item belongs to
+	 * @param position The position of the item in the whole list
+	 * @return The index of the section
+	 */
+	public int getSectionForPosition(int position) {
+		return selection.getSectionForPosition(position);
+	}
+
+	/**
+	 * Get the number of chosen items in a section, e.g. for a "3 of 120" header
+	 * @param section The index of the section
+	 * @return The number of chosen items in the section
+	 */
+	public int getChosenCountInSection(int section) {
+		return selection.getChosenCountInSection(section);
+	}
+
+	/**
+	 * Get the number of items in a section
+	 * @param section The index of the section
+	 * @return The number of items in the section
+	 */
+	public int getSectionSize(int section) {
+		return selection.getSectionEnd(section) - selection.getSectionStart(section);
+	}
+
+	/**
+	 * Choose or clear every item of a section, e.g. from a section checkbox. This includes items hidden by
+	 * a filter.
+	 * @param section The index of the section
+	 * @param chosen Whether the items are to be set as chosen
+	 */
+	public void setSectionChosen(int section, boolean chosen) {
+		long start = metrics != null ? System.nanoTime() : 0;
+		selection.setSectionChosen(section, chosen);
+		selectionOperationDone(start);
+	}
+
+	@Override
+	public boolean hasStableIds() {
+		return idMapper != null;
+	}
+
+	@Override
+	public long getItemId(int position) {
+		if (idMapper != null) {
+			return itemIdAt(toSource(position));
+		}
+		return super.getItemId(position);
+	}
+
+	@Override
+	public int getCount() {
+		return filtered != null ? filtered.length : super.getCount();
+	}
+
+	@Override
+	public T getItem(int position) {
+		return super.getItem(filtered != null ? filtered[position] : position);
+	}
+
+	@Override
+	public int getPosition(T item) {
+		return toShown(super.getPosition(item));
+	}
+
+	/*
+	 * The number of items when not filtered
+	 */
+	private int sourceCount() {
+		return super.getCount();
+	}
+
+	/*
+	 * The position in the unfiltered list of an item shown, or -1 if there
+	 * is no such item
+	 */
+	private int toSource(int position) {
+		if (filtered == null) {
+			return position;
+		}
+		return position >= 0 && position < filtered.length ? filtered[position]
+				: -1;
+	}
+
+	/*
+	 * Where an item of the unfiltered list is shown, or -1 if it is filtered
+	 * out
+	 */
+	private int toShown(int source) {
+		if (filtered == null || source < 0) {
+			return source;
+		}
+		int index = Arrays.binarySearch(filtered, source);
+		return index >= 0 ? index : -1;
+	}
+
+	/*
+	 * The first position shown whose item is at or after a position of the
+	 * unfiltered list
+	 */
+	private int firstShownFrom(int source) {
+		int index = Arrays.binarySearch(filtered, source);
+		return index >= 0 ? index : -index - 1;
+	}
+
+	/*
+	 * The stable id of an item. Items of a paged list need not be loaded.
+	 */
+	private long itemIdAt(int position) {
+		if (pagedList != null) {
+			return pagedList.getItemId(position);
+		}
+		return idMapper.getItemId(HybridChoiceAdapter.super.getItem(position));
+	}
+
+	@Override
+	public void add(T object) {
+		int from = sourceCount();
+		dataChangeReported = true;
+		try {
+			super.add(object);
+		} finally {
+			dataChangeReported = false;
+		}
+		selection.onItemsAppended(from, sourceCount());
+	}
+
+	@Override
+	public void addAll(Collection<? extends T> collection) {
+		int from = sourceCount();
+		dataChangeReported = true;
+		try {
+			super.addAll(collection);
+		} finally {
+			dataChangeReported = false;
+		}
+		selection.onItemsAppended(from, sourceCount());
+	}
+
+	@Override
+	public void addAll(T... items) {
+		int from = sourceCount();
+		dataChangeReported = true;
+		try {
+			super.addAll(items);
+		} finally {
+			dataChangeReported = false;
+		}
+		selection.onItemsAppended(from, sourceCount());
+	}
+
+	@Override
+	public void insert(T object, int index) {
+		dataChangeReported = true;
+		try {
+			super.insert(object, index);
+		} finally {
+			dataChangeReported = false;
+		}
+		selection.onItemsInserted(index, 1);
+	}
+
+	@Override
+	public void remove(T object) {
+		int position = super.getPosition(object);
+		dataChangeReported = true;
+		try {
+			super.remove(object);
+		} finally {
+			dataChangeReported = false;
+		}
+		if (position >= 0) {
+			selection.onItemsRemoved(position, 1);
+		}
+	}
+
+	/**
+	 * Tell the adapter that items have been inserted directly into the list
+	 * it shows. Chosen and opened items after them move down with them,
+	 * without a pass over all chosen items, so this is cheap even when items
+	 * are inserted at the top many times a second.
+	 * @param at The position of the first inserted item in the list, which is
+	 * not filtered
+	 * @param count The number of inserted items
+	 * @throws UnsupportedOperationException If the adapter shows a {@link PagedList}
+	 */
+	public void insertItems(int at, int count) {
+		checkNotPaged("Items cannot be inserted into a paged list");
+		selection.onItemsInserted(at, count);
+		dataChangeReported = true;
+		try {
+			notifyDataSetChanged();
+		} finally {
+			dataChangeReported = false;
+		}
+	}
+
+	/**
+	 * Tell the adapter that items have been removed directly from the list it
+	 * shows. They are no longer chosen or opened, and chosen and opened items
+	 * after them move up.
+	 * @see #insertItems(int, int)
+	 * @param at The position the first removed item had in the list, which is
+	 * not filtered
+	 * @param count The number of removed items
+	 * @throws UnsupportedOperationException If the adapter shows a {@link PagedList}
+	 */
+	public void removeItems(int at, int count) {
+		checkNotPaged("Items cannot be removed from a paged list");
+		selection.onItemsRemoved(at, count);
+		dataChangeReported = true;
+		try {
+			notifyDataSetChanged();
+		} finally {
+			dataChangeReported = false;
+		}
+	}
+
+	@Override
+	public void clear() {
+		dataChangeReported = true;
+		try {
+			super.clear();
+		} finally {
+			dataChangeReported = false;
+		}
+		selection.onItemsCleared();
+	}
+
+	@Override
+	public void sort(Comparator<? super T> comparator) {
+		selection.onDataChanged();
+		super.sort(comparator);
+	}
+
+	/**
+	 * Remove all chosen items in one go, e.g. for a delete action. Nothing is
+	 * chosen afterwards, and the opened item is no longer opened if it was one
+	 * of them.
+	 * @see #removeAll(int[])
+	 * @throws UnsupportedOperationException If the adapter shows a {@link PagedList}
+	 */
+	public void removeChosenItems() {
+		checkNotPaged("Items cannot be removed from a paged list");
+		removeSorted(selection.getChosenItems().toArray());
+	}
+
+	/**
+	 * Remove the items at some positions in one go. The list is compacted in
+	 * a single pass and the list view is notified once, which is much faster
+	 * than calling {@link #remove(Object)} for each item. Chosen and opened
+	 * items that stay move up with their items.
+	 * @param positions The positions of the items to remove, in any order.
+	 * Duplicates are ignored.
+	 * @throws UnsupportedOperationException If the adapter shows a {@link PagedList}
+	 */
+	public void removeAll(int[] positions) {
+		checkNotPaged("Items cannot be removed from a paged list");
+		if (filtered != null) {
+			int[] source = new int[positions.length];
+			for (int i = 0; i < positions.length; i++) {
+				source[i] = filtered[positions[i]];
+			}
+			positions = source;
+		}
+		removeSorted(SelectionModel.sortedDistinct(positions));
+	}
+
+	/**
+	 * Remove all chosen items in one go, keeping what is needed to put them
+	 * back with {@link #undoRemoval()}, e.g. from an "Undo" snackbar. Only
+	 * the positions of the items, in an {@code int[]}, and references to the
+	 * items themselves are kept, until the time to undo is up, another
+	 * removal is made undoable, or the items change in any other way.
+	 * @param undoTimeoutMillis How long the removal can be undone
+	 * @return The number of items removed
+	 * @throws UnsupportedOperationException If the adapter shows a {@link PagedList}
+	 */
+	public int removeChosenItemsUndoable(long undoTimeoutMillis) {
+		checkNotPaged("Items cannot be removed from a paged list");
+		discardUndo();
+		int[] removed = selection.getChosenItems().toArray();
+		if (removed.length == 0) {
+			return 0;
+		}
+		Object[] items = new Object[removed.length];
+		for (int i = 0; i < removed.length; i++) {
+			items[i] = super.getItem(removed[i]);
+		}
+		int opened = selection.getOpenedItem();
+		int openedIndex = opened >= 0 ? Arrays.binarySearch(removed, opened) : -1;
+		removeSorted(removed);
+		removalJournal = new RemovalJournal(removed, items,
+				Math.max(-1, openedIndex), sourceCount());
+		if (undoHandler == null) {
+			undoHandler = new Handler(Looper.getMainLooper());
+		}
+		undoHandler.postDelayed(undoExpiry, undoTimeoutMillis);
+		return removed.length;
+	}
+
+	/**
+	 * Put back the items removed by {@link #removeChosenItemsUndoable(long)},
+	 * where they were, chosen again, and opened again if one of them was. The
+	 * items are merged back in a single pass, and the list view is notified
+	 * once.
+	 * @return {@code true} if the items were put back, {@code false} if the
+	 * removal can no longer be undone
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean undoRemoval() {
+		RemovalJournal journal = removalJournal;
+		if (journal == null) {
+			return false;
+		}
+		discardUndo();
+		int count = sourceCount();
+		if (count != journal.countAfter) {
+			return false;
+		}
+		int[] positions = journal.positions;
+		int total = count + positions.length;
+		List<T> merged = new ArrayList<T>(total);
+		int next = 0;
+		int kept = 0;
+		for (int i = 0; i < total; i++) {
+			if (next < positions.length && positions[next] == i) {
+				merged.add((T) journal.items[next++]);
+			} else {
+				merged.add(super.getItem(kept++));
+			}
+		}
+		selection.beginBatch();
+		try {
+			setNotifyOnChange(false);
+			super.clear();
+			super.addAll(merged);
+			selection.onItemsRestored(positions,
+					journal.openedIndex >= 0 ? positions[journal.openedIndex] : -1);
+			dataChangeReported = true;
+			try {
+				notifyDataSetChanged();
+			} finally {
+				dataChangeReported = false;
+			}
+		} finally {
+			selection.endBatch();
+		}
+		return true;
+	}
+
+	/**
+	 * Whether {@link #undoRemoval()} would put items back
+	 * @return {@code true} if the last undoable removal can still be undone
+	 */
+	public boolean canUndoRemoval() {
+		return removalJournal != null;
+	}
+
+	/**
+	 * Give up the chance to undo the last undoable removal now, e.g. when the
+	 * snackbar is dismissed, letting go of the removed items
+	 */
+	public void discardUndo() {
+		if (removalJournal == null) {
+			return;
+		}
+		removalJournal = null;
+		undoHandler.removeCallbacks(undoExpiry);
+	}
+
+	/**
+	 * Run an action, such as export, share, move or delete, on all chosen
+	 * items in the background. The chosen items are captured when this is
+	 * called and then handed to the action on a worker thread, in chunks
+	 * sized so that progress is reported a few times per second. When the
+	 * action is over, the items it asked to remove are removed and its
+	 * {@link BulkAction#onFinished(int, int, boolean) onFinished()} is called,
+	 * all in one batched update. Items that moved meanwhile are found by
+	 * identity. For a {@link PagedList}, items that are not loaded are passed
+	 * as {@code null}, and no pages are loaded to capture them; nothing is
+	 * removed, since the list is read-only, so the action should change the
+	 * data the pages are loaded from instead. Must be called on the main
+	 * thread.
+	 * @param action The action
+	 * @return The running action, e.g. to cancel it from the Contextual Action Bar
+	 */
+	public BulkAction.Task runBulkAction(BulkAction<T> action) {
+		int[] positions = selection.getChosenItems().toArray();
+		Object[] items = new Object[positions.length];
+		if (pagedList != null) {
+			pagedList.peek(positions, items);
+		} else {
+			for (int i = 0; i < positions.length; i++) {
+				items[i] = super.getItem(positions[i]);
+			}
+		}
+		BulkActionRunner<T> runner = new BulkActionRunner<T>(action,
+				new BulkTarget(), positions, items);
+		runner.start();
+		return runner;
+	}
+
+	/*
+	 * Remove the items at ascending, distinct positions
+	 */
+	private void removeSorted(int[] removed) {
+		if (removed.length == 0) {
+			return;
+		}
+		int count = sourceCount();
+		if (removed[0] < 0 || removed[removed.length - 1] >= count) {
+			throw new IndexOutOfBoundsException("Invalid positions for "
+					+ count + " items");
+		}
+		List<T> kept = new ArrayList<T>(count - removed.length);
+		int next = 0;
+		for (int i = 0; i < count; i++) {
+			if (next < removed.length && removed[next] == i) {
+				next++;
+			} else {
+				kept.add(HybridChoiceAdapter.super.getItem(i));
+			}
+		}
+		selection.beginBatch();
+		try {
+			selection.onItemsRemoving(removed);
+			setNotifyOnChange(false);
+			super.clear();
+			super.addAll(kept);
+			dataChangeReported = true;
+			try {
+				notifyDataSetChanged();
+			} finally {
+				dataChangeReported = false;
+			}
+		} finally {
+			selection.endBatch();
+		}
+	}
+
+	/**
+	 * Save the chosen and opened items, e.g. from
+	 * {@code onSaveInstanceState()}. They are saved in a compact binary form
+	 * that stays small even for large selections.
+	 * @param outState The Bundle to save to
+	 */
+	public void saveState(Bundle outState) {
+		outState.putByteArray(STATE_SELECTION, selection.saveState());
+	}
+
+	/**
+	 * Restore the chosen and opened items saved by {@link #saveState(Bundle)}.
+	 * Does nothing if nothing was saved.
+	 * @param savedState The Bundle that was saved to. May be {@code null}.
+	 */
+	public void restoreState(Bundle savedState) {
+		byte[] state = savedState != null ? savedState
+				.getByteArray(STATE_SELECTION) : null;
+		if (state != null) {
+			selection.restoreState(state);
+		}
+	}
+
+	/**
+	 * Set how {@link #submitList(List)} compares items. By default, items are
+	 * the same if they have the same stable id, or else if they are equal, and
+	 * their contents are the same if they are equal.
+	 * @param callback The comparison to use, or {@code null} for the default
+	 */
+	public void setDiffCallback(DiffCallback<T> callback) {
+		this.diffCallback = callback;
+	}
+
+	/**
+	 * Replace the items of this adapter with a new list. The lists are
+	 * compared on a worker thread, and the chosen and opened items then follow
+	 * their items to their new positions. Items that are not in the new list
+	 * are no longer chosen or opened.
+	 * <p>
+	 * The new list is applied on the main thread once the comparison is done,
+	 * unless another list has been submitted in the meantime. The new list
+	 * must not be modified after it has been submitted, and the adapter should
+	 * not be modified by other means while a submission is pending. Must be
+	 * called on the main thread.
+	 * @param newList The new items
+	 * @throws UnsupportedOperationException If the adapter shows a {@link PagedList}
+	 */
+	public void submitList(List<T> newList) {
+		checkNotPaged("A paged list cannot be replaced");
+		if (listSubmitter == null) {
+			listSubmitter = new ListSubmitter<T>(new SubmitTarget());
+		}
+		listSubmitter.submit(newList, diffCallback != null ? diffCallback
+				: ListDiff.defaultCallback(idMapper));
+	}
+
+	/*
+	 * Paged lists are read-only, and most of their items are not loaded
+	 */
+	private void checkNotPaged(String message) {
+		if (pagedList != null) {
+			throw new UnsupportedOperationException(message);
+		}
+	}
+
+	/**
+	 * In stable id mode, call this after modifying the underlying list
+	 * directly so that the positions of the chosen and opened items are looked
+	 * up again. Changes made through the methods of this adapter keep the
+	 * lookup up to date incrementally.
+	 */
+	@Override
+	public void notifyDataSetChanged() {
+		discardUndo();
+		if (!dataChangeReported) {
+			selection.onDataChanged();
+		}
+		if (metrics != null) {
+			metrics.onNotify();
+		}
+		if (listFilter != null) {
+			if (filterQuery != null) {
+				filtered = listFilter.filterNow(filterQuery, matcher());
+			} else {
+				listFilter.onDataChanged();
+			}
+		}
+		super.notifyDataSetChanged();
+	}
+
+	/**
+	 * Set how {@link #filter(CharSequence)} matches items. By default, an
+	 * item matches if its {@code toString()} contains the query, ignoring
+	 * case.
+	 * @param matcher The matching to use, or {@code null} for the default
+	 */
+	public void setItemMatcher(ItemMatcher<T> matcher) {
+		this.itemMatcher = matcher;
+	}
+
+	/**
+	 * Show only the items that match a query. Unlike the {@code Filter} of
+	 * {@code ArrayAdapter}, this keeps the chosen and opened items: they are
+	 * kept by their position in the unfiltered list, and items that are
+	 * filtered out stay chosen. Meanwhile, the positions taken and returned by
+	 * this adapter are those of the items shown, except where noted.
+	 * <p>
+	 * Items are matched on a worker thread. When a query extends the previous
+	 * one, e.g. as the user types, only the items that matched the previous
+	 * one are tested again. If the items change while filtered, they are
+	 * filtered again on the main thread. Paged lists cannot be filtered. Must
+	 * be called on the main thread.
+	 * @param query The query, or {@code null} or empty to show all items
+	 * @throws UnsupportedOperationException If the adapter shows a {@link PagedList}
+	 */
+	public void filter(CharSequence query) {
+		checkNotPaged("A paged list cannot be filtered");
+		if (listFilter == null) {
+			listFilter = new ListFilter<T>(new FilterTarget());
+		}
+		if (query == null || query.length() == 0) {
+			filterQuery = null;
+			listFilter.onDataChanged();
+			if (filtered != null) {
+				filtered = null;
+				super.notifyDataSetChanged();
+			}
+			return;
+		}
+		filterQuery = query.toString();
+		listFilter.filter(filterQuery, matcher());
+	}
+
+	private ItemMatcher<T> matcher() {
+		return itemMatcher != null ? itemMatcher : ListFilter.<T> defaultMatcher();
+	}
+
+	/**
+	 * The adapter's items as seen by the selection model
+	 */
+	private class AdapterItems implements SelectionModel.Items {
+
+		@Override
+		public int getCount() {
+			return sourceCount();
+		}
+
+		@Override
+		public long getItemId(int position) {
+			return itemIdAt(position);
+		}
+	}
+
+	/*
+	 * Copy of the unfiltered items
+	 */
+	private List<T> snapshotSourceItems() {
+		int count = sourceCount();
+		List<T> items = new ArrayList<T>(count);
+		for (int i = 0; i < count; i++) {
+			items.add(HybridChoiceAdapter.super.getItem(i));
+		}
+		return items;
+	}
+
+	/**
+	 * Receives the lists diffed for {@link #submitList(List)}
+	 */
+	private class SubmitTarget implements ListSubmitter.Target<T> {
+
+		@Override
+		public List<T> snapshotItems() {
+			return snapshotSourceItems();
+		}
+
+		@Override
+		public void applyDiff(List<T> newList, ListDiff diff) {
+			/*
+			 * A ListView can only be told that everything changed. Rows whose
+			 * chosen and opened state stays the same keep their styling.
+			 */
+			setNotifyOnChange(false);
+			HybridChoiceAdapter.super.clear();
+			HybridChoiceAdapter.super.addAll(newList);
+			selection.onItemsRemapped(diff.getOldToNew());
+			dataChangeReported = true;
+			try {
+				notifyDataSetChanged();
+			} finally {
+				dataChangeReported = false;
+			}
+		}
+	}
+
+	/**
+	 * What {@link #undoRemoval()} needs to put removed items back: their
+	 * positions before removal, ascending, and the items at those positions
+	 */
+	private static final class RemovalJournal {
+
+		final int[] positions;
+
+		final Object[] items;
+
+		/*
+		 * The index in positions of the item that was opened, or -1
+		 */
+		final int openedIndex;
+
+		/*
+		 * The number of items right after the removal
+		 */
+		final int countAfter;
+
+		RemovalJournal(int[] positions, Object[] items, int openedIndex,
+				int countAfter) {
+			this.positions = positions;
+			this.items = items;
+			this.openedIndex = openedIndex;
+			this.countAfter = countAfter;
+		}
+	}
+
+	/**
+	 * Applies the results of {@link #runBulkAction(BulkAction)}
+	 */
+	private class BulkTarget implements BulkActionRunner.Target {
+
+		@Override
+		public void removeProcessed(int[] positions, Object[] items) {
+			if (pagedList != null) {
+				return;
+			}
+			int count = sourceCount();
+			int[] current = new int[positions.length];
+			int found = 0;
+			/*
+			 * Items keep their relative order, so each one is at or after
+			 * where the previous one was found. One that is not found was
+			 * removed meanwhile.
+			 */
+			int from = 0;
+			for (int i = 0; i < positions.length; i++) {
+				int position = positions[i];
+				if (position < from || position >= count
+						|| HybridChoiceAdapter.super.getItem(position) != items[i]) {
+					position = from;
+					while (position < count
+							&& HybridChoiceAdapter.super.getItem(position) != items[i]) {
+						position++;
+					}
+					if (position == count) {
+						continue;
+					}
+				}
+				current[found++] = position;
+				from = position + 1;
+			}
+			removeSorted(found == current.length ? current
+					: Arrays.copyOf(current, found));
+		}
+
+		@Override
+		public void beginBatch() {
+			selection.beginBatch();
+		}
+
+		@Override
+		public void endBatch() {
+			selection.endBatch();
+		}
+	}
+
+	/**
+	 * Receives the results of {@link #filter(CharSequence)}
+	 */
+	private class FilterTarget implements ListFilter.Target<T> {
+
+		@Override
+		public List<T> snapshotItems() {
+			return snapshotSourceItems();
+		}
+
+		@Override
+		public void applyFilter(int[] positions) {
+			filtered = positions;
+			/*
+			 * Only what is shown has changed, so the positions of the ids
+			 * are kept
+			 */
+			HybridChoiceAdapter.super.notifyDataSetChanged();
+		}
+	}
+
+	/**
+	 * Lets the row binder use the state and the overridable styling of this
+	 * adapter
+	 */
+	private class RowBinderHost implements ChoiceRowBinder.Host {
+
+		@Override
+		public boolean isItemChosen(int position) {
+			return HybridChoiceAdapter.this.isItemChosen(position);
+		}
+
+		@Override
+		public boolean isItemOpened(int position) {
+			return HybridChoiceAdapter.this.isItemOpened(position);
+		}
+
+		@Override
+		public void setViewAsChosen(View v) {
+			HybridChoiceAdapter.this.setViewAsChosen(v);
+		}
+
+		@Override
+		public void setViewAsOpened(View v) {
+			HybridChoiceAdapter.this.setViewAsOpened(v);
+		}
+
+		@Override
+		public void setViewAsDefault(View v) {
+			HybridChoiceAdapter.this.setViewAsDefault(v);
+		}
+
+		@Override
+		public int getCurrentPosition(RowHolder holder) {
+			/*
+			 * A ListView rebinds every row when the data changes, so the
+			 * position from the last bind is current
+			 */
+			return holder.position;
+		}
+
+		@Override
+		public void onRowCheckboxChanged(int position, boolean checked) {
+			mCallback.onRowItemChosenChanged(position, checked);
+		}
 	}
 }
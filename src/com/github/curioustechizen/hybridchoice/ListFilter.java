@@ -0,0 +1,176 @@
+package com.github.curioustechizen.hybridchoice;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Filters the items of an adapter on a worker thread, producing the sorted
+ * positions of the items that match. A query that extends the previous one
+ * only tests the items that matched the previous one. A filter that is
+ * overtaken by a newer query stops early, and its result is dropped.
+ *
+ * @param <T>
+ */
+final class ListFilter<T> {
+
+	/**
+	 * The adapter that is filtered
+	 */
+	interface Target<T> {
+
+		/**
+		 * Copy of the unfiltered items. Called on the main thread.
+		 */
+		List<T> snapshotItems();
+
+		/**
+		 * Show the items at some positions. Called on the main thread.
+		 */
+		void applyFilter(int[] positions);
+	}
+
+	private static final Executor FILTER_EXECUTOR = Workers.newExecutor(
+			"filter", 1);
+
+	/*
+	 * How many items are tested between checks for a newer query
+	 */
+	private static final int CANCEL_CHECK_INTERVAL = 1024;
+
+	private final Target<T> target;
+
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	/*
+	 * Incremented on every query and data change. Written on the main thread,
+	 * read by the worker to stop early.
+	 */
+	private volatile int generation;
+
+	/*
+	 * The unfiltered items, copied once per data change. null until needed.
+	 */
+	private List<T> items;
+
+	/*
+	 * The latest result for the current items, to refine. Only accessed on
+	 * the main thread.
+	 */
+	private String resultQuery;
+	private int[] result;
+
+	ListFilter(Target<T> target) {
+		this.target = target;
+	}
+
+	/**
+	 * The matcher used if none is set: whether the string form of an item
+	 * contains the query, ignoring case
+	 */
+	static <T> ItemMatcher<T> defaultMatcher() {
+		return new ItemMatcher<T>() {
+
+			@Override
+			public boolean matches(T item, String query) {
+				return item != null
+						&& item.toString().toLowerCase(Locale.getDefault())
+								.contains(query.toLowerCase(Locale.getDefault()));
+			}
+		};
+	}
+
+	/**
+	 * Filter the items in the background. Must be called on the main thread.
+	 */
+	void filter(final String query, final ItemMatcher<T> matcher) {
+		final int request = ++generation;
+		if (items == null) {
+			items = target.snapshotItems();
+		}
+		final List<T> source = items;
+		final int[] candidates = resultQuery != null
+				&& query.startsWith(resultQuery) ? result : null;
+		FILTER_EXECUTOR.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				final int[] positions = compute(source, query, matcher,
+						candidates, request);
+				if (positions == null) {
+					return;
+				}
+				mainHandler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						if (source != items) {
+							return;
+						}
+						/*
+						 * Even if a newer query overtook this one, its result
+						 * narrows down later refinements
+						 */
+						resultQuery = query;
+						result = positions;
+						if (request == generation) {
+							target.applyFilter(positions);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Filter the items on the calling thread, after they have changed. Must
+	 * be called on the main thread.
+	 */
+	int[] filterNow(String query, ItemMatcher<T> matcher) {
+		onDataChanged();
+		items = target.snapshotItems();
+		result = compute(items, query, matcher, null, generation);
+		resultQuery = query;
+		return result;
+	}
+
+	/**
+	 * Forget the items and any results for them, and drop pending results.
+	 * Must be called on the main thread.
+	 */
+	void onDataChanged() {
+		generation++;
+		items = null;
+		resultQuery = null;
+		result = null;
+	}
+
+	/*
+	 * The positions of the matching items, testing only the candidates if
+	 * there are any, or null if a newer request came in meanwhile
+	 */
+	private int[] compute(List<T> source, String query, ItemMatcher<T> matcher,
+			int[] candidates, int request) {
+		int count = candidates != null ? candidates.length : source.size();
+		int[] matches = new int[count];
+		int matched = 0;
+		for (int i = 0; i < count; i++) {
+			if (i % CANCEL_CHECK_INTERVAL == 0 && request != generation) {
+				return null;
+			}
+			int position = candidates != null ? candidates[i] : i;
+			if (matcher.matches(source.get(position), query)) {
+				matches[matched++] = position;
+			}
+		}
+		if (matched == count) {
+			return matches;
+		}
+		int[] trimmed = new int[matched];
+		System.arraycopy(matches, 0, trimmed, 0, matched);
+		return trimmed;
+	}
+}
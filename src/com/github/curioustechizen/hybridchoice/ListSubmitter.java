@@ -0,0 +1,85 @@
+package com.github.curioustechizen.hybridchoice;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Diffs lists submitted to an adapter on a worker thread, and hands the
+ * result back to the adapter on the main thread. If another list is
+ * submitted before a diff has been applied, that diff is dropped.
+ *
+ * @param <T>
+ */
+final class ListSubmitter<T> {
+
+	/**
+	 * The adapter that lists are submitted to
+	 */
+	interface Target<T> {
+
+		/**
+		 * Copy of the items currently shown. Called on the main thread.
+		 */
+		List<T> snapshotItems();
+
+		/**
+		 * Switch to a new list. Called on the main thread.
+		 */
+		void applyDiff(List<T> newList, ListDiff diff);
+	}
+
+	/*
+	 * One thread is enough: a newer submission makes older ones obsolete
+	 */
+	private static final Executor DIFF_EXECUTOR = Workers.newExecutor(
+			"diff", 1);
+
+	private final Target<T> target;
+
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	/*
+	 * Incremented on every submission. Only the diff of the latest one is
+	 * applied. Only accessed on the main thread.
+	 */
+	private int generation;
+
+	ListSubmitter(Target<T> target) {
+		this.target = target;
+	}
+
+	/**
+	 * Diff a new list against the current items in the background. Must be
+	 * called on the main thread.
+	 */
+	void submit(final List<T> newList, final DiffCallback<T> callback) {
+		final int submission = ++generation;
+		final List<T> oldList = target.snapshotItems();
+		if (oldList.isEmpty() || newList.isEmpty()) {
+			/*
+			 * Nothing to compare: the diff is trivial
+			 */
+			target.applyDiff(newList, ListDiff.compute(oldList, newList, callback));
+			return;
+		}
+		DIFF_EXECUTOR.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				final ListDiff diff = ListDiff.compute(oldList, newList, callback);
+				mainHandler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						if (submission == generation) {
+							target.applyDiff(newList, diff);
+						}
+					}
+				});
+			}
+		});
+	}
+}
@@ -0,0 +1,355 @@
+package com.github.curioustechizen.hybridchoice;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * A read-only list backed by a {@link PagedDataSource}, which only keeps a
+ * bounded number of pages of items in memory. Pass it to a
+ * {@link HybridChoiceAdapter} or {@code HybridChoiceRecyclerAdapter} instead
+ * of a fully loaded list.
+ * <p>
+ * {@link #get(int)} returns {@code null} as a placeholder for items that are
+ * not loaded yet, and schedules the load of their page on a worker thread.
+ * Pages in the direction of scrolling are prefetched, and the least recently
+ * used pages are dropped when there are more than the maximum. The adapter is
+ * told to rebind the rows of a page when it has loaded.
+ * <p>
+ * Chosen and opened items keep working for items that are not loaded: by
+ * position, or by the ids of {@link PagedDataSource#getItemId(int)} if the
+ * adapter tracks items by stable id.
+ * <p>
+ * Must only be used on the main thread. Methods that search or iterate the
+ * list only see the items that are loaded.
+ *
+ * @param <T>
+ */
+public class PagedList<T> extends AbstractList<T> implements RandomAccess {
+
+	/**
+	 * Notified on the main thread when a page has loaded
+	 */
+	interface Callback {
+
+		void onRangeLoaded(int start, int count);
+	}
+
+	private static final Executor LOAD_EXECUTOR = Workers.newExecutor(
+			"page", 2);
+
+	private final PagedDataSource<T> dataSource;
+
+	private final int count;
+
+	private final int pageSize;
+
+	/**
+	 * How many pages ahead of the one being read are loaded
+	 */
+	private final int prefetchPages;
+
+	/**
+	 * The loaded pages in least recently used order, keyed by page index
+	 */
+	private final LinkedHashMap<Integer, Object[]> pages;
+
+	/**
+	 * Pages that are being loaded
+	 */
+	private final Set<Integer> loading = new HashSet<Integer>();
+
+	/*
+	 * The page read last, so that reading the rows of one page doesn't go
+	 * through the map every time
+	 */
+	private int lastPageIndex = -1;
+	private Object[] lastPage;
+
+	/*
+	 * The direction of scrolling, as seen from the pages being read, and the
+	 * page that prefetching was last done for
+	 */
+	private int direction = 1;
+	private int prefetchedFor = -1;
+
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	private Callback callback;
+
+	/**
+	 * Constructor
+	 *
+	 * @param dataSource
+	 *            The source of the items
+	 * @param pageSize
+	 *            The number of items loaded at a time. A page should cover at
+	 *            least a screen of rows.
+	 * @param maxPages
+	 *            The maximum number of pages kept in memory. Must be more than
+	 *            the pages visible at once plus {@code prefetchPages}.
+	 * @param prefetchPages
+	 *            How many pages ahead of the rows being shown to load
+	 */
+	public PagedList(PagedDataSource<T> dataSource, int pageSize,
+			int maxPages, int prefetchPages) {
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("pageSize must be positive");
+		}
+		if (maxPages < prefetchPages + 2) {
+			throw new IllegalArgumentException(
+					"maxPages must be at least prefetchPages + 2");
+		}
+		this.dataSource = dataSource;
+		this.count = dataSource.getCount();
+		this.pageSize = pageSize;
+		this.prefetchPages = prefetchPages;
+		final int max = maxPages;
+		this.pages = new LinkedHashMap<Integer, Object[]>(max + 1, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Object[]> eldest) {
+				if (size() <= max) {
+					return false;
+				}
+				if (eldest.getKey().intValue() == lastPageIndex) {
+					lastPageIndex = -1;
+					lastPage = null;
+				}
+				return true;
+			}
+		};
+	}
+
+	void setCallback(Callback callback) {
+		this.callback = callback;
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Get an item, or {@code null} if it isn't loaded yet. In that case its
+	 * page is loaded in the background.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public T get(int position) {
+		if (position < 0 || position >= count) {
+			throw new IndexOutOfBoundsException("Invalid position " + position
+					+ " for " + count + " items");
+		}
+		int pageIndex = position / pageSize;
+		Object[] page = pageAt(pageIndex);
+		if (page == null) {
+			requestPage(pageIndex);
+		}
+		if (pageIndex != prefetchedFor) {
+			prefetchAround(pageIndex);
+		}
+		return page != null ? (T) page[position - pageIndex * pageSize] : null;
+	}
+
+	/**
+	 * Whether an item is loaded. Unlike {@link #get(int)}, this loads nothing
+	 * and doesn't count as a use of the item's page.
+	 */
+	public boolean isLoaded(int position) {
+		return pages.containsKey(position / pageSize);
+	}
+
+	/**
+	 * Get the items at some positions that are loaded, without loading,
+	 * prefetching or counting as a use of any page
+	 *
+	 * @param positions
+	 *            The positions, ascending
+	 * @param items
+	 *            Receives the item at each position, or {@code null} where it
+	 *            isn't loaded
+	 */
+	void peek(int[] positions, Object[] items) {
+		for (Map.Entry<Integer, Object[]> entry : pages.entrySet()) {
+			Object[] page = entry.getValue();
+			int start = entry.getKey().intValue() * pageSize;
+			int index = Arrays.binarySearch(positions, start);
+			for (index = index < 0 ? -(index + 1) : index; index < positions.length
+					&& positions[index] < start + page.length; index++) {
+				items[index] = page[positions[index] - start];
+			}
+		}
+	}
+
+	/**
+	 * Load the page of an item on the calling thread, unless it's loaded
+	 * already. Call this before the list is first shown to have its first rows
+	 * drawn without placeholders.
+	 *
+	 * @param position
+	 *            The position of the item
+	 */
+	public void loadAround(int position) {
+		int pageIndex = position / pageSize;
+		if (pageAt(pageIndex) == null) {
+			int start = pageIndex * pageSize;
+			putPage(pageIndex, dataSource.loadRange(start,
+					Math.min(pageSize, count - start)));
+		}
+	}
+
+	/**
+	 * The stable id of an item, which need not be loaded
+	 */
+	long getItemId(int position) {
+		return dataSource.getItemId(position);
+	}
+
+	@Override
+	public int indexOf(Object o) {
+		int found = -1;
+		for (Map.Entry<Integer, Object[]> entry : pages.entrySet()) {
+			Object[] page = entry.getValue();
+			for (int i = 0; i < page.length; i++) {
+				if (o == null ? page[i] == null : o.equals(page[i])) {
+					int position = entry.getKey().intValue() * pageSize + i;
+					if (found == -1 || position < found) {
+						found = position;
+					}
+					break;
+				}
+			}
+		}
+		return found;
+	}
+
+	@Override
+	public int lastIndexOf(Object o) {
+		int found = -1;
+		for (Map.Entry<Integer, Object[]> entry : pages.entrySet()) {
+			Object[] page = entry.getValue();
+			for (int i = page.length - 1; i >= 0; i--) {
+				if (o == null ? page[i] == null : o.equals(page[i])) {
+					found = Math.max(found, entry.getKey().intValue() * pageSize + i);
+					break;
+				}
+			}
+		}
+		return found;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return indexOf(o) != -1;
+	}
+
+	/**
+	 * Iterates over the items that are loaded, skipping the others
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public Iterator<T> iterator() {
+		final Object[][] snapshot = pages.values().toArray(new Object[pages.size()][]);
+		return new Iterator<T>() {
+
+			private int page, index;
+
+			@Override
+			public boolean hasNext() {
+				while (page < snapshot.length && index >= snapshot[page].length) {
+					page++;
+					index = 0;
+				}
+				return page < snapshot.length;
+			}
+
+			@Override
+			public T next() {
+				if (!hasNext()) {
+					throw new java.util.NoSuchElementException();
+				}
+				return (T) snapshot[page][index++];
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private Object[] pageAt(int pageIndex) {
+		if (pageIndex == lastPageIndex) {
+			return lastPage;
+		}
+		Object[] page = pages.get(pageIndex);
+		if (page != null) {
+			lastPageIndex = pageIndex;
+			lastPage = page;
+		}
+		return page;
+	}
+
+	private void prefetchAround(int pageIndex) {
+		if (prefetchedFor != -1 && pageIndex != prefetchedFor) {
+			direction = pageIndex > prefetchedFor ? 1 : -1;
+		}
+		prefetchedFor = pageIndex;
+		int lastIndex = (count - 1) / pageSize;
+		for (int i = 1; i <= prefetchPages; i++) {
+			int ahead = pageIndex + direction * i;
+			if (ahead < 0 || ahead > lastIndex) {
+				break;
+			}
+			if (!pages.containsKey(ahead)) {
+				requestPage(ahead);
+			}
+		}
+	}
+
+	private void requestPage(final int pageIndex) {
+		if (!loading.add(pageIndex)) {
+			return;
+		}
+		final int start = pageIndex * pageSize;
+		final int size = Math.min(pageSize, count - start);
+		LOAD_EXECUTOR.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				final List<T> items = dataSource.loadRange(start, size);
+				mainHandler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						loading.remove(pageIndex);
+						putPage(pageIndex, items);
+						if (callback != null) {
+							callback.onRangeLoaded(start, size);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	private void putPage(int pageIndex, List<T> items) {
+		Object[] page = items.toArray();
+		pages.put(pageIndex, page);
+		lastPageIndex = pageIndex;
+		lastPage = page;
+	}
+}
@@ -0,0 +1,36 @@
+package com.github.curioustechizen.hybridchoice;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The background threads that filtering, diffing, bulk actions and paged
+ * loading run on
+ */
+final class Workers {
+
+	private Workers() {
+	}
+
+	/**
+	 * Create an executor with a fixed number of daemon threads, so that they
+	 * never keep the process alive
+	 *
+	 * @param name
+	 *            What the threads do, for their names
+	 * @param threads
+	 *            How many threads to run
+	 */
+	static Executor newExecutor(final String name, int threads) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "HybridChoice-" + name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
@@ -0,0 +1,185 @@
+package com.github.curioustechizen.hybridchoice.sample;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+
+import com.github.curioustechizen.hybridchoice.dummy.DummyContent;
+import com.github.curioustechizen.hybridchoice.dummy.DummyContent.DummyItem;
+
+/**
+ * Loads the details of items on a worker thread and keeps the most recently
+ * used ones in memory, so that an item that was shown or prefetched recently
+ * is shown without waiting. The list prefetches the neighbours of the opened
+ * item, so that stepping to the next or previous item is instant.
+ * <p>
+ * Must only be used on the main thread.
+ */
+public class DetailLoader {
+
+	/**
+	 * Receives a loaded item on the main thread
+	 */
+	public interface Callback {
+
+		/**
+		 * @param id
+		 *            The id of the item
+		 * @param item
+		 *            The item, or {@code null} if there is no item with that id
+		 */
+		void onDetailLoaded(String id, DummyItem item);
+	}
+
+	/*
+	 * The characters of content kept in memory
+	 */
+	private static final int CACHE_SIZE = 256 * 1024;
+
+	private static DetailLoader sInstance;
+
+	private final Executor mExecutor = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "DetailLoader");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+	private final LruCache<String, DummyItem> mCache = new LruCache<String, DummyItem>(
+			CACHE_SIZE) {
+
+		@Override
+		protected int sizeOf(String id, DummyItem item) {
+			return item.content.length() + 1;
+		}
+	};
+
+	/*
+	 * Callbacks waiting for each item being loaded. An empty list for an item
+	 * that is only prefetched.
+	 */
+	private final Map<String, List<Callback>> mPending = new HashMap<String, List<Callback>>();
+
+	/**
+	 * @return The loader shared by the screens of the app
+	 */
+	public static DetailLoader getInstance() {
+		if (sInstance == null) {
+			sInstance = new DetailLoader();
+		}
+		return sInstance;
+	}
+
+	private DetailLoader() {
+	}
+
+	/**
+	 * Get an item that is in memory
+	 *
+	 * @param id
+	 *            The id of the item
+	 * @return The item, or {@code null} if it isn't loaded
+	 */
+	public DummyItem getCached(String id) {
+		return mCache.get(id);
+	}
+
+	/**
+	 * Get an item, loading it if it isn't in memory
+	 *
+	 * @param id
+	 *            The id of the item
+	 * @param callback
+	 *            Called with the item, right away if it is in memory
+	 */
+	public void load(String id, Callback callback) {
+		DummyItem item = mCache.get(id);
+		if (item != null) {
+			callback.onDetailLoaded(id, item);
+			return;
+		}
+		request(id).add(callback);
+	}
+
+	/**
+	 * Load an item in the background if it isn't in memory, so that it is
+	 * there when it is shown
+	 *
+	 * @param id
+	 *            The id of the item
+	 */
+	public void prefetch(String id) {
+		if (mCache.get(id) == null) {
+			request(id);
+		}
+	}
+
+	/**
+	 * Stop waiting for an item, e.g. when the screen that wanted it goes away.
+	 * The item is still loaded into memory.
+	 *
+	 * @param callback
+	 *            The callback passed to {@link #load(String, Callback)}
+	 */
+	public void cancel(Callback callback) {
+		for (List<Callback> callbacks : mPending.values()) {
+			callbacks.remove(callback);
+		}
+	}
+
+	/*
+	 * The callbacks waiting for an item, starting to load it if it isn't
+	 * being loaded yet
+	 */
+	private List<Callback> request(final String id) {
+		List<Callback> callbacks = mPending.get(id);
+		if (callbacks != null) {
+			return callbacks;
+		}
+		callbacks = new ArrayList<Callback>(1);
+		mPending.put(id, callbacks);
+		mExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				final DummyItem item = loadFromStorage(id);
+				mMainHandler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						if (item != null) {
+							mCache.put(id, item);
+						}
+						List<Callback> waiting = mPending.remove(id);
+						for (Callback callback : waiting) {
+							callback.onDetailLoaded(id, item);
+						}
+					}
+				});
+			}
+		});
+		return callbacks;
+	}
+
+	/*
+	 * Called on the worker thread. A real app would read the item from disk
+	 * or a content provider here.
+	 */
+	private static DummyItem loadFromStorage(String id) {
+		return DummyContent.ITEM_MAP.get(id);
+	}
+}
@@ -30,6 +30,26 @@ public class ItemDetailFragment extends Fragment {
      */
     private DummyContent.DummyItem mItem;
 
+    /**
+     * The ID of the item this fragment is presenting.
+     */
+    private String mItemId;
+
+    private TextView mDetailView;
+
+    /**
+     * Shows the item once it has been loaded.
+     */
+    private final DetailLoader.Callback mLoadCallback = new DetailLoader.Callback() {
+        @Override
+        public void onDetailLoaded(String id, DummyContent.DummyItem item) {
+            if (id.equals(mItemId)) {
+                mItem = item;
+                showItem();
+            }
+        }
+    };
+
     /**
      * Mandatory empty constructor for the fragment manager to instantiate the
      * fragment (e.g. upon screen orientation changes).
@@ -42,10 +62,7 @@ public class ItemDetailFragment extends Fragment {
         super.onCreate(savedInstanceState);
 
         if (getArguments().containsKey(ARG_ITEM_ID)) {
-            // Load the dummy content specified by the fragment
-            // arguments. In a real-world scenario, use a Loader
-            // to load content from a content provider.
-            mItem = DummyContent.ITEM_MAP.get(getArguments().getString(ARG_ITEM_ID));
+            mItemId = getArguments().getString(ARG_ITEM_ID);
         }
     }
 
@@ -53,12 +70,52 @@ public class ItemDetailFragment extends Fragment {
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
             Bundle savedInstanceState) {
         View rootView = inflater.inflate(R.layout.fragment_item_detail, container, false);
+        mDetailView = (TextView) rootView.findViewById(R.id.item_detail);
 
-        // Show the dummy content as text in a TextView.
-        if (mItem != null) {
-            ((TextView) rootView.findViewById(R.id.item_detail)).setText(mItem.content);
+        // Load the content specified by the fragment arguments off the main
+        // thread. If it was shown or prefetched recently, it is still in
+        // memory and is shown right away.
+        if (mItemId != null) {
+            DetailLoader.getInstance().load(mItemId, mLoadCallback);
         }
 
         return rootView;
     }
+
+    @Override
+    public void onDestroyView() {
+        DetailLoader.getInstance().cancel(mLoadCallback);
+        mDetailView = null;
+        super.onDestroyView();
+    }
+
+    /**
+     * Show a different item in this fragment, reusing its views. This is much
+     * cheaper than replacing the fragment.
+     *
+     * @param id The ID of the item to show
+     */
+    public void bindItem(String id) {
+        if (id.equals(mItemId)) {
+            return;
+        }
+        DetailLoader loader = DetailLoader.getInstance();
+        loader.cancel(mLoadCallback);
+        mItemId = id;
+        mItem = null;
+        // Keep the arguments current, so that the fragment shows this item
+        // when it is recreated.
+        getArguments().putString(ARG_ITEM_ID, id);
+        if (mDetailView != null) {
+            mDetailView.setText(null);
+            loader.load(id, mLoadCallback);
+        }
+    }
+
+    private void showItem() {
+        // Show the dummy content as text in a TextView.
+        if (mDetailView != null && mItem != null) {
+            mDetailView.setText(mItem.content);
+        }
+    }
 }
@@ -4,6 +4,7 @@ package com.github.curioustechizen.hybridchoice.sample;
 import android.content.Intent;
 import android.os.Bundle;
 import android.support.v4.app.FragmentActivity;
+import android.support.v4.view.ViewCompat;
 
 import com.github.curioustechizen.hybridchoice.R;
 
@@ -31,6 +32,22 @@ public class ItemListActivity extends FragmentActivity
      */
     private boolean mTwoPane;
 
+    /**
+     * In two-pane mode, the ID of the item to show in the detail pane on the
+     * next frame, or null if none is pending. Clicks within one frame only
+     * show the last item.
+     */
+    private String mPendingItemId;
+
+    private final Runnable mShowPendingItem = new Runnable() {
+        @Override
+        public void run() {
+            String id = mPendingItemId;
+            mPendingItemId = null;
+            showDetail(id);
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -60,16 +77,14 @@ public class ItemListActivity extends FragmentActivity
     @Override
     public void onItemSelected(String id) {
         if (mTwoPane) {
-            // In two-pane mode, show the detail view in this activity by
-            // adding or replacing the detail fragment using a
-            // fragment transaction.
-            Bundle arguments = new Bundle();
-            arguments.putString(ItemDetailFragment.ARG_ITEM_ID, id);
-            ItemDetailFragment fragment = new ItemDetailFragment();
-            fragment.setArguments(arguments);
-            getSupportFragmentManager().beginTransaction()
-                    .replace(R.id.item_detail_container, fragment)
-                    .commit();
+            // In two-pane mode, show the detail view in this activity on the
+            // next frame. Later clicks before then replace the pending item.
+            boolean scheduled = mPendingItemId != null;
+            mPendingItemId = id;
+            if (!scheduled) {
+                ViewCompat.postOnAnimation(findViewById(R.id.item_detail_container),
+                        mShowPendingItem);
+            }
 
         } else {
             // In single-pane mode, simply start the detail activity
@@ -79,4 +94,32 @@ public class ItemListActivity extends FragmentActivity
             startActivity(detailIntent);
         }
     }
+
+    @Override
+    protected void onDestroy() {
+        if (mTwoPane) {
+            findViewById(R.id.item_detail_container).removeCallbacks(mShowPendingItem);
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Show an item in the detail pane, rebinding the detail fragment if
+     * there is one already and adding it otherwise.
+     */
+    private void showDetail(String id) {
+        ItemDetailFragment fragment = (ItemDetailFragment) getSupportFragmentManager()
+                .findFragmentById(R.id.item_detail_container);
+        if (fragment != null) {
+            fragment.bindItem(id);
+            return;
+        }
+        Bundle arguments = new Bundle();
+        arguments.putString(ItemDetailFragment.ARG_ITEM_ID, id);
+        fragment = new ItemDetailFragment();
+        fragment.setArguments(arguments);
+        getSupportFragmentManager().beginTransaction()
+                .add(R.id.item_detail_container, fragment)
+                .commit();
+    }
 }
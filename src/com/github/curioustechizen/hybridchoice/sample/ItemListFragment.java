@@ -12,9 +12,12 @@ import android.widget.AdapterView.OnItemLongClickListener;
 import android.widget.ListView;
 import android.widget.Toast;
 
+import com.github.curioustechizen.hybridchoice.BulkAction;
 import com.github.curioustechizen.hybridchoice.HybridChoiceAdapter.RowItemChoiceCallback;
 import com.github.curioustechizen.hybridchoice.R;
+import com.github.curioustechizen.hybridchoice.SelectionObserver;
 import com.github.curioustechizen.hybridchoice.dummy.DummyContent;
+import com.github.curioustechizen.hybridchoice.dummy.DummyContent.DummyItem;
 
 /**
  * A list fragment representing a list of Items. This fragment also supports
@@ -49,6 +52,40 @@ public class ItemListFragment extends ListFragment implements
 	private ItemsAdapter mAdapter;
 	private ActionMode mActionMode;
 
+	/**
+	 * The delete running in the background, or null
+	 */
+	private BulkAction.Task mDeleteTask;
+
+	/**
+	 * The count of chosen items that the CAB title shows, so that the title is
+	 * only rebuilt when the count changes
+	 */
+	private int mTitleCount = -1;
+
+	/**
+	 * Keeps the CAB title up to date, and has the details of the items next to
+	 * the opened one loaded so that stepping to them is instant. Changes made
+	 * in a batch, e.g. select all, arrive as a single event.
+	 */
+	private SelectionObserver selectionObserver = new SelectionObserver() {
+
+		@Override
+		public void onItemChosenChanged(int position, boolean chosen) {
+			updateActionModeTitle();
+		}
+
+		@Override
+		public void onChosenRangeChanged(int from, int to) {
+			updateActionModeTitle();
+		}
+
+		@Override
+		public void onOpenedItemChanged(int previous, int current) {
+			prefetchAround(current);
+		}
+	};
+
 	/**
 	 * The callbak for handling the ActionMode. Responsible for displaying
 	 * contextual actions, and handling contextual action clicks
@@ -66,9 +103,12 @@ public class ItemListFragment extends ListFragment implements
 			/*
 			 * Whenever the action mode is dismissed, clear all chosen items
 			 */
-			mAdapter.clearChoices();
-			mAdapter.notifyDataSetChanged();
 			mActionMode = null;
+			if (mDeleteTask != null) {
+				mDeleteTask.cancel();
+				mDeleteTask = null;
+			}
+			mAdapter.clearChoices();
 		}
 
 		@Override
@@ -76,6 +116,7 @@ public class ItemListFragment extends ListFragment implements
 			if (mActionMode != null)
 				return false;
 			mActionMode = mode;
+			mTitleCount = -1;
 			mode.getMenuInflater().inflate(R.menu.list_cab, menu);
 			return true;
 		}
@@ -83,8 +124,9 @@ public class ItemListFragment extends ListFragment implements
 		@Override
 		public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
 			if (item.getItemId() == R.id.itemDelete) {
-				deleteAll();
-				mActionMode.finish();
+				if (mDeleteTask == null) {
+					deleteAll();
+				}
 				return true;
 			}
 			return false;
@@ -93,8 +135,45 @@ public class ItemListFragment extends ListFragment implements
 	};
 
 	private void deleteAll() {
-		Toast.makeText(getActivity(), "Delete action selected",
-				Toast.LENGTH_SHORT).show();
+		/*
+		 * Delete the chosen items in the background, showing progress in the
+		 * CAB, and remove them from the list in a single pass once done.
+		 * Dismissing the CAB meanwhile cancels the rest.
+		 */
+		mDeleteTask = mAdapter.runBulkAction(new BulkAction<DummyItem>() {
+
+			@Override
+			public boolean process(int position, DummyItem item) {
+				// A real app would delete the item from storage here
+				return true;
+			}
+
+			@Override
+			public void onProgress(int done, int total) {
+				if (mActionMode != null) {
+					mActionMode.setSubtitle("Deleting " + done + " of " + total);
+				}
+			}
+
+			@Override
+			public void onFinished(int done, int total, boolean cancelled) {
+				mDeleteTask = null;
+				if (mActionMode != null) {
+					mActionMode.finish();
+				}
+			}
+
+			@Override
+			public void onFailed(int done, int total, RuntimeException error) {
+				mDeleteTask = null;
+				if (mActionMode != null) {
+					mActionMode.finish();
+				}
+				Toast.makeText(getActivity(),
+						"Deleted " + done + " of " + total + " items",
+						Toast.LENGTH_SHORT).show();
+			}
+		});
 	}
 
 	/**
@@ -136,12 +215,34 @@ public class ItemListFragment extends ListFragment implements
 		 */
 		mAdapter = new ItemsAdapter(getActivity(), DummyContent.ITEMS);
 		setListAdapter(mAdapter);
+		mAdapter.addSelectionObserver(selectionObserver);
 	}
 
 	@Override
 	public void onViewCreated(View view, Bundle savedInstanceState) {
 		super.onViewCreated(view, savedInstanceState);
 		getListView().setOnItemLongClickListener(this);
+		/*
+		 * Let the adapter restyle only the rows whose chosen/opened state
+		 * changes, instead of calling notifyDataSetChanged() every time
+		 */
+		mAdapter.attachTo(getListView());
+		/*
+		 * Restore the chosen items, and the CAB that goes with them
+		 */
+		mAdapter.restoreState(savedInstanceState);
+		if (mAdapter.getChosenItemsCount() > 0) {
+			/*
+			 * The action mode can only be started once the list is attached
+			 */
+			getListView().post(new Runnable() {
+
+				@Override
+				public void run() {
+					updateActionMode();
+				}
+			});
+		}
 		// Restore the previously serialized activated item position.
 		if (savedInstanceState != null
 				&& savedInstanceState.containsKey(STATE_OPENED_POSITION)) {
@@ -150,6 +251,12 @@ public class ItemListFragment extends ListFragment implements
 		}
 	}
 
+	@Override
+	public void onDestroyView() {
+		mAdapter.attachTo(null);
+		super.onDestroyView();
+	}
+
 	@Override
 	public void onAttach(Activity activity) {
 		super.onAttach(activity);
@@ -190,11 +297,10 @@ public class ItemListFragment extends ListFragment implements
 		if (mActionMode != null) {
 			mActionMode.finish();
 		}
-		mAdapter.notifyDataSetChanged();
 
 		// Notify the active callbacks interface (the activity, if the
 		// fragment is attached to one) that an item has been selected.
-		mCallbacks.onItemSelected(DummyContent.ITEMS.get(position).id);
+		mCallbacks.onItemSelected(mAdapter.getItem(position).id);
 	}
 	
 	@Override
@@ -220,12 +326,37 @@ public class ItemListFragment extends ListFragment implements
 			mActionMode = getListView().startActionMode(actionModeCallback);
 		}
 
+		updateActionModeTitle();
+	}
+
+	private void updateActionModeTitle() {
+		if (mActionMode == null) {
+			return;
+		}
 		/*
 		 * Update the title of the CAB to indicate number of items chosen
 		 */
-		mActionMode.setTitle(String.format("%d chosen",
-				mAdapter.getChosenItemsCount()));
-		mAdapter.notifyDataSetChanged();
+		int count = mAdapter.getChosenItemsCount();
+		if (count != mTitleCount) {
+			mTitleCount = count;
+			mActionMode.setTitle(count + " chosen");
+		}
+	}
+
+	/**
+	 * Load the details of the items before and after an opened item in the
+	 * background
+	 */
+	private void prefetchAround(int position) {
+		if (position < 0) {
+			return;
+		}
+		DetailLoader loader = DetailLoader.getInstance();
+		for (int neighbour = position - 1; neighbour <= position + 1; neighbour += 2) {
+			if (neighbour >= 0 && neighbour < mAdapter.getCount()) {
+				loader.prefetch(mAdapter.getItem(neighbour).id);
+			}
+		}
 	}
 
 	@Override
@@ -238,6 +369,7 @@ public class ItemListFragment extends ListFragment implements
 	@Override
 	public void onSaveInstanceState(Bundle outState) {
 		super.onSaveInstanceState(outState);
+		mAdapter.saveState(outState);
 		if (mOpenedPosition != ListView.INVALID_POSITION) {
 			// Serialize and persist the activated item position.
 			outState.putInt(STATE_OPENED_POSITION, mOpenedPosition);